@@ -22,11 +22,17 @@ import static org.junit.Assert.*;
 import static org.fest.assertions.Assertions.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.katta.AbstractTest;
 import net.sf.katta.client.BasicNodeSelectionPolicy;
@@ -34,6 +40,7 @@ import net.sf.katta.client.DeployClient;
 import net.sf.katta.client.IDeployClient;
 import net.sf.katta.client.INodeSelectionPolicy;
 import net.sf.katta.client.IndexState;
+import net.sf.katta.client.ShuffleNodeSelectionPolicy;
 import net.sf.katta.client.ShardAccessException;
 import net.sf.katta.integrationTest.support.ClusterRule;
 import net.sf.katta.lib.lucene.DocumentFrequencyWritable;
@@ -48,6 +55,7 @@ import net.sf.katta.operation.master.IndexUndeployOperation;
 import net.sf.katta.protocol.metadata.IndexMetaData;
 import net.sf.katta.testutil.TestResources;
 import net.sf.katta.testutil.TestUtil;
+import net.sf.katta.util.ClientConfiguration;
 import net.sf.katta.util.FileUtil;
 import net.sf.katta.util.KattaException;
 
@@ -410,6 +418,162 @@ public class LuceneClientTest extends AbstractTest {
     client.close();
   }
 
+  @Test
+  public void testSearchAfter() throws Exception {
+    deploy3Indices();
+    ILuceneClient client = new LuceneClient(_clusterRule.getZkConfiguration());
+    final Query query = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer()).parse("foo: bar");
+    final String[] indexNames = new String[] { INDEX3, INDEX2 };
+    final List<Hit> allHits = client.search(query, indexNames).getHits();
+    assertEquals(8, allHits.size());
+
+    List<Hit> pagedHits = new ArrayList<Hit>();
+    Hits page = client.search(query, indexNames, 3);
+    while (!page.getHits().isEmpty()) {
+      assertEquals(8, page.size());
+      pagedHits.addAll(page.getHits());
+      page = client.searchAfter(page.getCursor(), query, indexNames, 3);
+    }
+    assertEquals(allHits.size(), pagedHits.size());
+    for (int i = 0; i < allHits.size(); i++) {
+      assertEquals(allHits.get(i).getShard(), pagedHits.get(i).getShard());
+      assertEquals(allHits.get(i).getDocId(), pagedHits.get(i).getDocId());
+      assertEquals(allHits.get(i).getScore(), pagedHits.get(i).getScore(), 0);
+    }
+    client.close();
+  }
+
+  @Test
+  public void testSearchBatch() throws Exception {
+    deploy3Indices();
+    ILuceneClient client = new LuceneClient(_clusterRule.getZkConfiguration());
+    QueryParser parser = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer());
+    final List<Query> queries = Arrays.asList(parser.parse("foo: bar"), parser.parse("foo: b*"),
+            parser.parse("foo: notexisting"));
+    final String[] indexNames = new String[] { INDEX3, INDEX2 };
+    List<Hits> batchHits = client.searchBatch(queries, indexNames, 3);
+    assertEquals(queries.size(), batchHits.size());
+    for (int i = 0; i < queries.size(); i++) {
+      Hits hits = client.search(queries.get(i), indexNames, 3);
+      assertEquals(hits.size(), batchHits.get(i).size());
+      assertTrue(batchHits.get(i).getMissingShards().isEmpty());
+      assertEquals(hits.getHits().size(), batchHits.get(i).getHits().size());
+      for (int j = 0; j < hits.getHits().size(); j++) {
+        assertEquals(hits.getHits().get(j).getScore(), batchHits.get(i).getHits().get(j).getScore(), 0);
+      }
+    }
+    client.close();
+  }
+
+  @Test
+  public void testSearchAsync() throws Exception {
+    deploy3Indices();
+    ILuceneClient client = new LuceneClient(_clusterRule.getZkConfiguration());
+    final Query query = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer()).parse("foo: bar");
+    final String[] indexNames = new String[] { INDEX3, INDEX2 };
+    Hits hits = client.search(query, indexNames, 3);
+    Hits asyncHits = client.searchAsync(query, indexNames, 3).get(10, TimeUnit.SECONDS);
+    assertEquals(hits.size(), asyncHits.size());
+    assertEquals(hits.getHits().size(), asyncHits.getHits().size());
+    for (int i = 0; i < hits.getHits().size(); i++) {
+      assertEquals(hits.getHits().get(i).getScore(), asyncHits.getHits().get(i).getScore(), 0);
+    }
+    try {
+      client.searchAsync(query, new String[] { "doesNotExist" }, 3).get(10, TimeUnit.SECONDS);
+      fail("should throw exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KattaException);
+    }
+    client.close();
+  }
+
+  @Test
+  public void testSearchWithHedging() throws Exception {
+    deployTestIndices(1, _clusterRule.getNodeCount());
+    ClientConfiguration clientConfiguration = new ClientConfiguration();
+    clientConfiguration.setProperty(ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGING, "true");
+    clientConfiguration.setProperty(ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGE_PERCENTILE, "0.5");
+    clientConfiguration.setProperty(ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGE_MINDELAY, "0");
+    LuceneClient hedgingClient = new LuceneClient(new ShuffleNodeSelectionPolicy(),
+            _clusterRule.getZkConfiguration(), clientConfiguration);
+    ILuceneClient client = new LuceneClient(_clusterRule.getZkConfiguration());
+    final Query query = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer()).parse("foo: bar");
+    final String[] indexNames = new String[] { INDEX_NAME };
+    Hits hits = client.search(query, indexNames, 10);
+    // the first calls teach the hedge policy the latencies, half of the later
+    // calls are hedged, but every shard is counted once
+    for (int i = 0; i < 500; i++) {
+      Hits hedgedHits = hedgingClient.search(query, indexNames, 10);
+      assertEquals(hits.size(), hedgedHits.size());
+      assertEquals(hits.getHits().size(), hedgedHits.getHits().size());
+    }
+    assertTrue(hedgingClient.getClient().getHedgePolicy().getHedgedCalls() > 0);
+    hedgingClient.close();
+    client.close();
+  }
+
+  @Test
+  public void testDocFreqCacheInvalidatedOnRedeploy() throws Exception {
+    ClientConfiguration clientConfiguration = new ClientConfiguration();
+    clientConfiguration.setProperty(LuceneClient.CONF_KEY_DOC_FREQ_CACHE_ENABLED, "true");
+    final LuceneClient cachingClient = new LuceneClient(new BasicNodeSelectionPolicy(),
+            _clusterRule.getZkConfiguration(), clientConfiguration);
+    ILuceneClient client = new LuceneClient(_clusterRule.getZkConfiguration());
+    IDeployClient deployClient = new DeployClient(_clusterRule.getCluster().getProtocol());
+    final Query query = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer()).parse("foo: bar");
+    final String[] indexNames = new String[] { "redeployIndex" };
+    final List<String> indices = Arrays.asList(indexNames);
+    final List<Term> terms = Arrays.asList(new Term("foo", "bar"));
+    Callable<Boolean> indexSearchable = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return cachingClient.getClient().getIndices().contains("redeployIndex");
+      }
+    };
+
+    File index = createRedeployIndex("redeployIndex1", 1);
+    deployClient.addIndex("redeployIndex", index.getAbsolutePath(), 1).joinDeployment();
+    TestUtil.waitUntil(true, indexSearchable, TimeUnit.SECONDS, 10);
+    cachingClient.search(query, indexNames, 10);
+    assertTrue(cachingClient.getDocFreqCache().contains(indices, terms));
+
+    // the statistics of the removed index must not be used for the new one
+    IndexMetaData indexMD = _clusterRule.getCluster().getProtocol().getIndexMD("redeployIndex");
+    deployClient.removeIndex("redeployIndex");
+    TestUtil.waitUntilShardsUndeployed(_clusterRule.getCluster().getProtocol(), indexMD);
+    TestUtil.waitUntil(false, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return cachingClient.getDocFreqCache().contains(indices, terms);
+      }
+    }, TimeUnit.SECONDS, 10);
+
+    index = createRedeployIndex("redeployIndex2", 10);
+    deployClient.addIndex("redeployIndex", index.getAbsolutePath(), 1).joinDeployment();
+    TestUtil.waitUntil(true, indexSearchable, TimeUnit.SECONDS, 10);
+    // the first search fetches the statistics, the second one uses them
+    cachingClient.search(query, indexNames, 10);
+    Hits cachedHits = cachingClient.search(query, indexNames, 10);
+    Hits hits = client.search(query, indexNames, 10);
+    assertEquals(1, hits.size());
+    assertEquals(1, cachedHits.size());
+    assertEquals(hits.getHits().get(0).getScore(), cachedHits.getHits().get(0).getScore(), 0.0001);
+    cachingClient.close();
+    client.close();
+  }
+
+  private File createRedeployIndex(String name, int docCount) throws IOException {
+    File index = _temporaryFolder.newFolder(name);
+    IndexWriter indexWriter = new IndexWriter(FSDirectory.open(new File(index, "shard")), createIndexWriter());
+    for (int i = 0; i < docCount; i++) {
+      Document document = new Document();
+      document.add(new Field("foo", i == 0 ? "bar" : "baz", Store.NO, Index.NOT_ANALYZED));
+      indexWriter.addDocument(document);
+    }
+    indexWriter.close();
+    return index;
+  }
+
   @Test
   public void testKatta20SearchLimitMaxNumberOfHits() throws Exception {
     deployTestIndices(1, _clusterRule.getNodeCount());
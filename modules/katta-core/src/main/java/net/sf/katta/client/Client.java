@@ -26,6 +26,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import net.sf.katta.protocol.ConnectedComponent;
@@ -44,13 +52,17 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.ipc.VersionedProtocol;
 import org.apache.log4j.Logger;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class Client implements ConnectedComponent {
 
   protected final static Logger LOG = Logger.getLogger(Client.class);
   private static final String[] ALL_INDICES = new String[] { "*" };
+  private static final int HEDGE_LATENCY_WINDOW_SIZE = 1000;
 
   protected final Set<String> _indicesToWatch = new HashSet<String>();
   protected final Map<String, List<String>> _indexToShards = new ConcurrentHashMap<String, List<String>>();
+  private final List<IAddRemoveListener> _indexListeners = new CopyOnWriteArrayList<IAddRemoveListener>();
 
   protected final INodeSelectionPolicy _selectionPolicy;
   private long _queryCount = 0;
@@ -58,6 +70,9 @@ public class Client implements ConnectedComponent {
 
   private final ClientConfiguration _clientConfiguration;
   private final int _maxTryCount;
+  private final ThreadPoolExecutor _nodeInteractionExecutor;
+  private final ScheduledExecutorService _timer;
+  private final HedgePolicy _hedgePolicy;
   protected InteractionProtocol _protocol;
   private INodeProxyManager _proxyManager;
 
@@ -104,6 +119,25 @@ public class Client implements ConnectedComponent {
     _protocol = protocol;
     _clientConfiguration = clientConfiguration;
     _maxTryCount = _clientConfiguration.getInt(ClientConfiguration.CLIENT_NODE_INTERACTION_MAXTRYCOUNT);
+    _nodeInteractionExecutor = createNodeInteractionExecutor(
+            _clientConfiguration.getInt(ClientConfiguration.CLIENT_NODE_INTERACTION_MAXTHREADS),
+            _clientConfiguration.getInt(ClientConfiguration.CLIENT_NODE_INTERACTION_QUEUESIZE));
+    _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "katta-client-timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (_clientConfiguration.getBoolean(ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGING, false)) {
+      _hedgePolicy = new HedgePolicy(_clientConfiguration.getFloat(
+              ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGE_PERCENTILE, 0.95f), _clientConfiguration
+              .getInt(ClientConfiguration.CLIENT_NODE_INTERACTION_HEDGE_MINDELAY), HEDGE_LATENCY_WINDOW_SIZE);
+      LOG.info(_hedgePolicy);
+    } else {
+      _hedgePolicy = null;
+    }
 
     List<String> indexList = _protocol.registerChildListener(this, PathDef.INDICES_METADATA, new IAddRemoveListener() {
       @Override
@@ -126,6 +160,46 @@ public class Client implements ConnectedComponent {
     _startupTime = System.currentTimeMillis();
   }
 
+  /**
+   * Creates the executor of the node calls of all requests. Other than a
+   * common bounded pool it starts a new thread for every call until maxThreads
+   * threads exist, and only then queues calls. Idle threads are stopped after
+   * a minute. If the queue is full, further calls are rejected and fail
+   * instead of being run by the submitting thread, which could be the timer or
+   * a callback of an asynchronous search.
+   */
+  private static ThreadPoolExecutor createNodeInteractionExecutor(int maxThreads, int queueSize) {
+    final AtomicInteger threadCounter = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "katta-client-node-interaction-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return the policy deciding when node calls are hedged, or null if hedging
+   *         is disabled (see
+   *         {@link ClientConfiguration#CLIENT_NODE_INTERACTION_HEDGING})
+   */
+  public HedgePolicy getHedgePolicy() {
+    return _hedgePolicy;
+  }
+
+  /**
+   * Registers a listener which is notified when the client starts searching an
+   * index and when it stops searching an index because it was undeployed.
+   */
+  public void addIndexListener(IAddRemoveListener listener) {
+    _indexListeners.add(listener);
+  }
+
   public INodeSelectionPolicy getSelectionPolicy() {
     return _selectionPolicy;
   }
@@ -155,6 +229,9 @@ public class Client implements ConnectedComponent {
         }
         _protocol.unregisterChildListener(this, PathDef.SHARD_TO_NODES, shard);
       }
+      for (IAddRemoveListener listener : _indexListeners) {
+        listener.removed(index);
+      }
     } else {
       if (_indicesToWatch.contains(index)) {
         _protocol.unregisterDataChanges(this, PathDef.INDICES_METADATA, index);
@@ -243,6 +320,9 @@ public class Client implements ConnectedComponent {
       _selectionPolicy.update(shardName, shardNodes);
     }
     _indexToShards.put(indexMD.getName(), shardNames);
+    for (IAddRemoveListener listener : _indexListeners) {
+      listener.added(indexMD.getName());
+    }
   }
 
   protected boolean isIndexSearchable(final IndexMetaData indexMD) {
@@ -291,6 +371,24 @@ public class Client implements ConnectedComponent {
 
   public <T> ClientResult<T> broadcastToIndices(IResultPolicy<T> resultPolicy, Method method, int shardArrayIndex,
           String[] indices, Object... args) throws KattaException {
+    return broadcastInternal(resultPolicy, method, shardArrayIndex, getNodeShardsMapOfIndices(indices), args);
+  }
+
+  /**
+   * Like {@link #broadcastToIndices(IResultPolicy, Method, int, String[], Object...)}
+   * but does not block the calling thread. The returned future completes when
+   * the result policy does not want to wait any longer, callbacks can be
+   * registered with {@link ListenableFuture#addListener(Runnable, java.util.concurrent.Executor)}.
+   * Cancelling the future terminates the call.
+   */
+  public <T> ListenableFuture<ClientResult<T>> broadcastToIndicesAsync(IResultPolicy<T> resultPolicy, Method method,
+          int shardArrayIndex, String[] indices, Object... args) throws KattaException {
+    _queryCount++;
+    WorkQueue<T> workQueue = startBroadcast(method, shardArrayIndex, getNodeShardsMapOfIndices(indices), args);
+    return workQueue.getResultsAsync(resultPolicy, _timer);
+  }
+
+  private Map<String, List<String>> getNodeShardsMapOfIndices(String[] indices) throws KattaException {
     if (indices == null) {
       indices = ALL_INDICES;
     }
@@ -299,7 +397,7 @@ public class Client implements ConnectedComponent {
       throw new KattaException("No shards for indices: "
               + (indices != null ? Arrays.asList(indices).toString() : "null"));
     }
-    return broadcastInternal(resultPolicy, method, shardArrayIndex, nodeShardsMap, args);
+    return nodeShardsMap;
   }
 
   public <T> ClientResult<T> singlecast(long timeout, boolean shutdown, Method method, int shardArrayParamIndex,
@@ -338,6 +436,22 @@ public class Client implements ConnectedComponent {
   private <T> ClientResult<T> broadcastInternal(IResultPolicy<T> resultPolicy, Method method, int shardArrayParamIndex,
           Map<String, List<String>> nodeShardsMap, Object... args) {
     _queryCount++;
+    long start = 0;
+    if (LOG.isDebugEnabled()) {
+      start = System.currentTimeMillis();
+    }
+    WorkQueue<T> workQueue = startBroadcast(method, shardArrayParamIndex, nodeShardsMap, args);
+    ClientResult<T> results = workQueue.getResults(resultPolicy);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("broadcast(%s(%s), %s) took %d msec for %s", method.getName(), args, nodeShardsMap,
+              (System.currentTimeMillis() - start), results != null ? results : "null"));
+    }
+    return results;
+  }
+
+  private <T> WorkQueue<T> startBroadcast(Method method, int shardArrayParamIndex,
+          Map<String, List<String>> nodeShardsMap, Object... args) {
     /*
      * Validate inputs.
      */
@@ -350,7 +464,7 @@ public class Client implements ConnectedComponent {
               + "!");
     }
     for (int i = 0; i < args.length; i++) {
-      if (args[i] != null) {
+      if (args[i] != null && !(args[i] instanceof IShardDependentArgument)) {
         Class<?> from = args[i].getClass();
         Class<?> to = types[i];
         if (!to.isAssignableFrom(from) && !(from.isPrimitive() || to.isPrimitive())) {
@@ -381,10 +495,6 @@ public class Client implements ConnectedComponent {
     /*
      * Make RPC calls to all nodes in parallel.
      */
-    long start = 0;
-    if (LOG.isDebugEnabled()) {
-      start = System.currentTimeMillis();
-    }
     /*
      * We don't know what _selectionPolicy built, and multiple threads may write
      * to map if IO errors occur. This map might be shared across multiple calls
@@ -399,19 +509,16 @@ public class Client implements ConnectedComponent {
     nodeShardsMap = Collections.synchronizedMap(nodeShardMapCopy);
     nodeShardMapCopy = null;
 
-    WorkQueue<T> workQueue = new WorkQueue<T>(_proxyManager, allShards, method, shardArrayParamIndex, args);
+    WorkQueue<T> workQueue = new WorkQueue<T>(_nodeInteractionExecutor, _proxyManager, allShards, method,
+            shardArrayParamIndex, args);
+    if (_hedgePolicy != null) {
+      workQueue.setHedging(_hedgePolicy, _timer);
+    }
 
     for (String node : nodeShardsMap.keySet()) {
       workQueue.execute(node, nodeShardsMap, 1, _maxTryCount);
     }
-
-    ClientResult<T> results = workQueue.getResults(resultPolicy);
-
-    if (LOG.isDebugEnabled()) {
-      LOG.debug(String.format("broadcast(%s(%s), %s) took %d msec for %s", method.getName(), args, nodeShardsMap,
-              (System.currentTimeMillis() - start), results != null ? results : "null"));
-    }
-    return results;
+    return workQueue;
   }
 
   // -------------------- Node management --------------------
@@ -424,23 +531,44 @@ public class Client implements ConnectedComponent {
 
   private Collection<String> getShardsToSearchIn(String[] indexNames) throws KattaException {
     Collection<String> allShards = new HashSet<String>();
+    for (List<String> shardsOfIndex : getIndexToShardsMap(indexNames).values()) {
+      allShards.addAll(shardsOfIndex);
+    }
+    if (allShards.isEmpty()) {
+      throw new KattaException("Index [pattern(s)] '" + Arrays.toString(indexNames)
+              + "' do not match to any deployed index: " + getIndices());
+    }
+    return allShards;
+  }
+
+  /**
+   * Resolves the given index names or index name patterns to the currently
+   * deployed indices.
+   * 
+   * @param indexNames
+   *          index names, regular expressions or "*" for all indices
+   * @return the shards of every matching index, keyed by index name
+   */
+  public Map<String, List<String>> getIndexToShardsMap(String[] indexNames) {
+    Map<String, List<String>> indexToShards = new HashMap<String, List<String>>();
     for (String index : indexNames) {
       if ("*".equals(index)) {
-        for (Collection<String> shardsOfIndex : _indexToShards.values()) {
-          allShards.addAll(shardsOfIndex);
-        }
+        indexToShards.putAll(_indexToShards);
         break;
       }
       List<String> shardsForIndex = _indexToShards.get(index);
       if (shardsForIndex != null) {
-        allShards.addAll(shardsForIndex);
+        indexToShards.put(index, shardsForIndex);
       } else {
         Pattern pattern = Pattern.compile(index);
         int matched = 0;
         for (String ind : _indexToShards.keySet()) {
           if (pattern.matcher(ind).matches()) {
-            allShards.addAll(_indexToShards.get(ind));
-            matched++;
+            List<String> shardsOfIndex = _indexToShards.get(ind);
+            if (shardsOfIndex != null) {
+              indexToShards.put(ind, shardsOfIndex);
+              matched++;
+            }
           }
         }
         if (matched == 0) {
@@ -448,11 +576,11 @@ public class Client implements ConnectedComponent {
         }
       }
     }
-    if (allShards.isEmpty()) {
-      throw new KattaException("Index [pattern(s)] '" + Arrays.toString(indexNames)
-              + "' do not match to any deployed index: " + getIndices());
-    }
-    return allShards;
+    return indexToShards;
+  }
+
+  public ClientConfiguration getClientConfiguration() {
+    return _clientConfiguration;
   }
 
   public double getQueryPerMinute() {
@@ -469,6 +597,8 @@ public class Client implements ConnectedComponent {
       _protocol.disconnect();
       _protocol = null;
       _proxyManager.shutdown();
+      _nodeInteractionExecutor.shutdownNow();
+      _timer.shutdownNow();
     }
   }
 
@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.sf.katta.util.KattaException;
 
@@ -51,6 +52,8 @@ import org.apache.log4j.Logger;
  * report on the number or ratio of shards completed. You can stop the search by
  * calling close(). The ClientResult will no longer change, and any outstanding
  * threads will be killed (via notification to the provided IClosedListener).
+ * Instead of blocking on it, you can register an IChangedListener which is
+ * called whenever results or errors are added or the result is closed.
  */
 public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResult<T>.Entry> {
 
@@ -110,6 +113,18 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
     public void clientResultClosed();
   }
 
+  /**
+   * Provides a way to notify interested parties when results or errors are
+   * added or the result is closed, without blocking a thread on the result.
+   */
+  public interface IChangedListener<T> {
+    /**
+     * A result or an error was added to the ClientResult or it was closed.
+     * Called by the thread which changed the ClientResult.
+     */
+    public void clientResultChanged(ClientResult<T> result);
+  }
+
   private boolean closed = false;
   private final Set<String> allShards;
   private final Set<String> seenShards = new HashSet<String>();
@@ -119,6 +134,7 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
   private final Collection<Throwable> errors = new ArrayList<Throwable>();
   private final long startTime = System.currentTimeMillis();
   private final IClosedListener closedListener;
+  private final List<IChangedListener<T>> changedListeners = new CopyOnWriteArrayList<IChangedListener<T>>();
 
   /**
    * Construct a non-closed ClientResult, which waits for addResults() or
@@ -203,6 +219,7 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
       }
       notifyAll();
     }
+    notifyChangedListeners();
   }
 
   /**
@@ -262,6 +279,7 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
       }
       notifyAll();
     }
+    notifyChangedListeners();
   }
 
   /**
@@ -284,6 +302,7 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
    */
   public synchronized void close() {
     LOG.trace("close() called.");
+    boolean wasClosed = closed;
     if (!closed) {
       closed = true;
       if (closedListener != null) {
@@ -292,6 +311,24 @@ public class ClientResult<T> implements IResultReceiver<T>, Iterable<ClientResul
       }
     }
     notifyAll();
+    if (!wasClosed) {
+      notifyChangedListeners();
+    }
+  }
+
+  /**
+   * Register a listener which is called whenever results or errors are added
+   * or this result is closed. Changes which happened before the registration
+   * are not reported.
+   */
+  public void addChangedListener(IChangedListener<T> listener) {
+    changedListeners.add(listener);
+  }
+
+  private void notifyChangedListeners() {
+    for (IChangedListener<T> listener : changedListeners) {
+      listener.clientResultChanged(this);
+    }
   }
 
   /**
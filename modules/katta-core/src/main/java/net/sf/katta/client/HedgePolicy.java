@@ -0,0 +1,151 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a node call is hedged, that is sent to another replica of its
+ * shards as well because the node did not answer yet. The latencies of the
+ * last successful calls are kept per server method, a call is hedged if it
+ * takes longer than the configured percentile of them. Until enough latencies
+ * of a method are known, its calls are not hedged.
+ */
+public class HedgePolicy {
+
+  private final double _percentile;
+  private final long _minDelay;
+  private final int _windowSize;
+  private final ConcurrentMap<Method, LatencyWindow> _latencies = new ConcurrentHashMap<Method, LatencyWindow>();
+  private final AtomicLong _hedgedCalls = new AtomicLong();
+
+  /**
+   * @param percentile
+   *          the percentile (0.0 .. 1.0) of the latencies after which a call is
+   *          hedged
+   * @param minDelay
+   *          the minimum time in milliseconds before a call is hedged
+   * @param windowSize
+   *          the number of latencies kept per method
+   */
+  public HedgePolicy(double percentile, long minDelay, int windowSize) {
+    if (percentile <= 0.0 || percentile > 1.0) {
+      throw new IllegalArgumentException("percentile must be in (0.0 .. 1.0]: " + percentile);
+    }
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("window size must be positive: " + windowSize);
+    }
+    _percentile = percentile;
+    _minDelay = minDelay;
+    _windowSize = windowSize;
+  }
+
+  /**
+   * Records the time a successful call took from its submission to its result.
+   */
+  public void recordLatency(Method method, long millis) {
+    LatencyWindow window = _latencies.get(method);
+    if (window == null) {
+      LatencyWindow newWindow = new LatencyWindow(_windowSize);
+      window = _latencies.putIfAbsent(method, newWindow);
+      if (window == null) {
+        window = newWindow;
+      }
+    }
+    window.add(millis);
+  }
+
+  /**
+   * @return the time in milliseconds after which a call of the method is
+   *         hedged, or -1 if not enough latencies are known yet
+   */
+  public long getHedgeDelay(Method method) {
+    LatencyWindow window = _latencies.get(method);
+    if (window == null) {
+      return -1;
+    }
+    long percentileLatency = window.getPercentile(_percentile);
+    if (percentileLatency < 0) {
+      return -1;
+    }
+    return Math.max(_minDelay, percentileLatency);
+  }
+
+  void hedged() {
+    _hedgedCalls.incrementAndGet();
+  }
+
+  /**
+   * @return the number of calls sent to another replica
+   */
+  public long getHedgedCalls() {
+    return _hedgedCalls.get();
+  }
+
+  @Override
+  public String toString() {
+    return "Hedge calls after the " + _percentile + " percentile of the last " + _windowSize + " latencies, at least "
+            + _minDelay + " ms";
+  }
+
+  /**
+   * The last latencies of a method. The percentile is computed again only after
+   * a tenth of the window was replaced, not for every call.
+   */
+  private static class LatencyWindow {
+
+    private final long[] _values;
+    private final int _minValues;
+    private final int _recomputeInterval;
+    private int _count;
+    private int _next;
+    private int _addedSinceComputed;
+    private long _computed = -1;
+
+    public LatencyWindow(int size) {
+      _values = new long[size];
+      _recomputeInterval = Math.max(1, size / 10);
+      _minValues = _recomputeInterval;
+    }
+
+    public synchronized void add(long value) {
+      _values[_next] = value;
+      _next = (_next + 1) % _values.length;
+      if (_count < _values.length) {
+        _count++;
+      }
+      _addedSinceComputed++;
+    }
+
+    public synchronized long getPercentile(double percentile) {
+      if (_count < _minValues) {
+        return -1;
+      }
+      if (_computed < 0 || _addedSinceComputed >= _recomputeInterval) {
+        long[] sorted = Arrays.copyOf(_values, _count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * _count) - 1;
+        _computed = sorted[Math.max(0, Math.min(index, _count - 1))];
+        _addedSinceComputed = 0;
+      }
+      return _computed;
+    }
+  }
+}
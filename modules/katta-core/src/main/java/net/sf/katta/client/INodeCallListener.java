@@ -0,0 +1,56 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+/**
+ * Implemented by an {@link INodeSelectionPolicy} which wants to know the
+ * outcome of every call to a node, e.g. to prefer fast nodes. The
+ * {@link NodeProxyManager} reports the calls of its node interactions to its
+ * selection policy if it implements this interface.
+ * <p>
+ * Every {@link #nodeCallStarted(String)} is followed by exactly one
+ * {@link #nodeCallSucceeded(String, long)}, {@link #nodeCallFailed(String)} or
+ * {@link #nodeCallCancelled(String)} for the same node.
+ */
+public interface INodeCallListener {
+
+  /**
+   * A call to the node is started.
+   */
+  void nodeCallStarted(String node);
+
+  /**
+   * A call to the node returned a result.
+   *
+   * @param time
+   *          the time in milliseconds the call took
+   */
+  void nodeCallSucceeded(String node, long time);
+
+  /**
+   * A call to the node failed, or the node rejected it because it is
+   * overloaded.
+   */
+  void nodeCallFailed(String node);
+
+  /**
+   * A call to the node was interrupted because its result was not needed
+   * anymore, e.g. since another replica answered first. Says nothing about the
+   * node.
+   */
+  void nodeCallCancelled(String node);
+
+}
@@ -37,6 +37,14 @@ public interface INodeProxyManager {
    */
   public VersionedProtocol getProxy(String node, boolean establishIfNoExists);
 
+  /**
+   * Notifies the proxy-manager that a proxy invocation is started. It is
+   * followed by exactly one success, failure or cancel notification.
+   * 
+   * @param node
+   */
+  public void reportNodeCommunicationStart(String node);
+
   /**
    * Notifies the proxy-manager that a a proxy invocation failed.
    * 
@@ -47,12 +55,22 @@ public interface INodeProxyManager {
    */
   public void reportNodeCommunicationFailure(String node, Throwable t);
 
+  /**
+   * Notifies the proxy-manager that a proxy invocation was interrupted because
+   * its result is not needed anymore. This is not a failure of the node.
+   * 
+   * @param node
+   */
+  public void reportNodeCommunicationCancelled(String node);
+
   /**
    * Notifies the proxy-manager that a a proxy invocation succeeded.
    * 
    * @param node
+   * @param time
+   *          the time in milliseconds the invocation took.
    */
-  public void reportNodeCommunicationSuccess(String node);
+  public void reportNodeCommunicationSuccess(String node, long time);
 
   /**
    * After an error the NodeInteraction computes a reduced node shard map, but
@@ -70,6 +88,21 @@ public interface INodeProxyManager {
    */
   public Map<String, List<String>> createNode2ShardsMap(Collection<String> shards) throws ShardAccessException;
 
+  /**
+   * Selects a node other than the given one which serves all the shards. Used
+   * to hedge a call to a slow node on a single other replica, so the hedge and
+   * the slow call answer the same shards.
+   * 
+   * @param shards
+   *          the shards the slow node did not answer yet.
+   * @param excludedNode
+   *          the node not to select.
+   * @return A node serving all the shards, or null if there is none.
+   * @throws ShardAccessException
+   *           if the node selection policy had an error.
+   */
+  public String selectNodeServingAll(Collection<String> shards, String excludedNode) throws ShardAccessException;
+
   public void shutdown();
 
 }
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import java.util.Collection;
+
+/**
+ * An argument of a node call whose value depends on the shards the call is
+ * sent for. The {@link NodeInteraction} replaces it with its value for the
+ * shards of the node, so every node gets only the data of its own shards
+ * instead of the data of all nodes.
+ */
+public interface IShardDependentArgument {
+
+  /**
+   * @return the argument to send to a node for the given shards
+   */
+  Object getValue(Collection<String> shards);
+
+}
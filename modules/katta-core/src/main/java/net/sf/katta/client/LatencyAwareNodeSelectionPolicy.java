@@ -0,0 +1,266 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.katta.util.One2ManyListMap;
+
+/**
+ * Node selection policy which prefers the replicas answering fastest. For
+ * every node the exponentially weighted moving average (EWMA) of the call
+ * latencies and the number of calls in flight are tracked. The cost of a node
+ * is its average latency multiplied by its calls in flight plus one. For every
+ * shard two of its replicas are chosen randomly and the cheaper one is
+ * selected (power of two choices), so load is spread over all good replicas
+ * instead of flooding the single fastest one.
+ * <p>
+ * A failed or rejected call doubles the average latency of the node, at least
+ * to {@link #FAILURE_PENALTY} ms, a cancelled call does not change it. The
+ * average decays while a node is not called, so slow nodes are tried again
+ * after a while. Nodes without known latency are preferred until their first
+ * call returned.
+ */
+public class LatencyAwareNodeSelectionPolicy implements INodeSelectionPolicy, INodeCallListener {
+
+  /** the minimum average latency in ms of a node after a failed call */
+  public static final long FAILURE_PENALTY = 1000;
+
+  private final Map<String, List<String>> _shardsToNodeMap = new ConcurrentHashMap<String, List<String>>();
+  private final ConcurrentMap<String, NodeStatistics> _nodeStatistics = new ConcurrentHashMap<String, NodeStatistics>();
+  private final Random _random = new Random();
+  private final double _alpha;
+  private final long _decayTime;
+
+  /**
+   * Weights a new latency with 0.3 and halves the average latency of an unused
+   * node in about 7 seconds.
+   */
+  public LatencyAwareNodeSelectionPolicy() {
+    this(0.3, 10000);
+  }
+
+  /**
+   * @param alpha
+   *          the weight (0.0 .. 1.0) of a new latency in the average
+   * @param decayTime
+   *          the time in milliseconds after which the average latency of a
+   *          node which is not called anymore decayed to 1/e
+   */
+  public LatencyAwareNodeSelectionPolicy(double alpha, long decayTime) {
+    if (alpha <= 0.0 || alpha > 1.0) {
+      throw new IllegalArgumentException("alpha must be in (0.0 .. 1.0]: " + alpha);
+    }
+    if (decayTime <= 0) {
+      throw new IllegalArgumentException("decay time must be positive: " + decayTime);
+    }
+    _alpha = alpha;
+    _decayTime = decayTime;
+  }
+
+  @Override
+  public void update(String shard, Collection<String> nodes) {
+    _shardsToNodeMap.put(shard, Collections.unmodifiableList(new ArrayList<String>(nodes)));
+  }
+
+  @Override
+  public Collection<String> getShardNodes(String shard) throws ShardAccessException {
+    List<String> nodes = _shardsToNodeMap.get(shard);
+    if (nodes == null) {
+      throw new ShardAccessException(shard);
+    }
+    return nodes;
+  }
+
+  @Override
+  public List<String> remove(String shard) throws ShardAccessException {
+    List<String> nodes = _shardsToNodeMap.remove(shard);
+    if (nodes == null) {
+      throw new ShardAccessException(shard);
+    }
+    return nodes;
+  }
+
+  @Override
+  public void removeNode(String node) {
+    for (Map.Entry<String, List<String>> entry : _shardsToNodeMap.entrySet()) {
+      if (entry.getValue().contains(node)) {
+        List<String> nodes = new ArrayList<String>(entry.getValue());
+        nodes.remove(node);
+        entry.setValue(Collections.unmodifiableList(nodes));
+      }
+    }
+  }
+
+  @Override
+  public Map<String, List<String>> createNode2ShardsMap(Collection<String> shards) throws ShardAccessException {
+    One2ManyListMap<String, String> node2ShardsMap = new One2ManyListMap<String, String>();
+    long now = System.currentTimeMillis();
+    for (String shard : shards) {
+      List<String> nodes = _shardsToNodeMap.get(shard);
+      if (nodes == null) {
+        // no entry in the map means the shard is undeployed/never was deployed
+        continue;
+      }
+      if (nodes.isEmpty()) {
+        // vs. empty entry in the map means the shard was deployed, but now is
+        // inaccessible
+        throw new ShardAccessException(shard);
+      }
+      node2ShardsMap.add(selectNode(nodes, now), shard);
+    }
+    return node2ShardsMap.asMap();
+  }
+
+  private String selectNode(List<String> nodes, long now) {
+    int count = nodes.size();
+    if (count == 1) {
+      return nodes.get(0);
+    }
+    int first = _random.nextInt(count);
+    int second = _random.nextInt(count - 1);
+    if (second >= first) {
+      second++;
+    }
+    String firstNode = nodes.get(first);
+    String secondNode = nodes.get(second);
+    return getCost(firstNode, now) <= getCost(secondNode, now) ? firstNode : secondNode;
+  }
+
+  private double getCost(String node, long now) {
+    NodeStatistics statistics = _nodeStatistics.get(node);
+    return statistics != null ? statistics.getCost(now) : 0;
+  }
+
+  @Override
+  public void nodeCallStarted(String node) {
+    getStatistics(node).callStarted();
+  }
+
+  @Override
+  public void nodeCallSucceeded(String node, long time) {
+    getStatistics(node).callSucceeded(time, System.currentTimeMillis());
+  }
+
+  @Override
+  public void nodeCallFailed(String node) {
+    getStatistics(node).callFailed(System.currentTimeMillis());
+  }
+
+  @Override
+  public void nodeCallCancelled(String node) {
+    getStatistics(node).callFinished();
+  }
+
+  private NodeStatistics getStatistics(String node) {
+    NodeStatistics statistics = _nodeStatistics.get(node);
+    if (statistics == null) {
+      NodeStatistics newStatistics = new NodeStatistics();
+      statistics = _nodeStatistics.putIfAbsent(node, newStatistics);
+      if (statistics == null) {
+        statistics = newStatistics;
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * @return the average latency of the node in ms, decayed to now, or -1 if
+   *         unknown
+   */
+  public double getLatency(String node) {
+    NodeStatistics statistics = _nodeStatistics.get(node);
+    return statistics != null ? statistics.getLatency(System.currentTimeMillis()) : -1;
+  }
+
+  /**
+   * @return the number of calls to the node which did not return yet
+   */
+  public int getCallsInFlight(String node) {
+    NodeStatistics statistics = _nodeStatistics.get(node);
+    return statistics != null ? statistics._callsInFlight.get() : 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("LatencyAwareNodeSelectionPolicy: ");
+    String sep = "";
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, NodeStatistics> e : _nodeStatistics.entrySet()) {
+      builder.append(sep);
+      builder.append(e.getKey());
+      builder.append(String.format(" %.1f ms/%d in flight", e.getValue().getLatency(now),
+              e.getValue()._callsInFlight.get()));
+      sep = ", ";
+    }
+    return builder.toString();
+  }
+
+  private class NodeStatistics {
+
+    private final AtomicInteger _callsInFlight = new AtomicInteger();
+    private double _latency = -1;
+    private long _lastUpdate;
+
+    public void callStarted() {
+      _callsInFlight.incrementAndGet();
+    }
+
+    public synchronized void callSucceeded(long time, long now) {
+      callFinished();
+      double latency = getLatency(now);
+      _latency = latency < 0 ? time : _alpha * time + (1 - _alpha) * latency;
+      _lastUpdate = now;
+    }
+
+    public synchronized void callFailed(long now) {
+      callFinished();
+      _latency = Math.max(2 * getLatency(now), FAILURE_PENALTY);
+      _lastUpdate = now;
+    }
+
+    public void callFinished() {
+      int callsInFlight;
+      do {
+        callsInFlight = _callsInFlight.get();
+      } while (callsInFlight > 0 && !_callsInFlight.compareAndSet(callsInFlight, callsInFlight - 1));
+    }
+
+    public synchronized double getLatency(long now) {
+      if (_latency < 0) {
+        return -1;
+      }
+      return _latency * Math.exp(-(double) (now - _lastUpdate) / _decayTime);
+    }
+
+    public double getCost(long now) {
+      double latency = getLatency(now);
+      if (latency < 0) {
+        return 0;
+      }
+      return latency * (_callsInFlight.get() + 1);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.katta.util.One2ManyListMap;
+
+/**
+ * Node selection policy which covers the requested shards with as few nodes as
+ * possible, so a request needs less node calls. The nodes are selected
+ * greedily: the node serving most of the not yet covered shards is taken
+ * until all shards are covered. Of nodes serving equally many of them, the one
+ * which got the least shards assigned so far is taken, so the load is spread
+ * over the replicas across requests. A node joining or rejoining the cluster
+ * starts with the count of the least loaded node.
+ * <p>
+ * Other than with {@link ShuffleNodeSelectionPolicy} a single request is not
+ * spread over all replicas. With a high replication level a request is
+ * therefore executed by few nodes doing more work each.
+ */
+public class MinimalFanOutNodeSelectionPolicy implements INodeSelectionPolicy {
+
+  private final Map<String, List<String>> _shardsToNodeMap = new ConcurrentHashMap<String, List<String>>();
+  private final ConcurrentMap<String, AtomicLong> _assignedShards = new ConcurrentHashMap<String, AtomicLong>();
+
+  @Override
+  public void update(String shard, Collection<String> nodes) {
+    _shardsToNodeMap.put(shard, Collections.unmodifiableList(new ArrayList<String>(nodes)));
+  }
+
+  @Override
+  public Collection<String> getShardNodes(String shard) throws ShardAccessException {
+    List<String> nodes = _shardsToNodeMap.get(shard);
+    if (nodes == null) {
+      throw new ShardAccessException(shard);
+    }
+    return nodes;
+  }
+
+  @Override
+  public List<String> remove(String shard) throws ShardAccessException {
+    List<String> nodes = _shardsToNodeMap.remove(shard);
+    if (nodes == null) {
+      throw new ShardAccessException(shard);
+    }
+    return nodes;
+  }
+
+  @Override
+  public void removeNode(String node) {
+    for (Map.Entry<String, List<String>> entry : _shardsToNodeMap.entrySet()) {
+      if (entry.getValue().contains(node)) {
+        List<String> nodes = new ArrayList<String>(entry.getValue());
+        nodes.remove(node);
+        entry.setValue(Collections.unmodifiableList(nodes));
+      }
+    }
+    _assignedShards.remove(node);
+  }
+
+  @Override
+  public Map<String, List<String>> createNode2ShardsMap(Collection<String> shards) throws ShardAccessException {
+    // the requested shards every node serves
+    Map<String, List<String>> nodeToShardsMap = new LinkedHashMap<String, List<String>>();
+    Set<String> uncoveredShards = new LinkedHashSet<String>();
+    for (String shard : shards) {
+      List<String> nodes = _shardsToNodeMap.get(shard);
+      if (nodes == null) {
+        // no entry in the map means the shard is undeployed/never was deployed
+        continue;
+      }
+      if (nodes.isEmpty()) {
+        // vs. empty entry in the map means the shard was deployed, but now is
+        // inaccessible
+        throw new ShardAccessException(shard);
+      }
+      if (!uncoveredShards.add(shard)) {
+        continue;
+      }
+      for (String node : nodes) {
+        List<String> nodeShards = nodeToShardsMap.get(node);
+        if (nodeShards == null) {
+          nodeShards = new ArrayList<String>();
+          nodeToShardsMap.put(node, nodeShards);
+        }
+        nodeShards.add(shard);
+      }
+    }
+
+    One2ManyListMap<String, String> node2ShardsMap = new One2ManyListMap<String, String>();
+    while (!uncoveredShards.isEmpty()) {
+      String bestNode = null;
+      int bestCoverage = 0;
+      long bestLoad = 0;
+      for (Map.Entry<String, List<String>> entry : nodeToShardsMap.entrySet()) {
+        int coverage = 0;
+        for (String shard : entry.getValue()) {
+          if (uncoveredShards.contains(shard)) {
+            coverage++;
+          }
+        }
+        if (coverage == 0 || coverage < bestCoverage) {
+          continue;
+        }
+        long load = getAssignedShards(entry.getKey()).get();
+        if (coverage > bestCoverage || load < bestLoad) {
+          bestNode = entry.getKey();
+          bestCoverage = coverage;
+          bestLoad = load;
+        }
+      }
+      for (String shard : nodeToShardsMap.remove(bestNode)) {
+        if (uncoveredShards.remove(shard)) {
+          node2ShardsMap.add(bestNode, shard);
+        }
+      }
+      getAssignedShards(bestNode).addAndGet(bestCoverage);
+    }
+    return node2ShardsMap.asMap();
+  }
+
+  private AtomicLong getAssignedShards(String node) {
+    AtomicLong assignedShards = _assignedShards.get(node);
+    if (assignedShards == null) {
+      // a new node starts at the least loaded node, not at 0, else it would win
+      // every tie until it caught up with the other nodes
+      long minAssignedShards = Long.MAX_VALUE;
+      for (AtomicLong otherAssignedShards : _assignedShards.values()) {
+        minAssignedShards = Math.min(minAssignedShards, otherAssignedShards.get());
+      }
+      AtomicLong newAssignedShards = new AtomicLong(minAssignedShards != Long.MAX_VALUE ? minAssignedShards : 0);
+      assignedShards = _assignedShards.putIfAbsent(node, newAssignedShards);
+      if (assignedShards == null) {
+        assignedShards = newAssignedShards;
+      }
+    }
+    return assignedShards;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("MinimalFanOutNodeSelectionPolicy: ");
+    String sep = "";
+    for (Map.Entry<String, List<String>> e : _shardsToNodeMap.entrySet()) {
+      builder.append(sep);
+      builder.append(e.getKey());
+      builder.append(" --> ");
+      builder.append(e.getValue());
+      sep = " ";
+    }
+    return builder.toString();
+  }
+
+}
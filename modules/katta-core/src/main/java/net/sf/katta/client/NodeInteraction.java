@@ -15,8 +15,11 @@
  */
 package net.sf.katta.client;
 
+import java.io.InterruptedIOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -114,6 +117,10 @@ class NodeInteraction<T> implements Runnable {
   @SuppressWarnings("unchecked")
   public void run() {
     String methodDesc = null;
+    T result;
+    long time;
+    _shardManager.reportNodeCommunicationStart(_node);
+    long startTime = System.currentTimeMillis();
     try {
       VersionedProtocol proxy = _shardManager.getProxy(_node, false);
       if (proxy == null) {
@@ -123,56 +130,93 @@ class NodeInteraction<T> implements Runnable {
         // We need to pass the list of shards to the server's method.
         _args[_shardArrayIndex] = _shards.toArray(new String[_shards.size()]);
       }
-      long startTime = 0;
+      for (int i = 0; i < _args.length; i++) {
+        if (_args[i] instanceof IShardDependentArgument) {
+          _args[i] = ((IShardDependentArgument) _args[i]).getValue(_shards);
+        }
+      }
       if (LOG.isTraceEnabled()) {
         methodDesc = describeMethodCall(_method, _args, _node);
         LOG.trace(String.format("About to invoke %s using proxy %s (id=%d)", methodDesc, Proxy
                 .getInvocationHandler(proxy), instanceId));
-        startTime = System.currentTimeMillis();
       }
-      T result = (T) _method.invoke(proxy, _args);
-      _shardManager.reportNodeCommunicationSuccess(_node);
-      if (LOG.isTraceEnabled()) {
-        LOG.trace(String.format("Calling %s returned %s, took %d msec (id=%d)", methodDesc, resultToString(result),
-                (System.currentTimeMillis() - startTime), instanceId));
-        String methodDesc2 = describeMethodCall(_method, _args, _node);
-        if (!methodDesc.equals(methodDesc2)) {
-          LOG.error(String.format("Method call changed from %s to %s (id=%d)", methodDesc, methodDesc2, instanceId));
+      result = (T) _method.invoke(proxy, _args);
+      time = System.currentTimeMillis() - startTime;
+    } catch (Throwable t) {
+      if (isInterrupted(t)) {
+        // cancelled by the work queue, says nothing about the node
+        _shardManager.reportNodeCommunicationCancelled(_node);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(String.format("Call to %s for shards %s interrupted (id=%d)", _node, _shards, instanceId));
         }
+        return;
       }
-      _result.addResult(result, _shards);
-    } catch (Throwable t) {
       // Notify the work queue, so it can mark the node as down.
       _shardManager.reportNodeCommunicationFailure(_node, t);
-      if (_tryCount >= _maxTryCount) {
-        LOG.error(String.format("Error calling %s (try # %d of %d) (id=%d)", (methodDesc != null ? methodDesc : _method
-                + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
-        _result.addError(new KattaException(String.format("%s for shards %s failed (id=%d)",
-                getClass().getSimpleName(), _shards, instanceId), t), _shards);
-        return;
+      handleFailure(t, methodDesc);
+      return;
+    }
+    _shardManager.reportNodeCommunicationSuccess(_node, time);
+    if (LOG.isTraceEnabled()) {
+      LOG.trace(String.format("Calling %s returned %s, took %d msec (id=%d)", methodDesc, resultToString(result),
+              time, instanceId));
+      String methodDesc2 = describeMethodCall(_method, _args, _node);
+      if (!methodDesc.equals(methodDesc2)) {
+        LOG.error(String.format("Method call changed from %s to %s (id=%d)", methodDesc, methodDesc2, instanceId));
       }
-      if (!_result.isClosed()) {
-        try {
-          // Find new node(s) for our shards and add to global node2ShardMap
-          Map<String, List<String>> retryMap = _shardManager.createNode2ShardsMap(_node2ShardsMap.get(_node));
-          LOG.warn(String.format("Failed to interact with node %s. Trying with other node(s) %s (id=%d)", _node,
-                  retryMap.keySet(), instanceId), t);
-          // Execute the action again for every node
-          for (String newNode : retryMap.keySet()) {
-            _workQueue.execute(newNode, retryMap, _tryCount + 1, _maxTryCount);
-          }
-        } catch (ShardAccessException e) {
-          LOG.error(String.format("Error calling %s (try # %d of %d) (id=%d)", (methodDesc != null ? methodDesc
-                  : _method + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
-          _result.addError(e, _shards);
+    }
+    _result.addResult(result, _shards);
+  }
+
+  private void handleFailure(Throwable t, String methodDesc) {
+    if (_tryCount >= _maxTryCount) {
+      LOG.error(String.format("Error calling %s (try # %d of %d) (id=%d)", (methodDesc != null ? methodDesc : _method
+              + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
+      _result.addError(new KattaException(String.format("%s for shards %s failed (id=%d)",
+              getClass().getSimpleName(), _shards, instanceId), t), _shards);
+      return;
+    }
+    if (!_result.isClosed()) {
+      try {
+        // Find new node(s) for our shards and add to global node2ShardMap
+        Map<String, List<String>> retryMap = _shardManager.createNode2ShardsMap(_node2ShardsMap.get(_node));
+        LOG.warn(String.format("Failed to interact with node %s. Trying with other node(s) %s (id=%d)", _node,
+                retryMap.keySet(), instanceId), t);
+        // Execute the action again for every node
+        for (String newNode : retryMap.keySet()) {
+          _workQueue.execute(newNode, retryMap, _tryCount + 1, _maxTryCount);
         }
-      } else {
-          LOG.error(String.format("Error after results closed for call to %s (try # %d of %d; giving up) (id=%d)",
-                  (methodDesc != null ? methodDesc: _method + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
+      } catch (ShardAccessException e) {
+        LOG.error(String.format("Error calling %s (try # %d of %d) (id=%d)", (methodDesc != null ? methodDesc
+                : _method + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
+        _result.addError(e, _shards);
+      }
+    } else {
+        LOG.error(String.format("Error after results closed for call to %s (try # %d of %d; giving up) (id=%d)",
+                (methodDesc != null ? methodDesc: _method + " on " + _node), _tryCount, _maxTryCount, instanceId), t);
+    }
+    // We have no results to report. Submitted jobs will hopefully get results
+    // instead.
+  }
+
+  /**
+   * The work queue interrupts calls it does not need anymore, e.g. because
+   * the result policy completed. Depending on where the interrupt hit, the RPC
+   * call fails with the interrupt flag set or with one of these exceptions. A
+   * timeout of the RPC call is a failure though.
+   */
+  private static boolean isInterrupted(Throwable t) {
+    if (Thread.currentThread().isInterrupted()) {
+      return true;
+    }
+    while (t != null) {
+      if (t instanceof InterruptedException || t instanceof ClosedByInterruptException
+              || (t instanceof InterruptedIOException && !(t instanceof SocketTimeoutException))) {
+        return true;
       }
-      // We have no results to report. Submitted jobs will hopefully get results
-      // instead.
+      t = t.getCause();
     }
+    return false;
   }
 
   private String describeMethodCall(Method method, Object[] args, String nodeName) {
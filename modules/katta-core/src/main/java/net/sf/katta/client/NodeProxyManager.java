@@ -20,11 +20,15 @@ import java.io.IOException;
 import java.lang.reflect.Proxy;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
+import net.sf.katta.node.NodeOverloadedException;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.ipc.VersionedProtocol;
@@ -40,6 +44,7 @@ public class NodeProxyManager implements INodeProxyManager {
   private final Configuration _hadoopConf;
   private final Map<String, VersionedProtocol> _node2ProxyMap = new ConcurrentHashMap<String, VersionedProtocol>();
   private final INodeSelectionPolicy _selectionPolicy;
+  private final Random _random = new Random();
 
   private int _successiveProxyFailuresBeforeReestablishing = 3;
   private final Multiset<String> _failedNodeInteractions = HashMultiset.create();
@@ -104,6 +109,33 @@ public class NodeProxyManager implements INodeProxyManager {
     return _selectionPolicy.createNode2ShardsMap(shards);
   }
 
+  /**
+   * Asks the node selection policy first, so its load balancing applies. If it
+   * spreads the shards over several nodes or selects the excluded node, a
+   * random node serving all shards is taken.
+   */
+  @Override
+  public String selectNodeServingAll(Collection<String> shards, String excludedNode) throws ShardAccessException {
+    Map<String, List<String>> node2ShardsMap = _selectionPolicy.createNode2ShardsMap(shards);
+    if (node2ShardsMap.size() == 1 && !node2ShardsMap.containsKey(excludedNode)) {
+      return node2ShardsMap.keySet().iterator().next();
+    }
+    List<String> candidates = null;
+    for (String shard : shards) {
+      Collection<String> shardNodes = _selectionPolicy.getShardNodes(shard);
+      if (candidates == null) {
+        candidates = new ArrayList<String>(shardNodes);
+        candidates.remove(excludedNode);
+      } else {
+        candidates.retainAll(shardNodes);
+      }
+    }
+    if (candidates == null || candidates.isEmpty()) {
+      return null;
+    }
+    return candidates.get(_random.nextInt(candidates.size()));
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public void reportNodeCommunicationFailure(String nodeName, Throwable t) {
@@ -111,6 +143,15 @@ public class NodeProxyManager implements INodeProxyManager {
     // re-establishing it would fix the communication. If so, we should check
     // the for the exception which occurs in such cases and re-establish the
     // proxy.
+    if (_selectionPolicy instanceof INodeCallListener) {
+      ((INodeCallListener) _selectionPolicy).nodeCallFailed(nodeName);
+    }
+    if (NodeOverloadedException.isCausedBy(t)) {
+      // the node is alive but rejected the request, it is retried on another
+      // replica without counting against the node
+      LOG.debug("node '" + nodeName + "' rejected a request because it is overloaded");
+      return;
+    }
     _failedNodeInteractions.add(nodeName);
     int failureCount = _failedNodeInteractions.count(nodeName);
     if (failureCount >= _successiveProxyFailuresBeforeReestablishing
@@ -144,7 +185,24 @@ public class NodeProxyManager implements INodeProxyManager {
   }
 
   @Override
-  public void reportNodeCommunicationSuccess(String node) {
+  public void reportNodeCommunicationStart(String node) {
+    if (_selectionPolicy instanceof INodeCallListener) {
+      ((INodeCallListener) _selectionPolicy).nodeCallStarted(node);
+    }
+  }
+
+  @Override
+  public void reportNodeCommunicationCancelled(String node) {
+    if (_selectionPolicy instanceof INodeCallListener) {
+      ((INodeCallListener) _selectionPolicy).nodeCallCancelled(node);
+    }
+  }
+
+  @Override
+  public void reportNodeCommunicationSuccess(String node, long time) {
+    if (_selectionPolicy instanceof INodeCallListener) {
+      ((INodeCallListener) _selectionPolicy).nodeCallSucceeded(node, time);
+    }
     _failedNodeInteractions.remove(node, Integer.MAX_VALUE);
   }
 
@@ -16,24 +16,48 @@
 package net.sf.katta.client;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import net.sf.katta.client.ClientResult.IChangedListener;
 import net.sf.katta.client.ClientResult.IClosedListener;
+import net.sf.katta.util.KattaException;
 
 import org.apache.log4j.Logger;
 
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * This class manages the multiple NodeInteraction threads for a call.
  * The initial node interactions and any resulting retries go through the
  * same execute() method. We allow blocking or non-blocking access
  * to the result set, or you can provide a custom policy to control the
- * length of time spent waiting for results to complete.
+ * length of time spent waiting for results to complete. With
+ * getResultsAsync() no thread waits for the results, the policy is asked
+ * whenever the results change or the time it wanted to wait is over.
+ * <p>
+ * The interactions run on an executor shared by all calls of a client.
+ * Shutting down a work queue cancels only its own interactions.
+ * <p>
+ * With hedging enabled, the shards a node did not answer within the delay of
+ * the {@link HedgePolicy} are sent to another replica as well. The first result
+ * per shard is used, later results for the same shards are dropped and the
+ * calls which did not start yet are cancelled.
  */
 class WorkQueue<T> implements INodeExecutor {
 
@@ -59,7 +83,13 @@ class WorkQueue<T> implements INodeExecutor {
   private final Method method;
   private final int shardArrayParamIndex;
   private final Object[] args;
-  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final Map<Future<?>, List<String>> interactions = new LinkedHashMap<Future<?>, List<String>>();
+  private final List<Future<?>> hedges = new ArrayList<Future<?>>();
+  private HedgePolicy hedgePolicy;
+  private ScheduledExecutorService hedgeTimer;
+  private volatile boolean shutdown;
   private final ClientResult<T> results;
   private final int instanceId = instanceCounter++;
   private int callCounter = 0;
@@ -72,6 +102,9 @@ class WorkQueue<T> implements INodeExecutor {
    * <b>DO NOT CHANGE THE ARGUMENTS WHILE THIS CALL IS RUNNING OR YOU WILL BE
    * SORRY.</b>
    * 
+   * @param executor
+   *          The executor the node interactions run on, usually shared by all
+   *          calls of a client.
    * @param shardManager
    *          The class that maintains the node/shard maps, the node selection
    *          policy, and the node proxies.
@@ -86,8 +119,8 @@ class WorkQueue<T> implements INodeExecutor {
    * @param args
    *          The arguments to pass in to the method on the server side.
    */
-  protected WorkQueue(INodeProxyManager shardManager, Set<String> allShards, Method method, int shardArrayParamIndex,
-          Object... args) {
+  protected WorkQueue(ExecutorService executor, INodeProxyManager shardManager, Set<String> allShards, Method method,
+          int shardArrayParamIndex, Object... args) {
     this(new INodeInteractionFactory<T>() {
       public Runnable createInteraction(Method method, Object[] args, int shardArrayParamIndex, String node,
           Map<String, List<String>> nodeShardMap, int tryCount, int maxTryCount, INodeProxyManager shardManager,
@@ -95,13 +128,13 @@ class WorkQueue<T> implements INodeExecutor {
         return new NodeInteraction<T>(method, args, shardArrayParamIndex, node, nodeShardMap, tryCount, maxTryCount,
             shardManager, nodeExecutor, results);
       }
-    }, shardManager, allShards, method, shardArrayParamIndex, args);
+    }, executor, false, shardManager, allShards, method, shardArrayParamIndex, args);
   }
 
   
   /**
    * Used by unit tests. By providing an alternate factory, this class can be tested without creating
-   * and NodeInteractions.
+   * and NodeInteractions. The work queue runs the interactions on an own executor.
    * 
    * @param interactionFactory
    * @param shardManager
@@ -120,6 +153,24 @@ class WorkQueue<T> implements INodeExecutor {
    */
   protected WorkQueue(INodeInteractionFactory<T> interactionFactory, INodeProxyManager shardManager,
           Set<String> allShards, Method method, int shardArrayParamIndex, Object... args) {
+    this(interactionFactory, Executors.newCachedThreadPool(), true, shardManager, allShards, method,
+            shardArrayParamIndex, args);
+  }
+
+  /**
+   * Used by unit tests, like
+   * {@link #WorkQueue(INodeInteractionFactory, INodeProxyManager, Set, Method, int, Object...)}
+   * but runs the interactions on the given executor.
+   */
+  protected WorkQueue(INodeInteractionFactory<T> interactionFactory, ExecutorService executor,
+          INodeProxyManager shardManager, Set<String> allShards, Method method, int shardArrayParamIndex,
+          Object... args) {
+    this(interactionFactory, executor, false, shardManager, allShards, method, shardArrayParamIndex, args);
+  }
+
+  private WorkQueue(INodeInteractionFactory<T> interactionFactory, ExecutorService executor, boolean ownsExecutor,
+          INodeProxyManager shardManager, Set<String> allShards, Method method, int shardArrayParamIndex,
+          Object... args) {
     if (shardManager == null || allShards == null || method == null) {
       throw new IllegalArgumentException("Null passed to new WorkQueue()");
     }
@@ -127,6 +178,8 @@ class WorkQueue<T> implements INodeExecutor {
       throw new IllegalArgumentException("No shards passed to new WorkQueue()");
     }
     this.interactionFactory = interactionFactory;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
     this.shardManager = shardManager;
     this.method = method;
     this.shardArrayParamIndex = shardArrayParamIndex;
@@ -143,6 +196,20 @@ class WorkQueue<T> implements INodeExecutor {
     }
   }
   
+  /**
+   * Hedge the calls of this work queue, see {@link HedgePolicy}. Must be called
+   * before the first call to execute().
+   * 
+   * @param hedgePolicy
+   *          Decides after which time a call is hedged.
+   * @param timer
+   *          Executes the hedges.
+   */
+  public void setHedging(HedgePolicy hedgePolicy, ScheduledExecutorService timer) {
+    this.hedgePolicy = hedgePolicy;
+    this.hedgeTimer = timer;
+  }
+
   /**
    * Submit a job, which is a call to a server node via an RPC proxy using a NodeInteraction.
    * Ignored if called after shutdown(), or after result set is closed.
@@ -153,48 +220,222 @@ class WorkQueue<T> implements INodeExecutor {
    * @param maxTryCount How often the call should be repeated in maximum.
    */
   public void execute(String node, Map<String, List<String>> nodeShardMap, int tryCount, int maxTryCount) {
-    if (!executor.isShutdown() && !results.isClosed()) {
+    if (!shutdown && !results.isClosed()) {
       if (LOG.isTraceEnabled()) {
         LOG.trace(String.format("Creating interaction with %s, will use shards: %s, tryCount=%d (id=%d)", node,
                 nodeShardMap.get(node), tryCount, instanceId));
       }
-      Runnable interaction = interactionFactory.createInteraction(method, args, shardArrayParamIndex, node,
-              nodeShardMap, tryCount, maxTryCount, shardManager, this, results);
-      if (interaction != null) {
-        try {
-          executor.execute(interaction);
-        } catch (RejectedExecutionException e) {
-          // This could happen, but should be rare.
-          LOG.warn(String.format("Failed to submit node interaction %s (id=%d)", interaction, instanceId));
-        }
-      } else {
-        LOG.error("Null node interaction runnable for node " + node);
+      submit(node, nodeShardMap, tryCount, maxTryCount, false);
+      if (hedgePolicy != null && tryCount == 1) {
+        scheduleHedge(node, nodeShardMap.get(node), maxTryCount);
       }
     } else {
       if (LOG.isTraceEnabled()) {
         LOG.trace(String.format(
                 "Not creating interaction with %s, shards=%s, tryCount=%d, executor=%s, result=%s (id=%d)", node,
-                nodeShardMap.get(node), tryCount, executor.isShutdown() ? "shutdown" : "running", results, instanceId));
+                nodeShardMap.get(node), tryCount, shutdown ? "shutdown" : "running", results, instanceId));
+      }
+    }
+  }
+
+  /**
+   * The interaction is never run by the calling thread, which can be the
+   * thread of the caller, the timer or a callback. If the executor rejects it
+   * because it is saturated, the shards of the interaction fail.
+   */
+  private void submit(String node, Map<String, List<String>> nodeShardMap, int tryCount, int maxTryCount,
+          boolean hedge) {
+    IResultReceiver<T> receiver = hedgePolicy != null ? new InteractionResultReceiver(hedge) : results;
+    Runnable interaction = interactionFactory.createInteraction(method, args, shardArrayParamIndex, node,
+            nodeShardMap, tryCount, maxTryCount, shardManager, this, receiver);
+    if (interaction != null) {
+      try {
+        Future<?> future = executor.submit(interaction);
+        synchronized (interactions) {
+          if (shutdown) {
+            future.cancel(true);
+          } else {
+            interactions.put(future, nodeShardMap.get(node));
+          }
+        }
+      } catch (RejectedExecutionException e) {
+        LOG.warn(String.format("Failed to submit node interaction %s, the executor is saturated (id=%d)",
+                interaction, instanceId));
+        // errors of hedges are dropped, the original call is still running
+        receiver.addError(new KattaException(String.format("Call to %s for shards %s rejected (id=%d)", node,
+                nodeShardMap.get(node), instanceId), e), nodeShardMap.get(node));
+      }
+    } else {
+      LOG.error("Null node interaction runnable for node " + node);
+    }
+  }
+
+  private void scheduleHedge(final String node, final List<String> shards, final int maxTryCount) {
+    long delay = hedgePolicy.getHedgeDelay(method);
+    if (delay < 0 || shards == null) {
+      return;
+    }
+    try {
+      Future<?> hedge = hedgeTimer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          hedge(node, shards, maxTryCount);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+      synchronized (interactions) {
+        if (shutdown) {
+          hedge.cancel(false);
+        } else {
+          hedges.add(hedge);
+        }
+      }
+    } catch (RejectedExecutionException e) {
+      LOG.debug(String.format("Failed to schedule hedge for node %s (id=%d)", node, instanceId));
+    }
+  }
+
+  /**
+   * Sends the shards the node did not answer yet to one other replica serving
+   * all of them. Since the slow call and the hedge answer the same shards,
+   * whichever answers first covers them all and the other result can be
+   * dropped. If no single replica serves all missing shards, the call is not
+   * hedged: splitting it over several replicas could drop the slow call's
+   * result for overlapping one hedge while another hedge fails. Calls with more
+   * than one try already (the slow node failed) are not hedged.
+   */
+  private void hedge(String node, List<String> shards, int maxTryCount) {
+    if (shutdown || results.isClosed()) {
+      return;
+    }
+    List<String> missingShards = new ArrayList<String>(shards);
+    missingShards.removeAll(results.getSeenShards());
+    if (missingShards.isEmpty()) {
+      return;
+    }
+    String hedgeNode;
+    try {
+      hedgeNode = shardManager.selectNodeServingAll(missingShards, node);
+    } catch (ShardAccessException e) {
+      LOG.debug(String.format("Not hedging call to %s: %s (id=%d)", node, e.getMessage(), instanceId));
+      return;
+    }
+    if (hedgeNode == null) {
+      LOG.debug(String.format("Not hedging call to %s, no other node serves all of %s (id=%d)", node,
+              missingShards, instanceId));
+      return;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Node %s did not answer for shards %s, hedging on %s (id=%d)", node, missingShards,
+              hedgeNode, instanceId));
+    }
+    hedgePolicy.hedged();
+    // a hedge is not retried, the original call still is
+    submit(hedgeNode, Collections.singletonMap(hedgeNode, missingShards), maxTryCount, maxTryCount, true);
+  }
+
+  /**
+   * Cancel the interactions whose shards are all answered, unless they are
+   * running already. Interrupting a running RPC call could close the
+   * connection to the node shared with other calls, so their results are
+   * dropped instead.
+   */
+  private void cancelAnsweredInteractions() {
+    Set<String> seenShards = results.getSeenShards();
+    synchronized (interactions) {
+      for (Iterator<Map.Entry<Future<?>, List<String>>> iterator = interactions.entrySet().iterator(); iterator
+              .hasNext();) {
+        Map.Entry<Future<?>, List<String>> entry = iterator.next();
+        if (entry.getKey().isDone()) {
+          iterator.remove();
+        } else if (seenShards.containsAll(entry.getValue())) {
+          entry.getKey().cancel(false);
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * The results of one interaction if hedging is enabled. Only the first result
+   * for a shard is added, errors are dropped for shards which were answered
+   * or if the interaction is a hedge (the original call reports its own error).
+   */
+  private class InteractionResultReceiver implements IResultReceiver<T> {
+
+    private final boolean hedge;
+    private final long submitTime = System.currentTimeMillis();
+
+    public InteractionResultReceiver(boolean hedge) {
+      this.hedge = hedge;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return results.isClosed();
+    }
+
+    @Override
+    public void addResult(T result, Collection<String> shards) {
+      hedgePolicy.recordLatency(method, System.currentTimeMillis() - submitTime);
+      synchronized (results) {
+        if (!Collections.disjoint(results.getSeenShards(), shards)) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace(String.format("Dropping result for shards %s, answered already (id=%d)", shards, instanceId));
+          }
+          return;
+        }
+        results.addResult(result, shards);
+      }
+      cancelAnsweredInteractions();
+    }
+
+    @Override
+    public void addError(Throwable error, Collection<String> shards) {
+      synchronized (results) {
+        if (hedge || results.getSeenShards().containsAll(shards)) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Dropping error for shards %s of %s call (id=%d)", shards, hedge ? "hedged"
+                    : "answered", instanceId));
+          }
+          return;
+        }
+        results.addError(error, shards);
       }
     }
   }
 
   /**
-   * Stop all threads. Close the result set (making it immutable).
-   * Any calls to execute() after this will be ignored.
+   * Cancel all node interactions of this call, interrupting the running ones.
+   * Close the result set (making it immutable). Any calls to execute() after
+   * this will be ignored.
    */
   public void shutdown() {
     if (LOG.isTraceEnabled()) {
       LOG.trace(String.format("Shutdown() called (id=%d)", instanceId));
     }
-    if (!executor.isShutdown()) {
-      executor.shutdownNow();
-    }
+    cancelInteractions();
     if (!results.isClosed()) {
       results.close();
     }
   }
 
+  private void cancelInteractions() {
+    synchronized (interactions) {
+      shutdown = true;
+      for (Future<?> interaction : interactions.keySet()) {
+        interaction.cancel(true);
+      }
+      interactions.clear();
+      for (Future<?> hedge : hedges) {
+        hedge.cancel(false);
+      }
+      hedges.clear();
+    }
+    if (ownsExecutor && !executor.isShutdown()) {
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * Wait up to timeout msec for the results to be complete (all shards
    * reporting) then stop the threads and return what we have so far.
@@ -269,7 +510,7 @@ class WorkQueue<T> implements INodeExecutor {
       if (LOG.isTraceEnabled()) {
         LOG.trace(String.format("Shutting down work queue, results = %s (id=%d:%d)", results, instanceId, callId));
       }
-      executor.shutdownNow();
+      cancelInteractions();
       results.close();
     }
     if (LOG.isTraceEnabled()) {
@@ -279,6 +520,118 @@ class WorkQueue<T> implements INodeExecutor {
     return results;
   }
 
+  /**
+   * Like {@link #getResults(IResultPolicy)}, but returns immediately. The
+   * policy is asked whenever a result or error arrives and when the time it
+   * wanted to wait has passed. The returned future completes as soon as the
+   * policy returns a wait time <= 0. Cancelling the future shuts down the call.
+   * 
+   * @param policy
+   *          How to decide when to complete and to terminate the call.
+   * @param timer
+   *          Executes the policy when the time it wanted to wait has passed.
+   * @return the future of the results, which may or may not be complete
+   *         and/or closed.
+   */
+  public ListenableFuture<ClientResult<T>> getResultsAsync(IResultPolicy<T> policy, ScheduledExecutorService timer) {
+    if (LOG.isTraceEnabled()) {
+      LOG.trace(String.format("getResultsAsync() policy = %s (id=%d)", policy, instanceId));
+    }
+    ResultFuture future = new ResultFuture(policy, timer);
+    results.addChangedListener(future);
+    // results which came in before the listener was registered
+    future.check();
+    return future;
+  }
+
+  /**
+   * Completes with the results as soon as the policy does not want to wait any
+   * longer. Evaluated by the threads adding results and by the timer, never
+   * blocks a thread while waiting.
+   */
+  private class ResultFuture extends AbstractFuture<ClientResult<T>> implements IChangedListener<T>, Runnable {
+
+    private final IResultPolicy<T> policy;
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> scheduledCheck;
+    private long scheduledCheckTime;
+    private boolean completed;
+
+    public ResultFuture(IResultPolicy<T> policy, ScheduledExecutorService timer) {
+      this.policy = policy;
+      this.timer = timer;
+    }
+
+    @Override
+    public void clientResultChanged(ClientResult<T> result) {
+      check();
+    }
+
+    @Override
+    public void run() {
+      check();
+    }
+
+    void check() {
+      long waitTime;
+      synchronized (results) {
+        if (completed || isDone()) {
+          return;
+        }
+        waitTime = policy.waitTime(results);
+        if (waitTime > 0 && !results.isClosed()) {
+          scheduleCheck(waitTime);
+          return;
+        }
+        completed = true;
+        if (scheduledCheck != null) {
+          scheduledCheck.cancel(false);
+        }
+        if (waitTime < 0) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace(String.format("Shutting down work queue, results = %s (id=%d)", results, instanceId));
+          }
+          cancelInteractions();
+          results.close();
+        }
+      }
+      if (LOG.isTraceEnabled()) {
+        LOG.trace(String.format("Completing results = %s (id=%d)", results, instanceId));
+      }
+      set(results);
+    }
+
+    /**
+     * Every change asks the policy again, so a check is only scheduled if the
+     * policy wants to stop waiting earlier than the one already scheduled.
+     */
+    private void scheduleCheck(long waitTime) {
+      long checkTime = System.currentTimeMillis() + waitTime;
+      if (scheduledCheck != null && !scheduledCheck.isDone() && scheduledCheckTime <= checkTime) {
+        return;
+      }
+      if (scheduledCheck != null) {
+        scheduledCheck.cancel(false);
+      }
+      try {
+        scheduledCheck = timer.schedule(this, waitTime, TimeUnit.MILLISECONDS);
+        scheduledCheckTime = checkTime;
+      } catch (RejectedExecutionException e) {
+        LOG.warn(String.format("Failed to schedule result check, shutting down (id=%d)", instanceId));
+        cancel(false);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+      shutdown();
+      return true;
+    }
+  }
+
   @Override
   public String toString() {
     String argsStr = Arrays.asList(args).toString();
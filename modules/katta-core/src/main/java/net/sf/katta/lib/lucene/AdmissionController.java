@@ -0,0 +1,169 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.katta.node.NodeOverloadedException;
+
+/**
+ * Limits the number of requests a node executes at the same time. Requests
+ * above the limit wait in a bounded queue in arrival order. A request is
+ * rejected with a {@link NodeOverloadedException} if the queue is full or it
+ * waited longer than the queue timeout, so the client can retry it on another
+ * replica instead of waiting for its own timeout.
+ * <p>
+ * For every call to {@link #acquire()} which returns normally,
+ * {@link #release()} must be called exactly one time.
+ */
+public class AdmissionController {
+
+  private final Semaphore _permits;
+  private final int _maxConcurrentRequests;
+  private final int _maxQueuedRequests;
+  private final long _queueTimeout;
+
+  private final AtomicInteger _queuedRequests = new AtomicInteger();
+  private final AtomicLong _admittedRequests = new AtomicLong();
+  private final AtomicLong _rejectedRequests = new AtomicLong();
+  private final AtomicLong _totalWaitNanos = new AtomicLong();
+  private final AtomicLong _maxWaitNanos = new AtomicLong();
+
+  /**
+   * @param maxConcurrentRequests
+   *          the number of requests executed at the same time
+   * @param maxQueuedRequests
+   *          the number of requests waiting for execution, further requests
+   *          are rejected immediately
+   * @param queueTimeout
+   *          the time in milliseconds a request waits for execution before it
+   *          is rejected
+   */
+  public AdmissionController(int maxConcurrentRequests, int maxQueuedRequests, long queueTimeout) {
+    if (maxConcurrentRequests <= 0) {
+      throw new IllegalArgumentException("max concurrent requests must be positive: " + maxConcurrentRequests);
+    }
+    _maxConcurrentRequests = maxConcurrentRequests;
+    _maxQueuedRequests = maxQueuedRequests;
+    _queueTimeout = queueTimeout;
+    _permits = new Semaphore(maxConcurrentRequests, true);
+  }
+
+  /**
+   * Waits until the request may be executed.
+   *
+   * @throws NodeOverloadedException
+   *           if the request is rejected
+   * @throws InterruptedIOException
+   *           if the thread is interrupted while waiting
+   */
+  public void acquire() throws IOException {
+    long start = System.nanoTime();
+    boolean admitted;
+    try {
+      // respects the waiting requests, other than tryAcquire()
+      admitted = _permits.tryAcquire(0, TimeUnit.MILLISECONDS);
+      if (!admitted) {
+        if (_queuedRequests.incrementAndGet() > _maxQueuedRequests) {
+          _queuedRequests.decrementAndGet();
+          reject("queue of " + _maxQueuedRequests + " waiting requests is full");
+        }
+        try {
+          admitted = _permits.tryAcquire(_queueTimeout, TimeUnit.MILLISECONDS);
+        } finally {
+          _queuedRequests.decrementAndGet();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for execution");
+    }
+    if (!admitted) {
+      reject("request waited longer than " + _queueTimeout + " ms for execution");
+    }
+    long waitNanos = System.nanoTime() - start;
+    _admittedRequests.incrementAndGet();
+    _totalWaitNanos.addAndGet(waitNanos);
+    long maxWaitNanos;
+    while (waitNanos > (maxWaitNanos = _maxWaitNanos.get())) {
+      if (_maxWaitNanos.compareAndSet(maxWaitNanos, waitNanos)) {
+        break;
+      }
+    }
+  }
+
+  private void reject(String reason) throws NodeOverloadedException {
+    _rejectedRequests.incrementAndGet();
+    throw new NodeOverloadedException("node overloaded, " + reason);
+  }
+
+  public void release() {
+    _permits.release();
+  }
+
+  public int getMaxConcurrentRequests() {
+    return _maxConcurrentRequests;
+  }
+
+  /**
+   * @return the number of requests currently executed
+   */
+  public int getRunningRequests() {
+    return _maxConcurrentRequests - _permits.availablePermits();
+  }
+
+  /**
+   * @return the number of requests currently waiting for execution
+   */
+  public int getQueuedRequests() {
+    return _queuedRequests.get();
+  }
+
+  public long getAdmittedRequests() {
+    return _admittedRequests.get();
+  }
+
+  public long getRejectedRequests() {
+    return _rejectedRequests.get();
+  }
+
+  /**
+   * @return the average time admitted requests waited for execution
+   */
+  public double getAverageWaitMillis() {
+    long admittedRequests = _admittedRequests.get();
+    return admittedRequests > 0 ? _totalWaitNanos.get() / 1000000.0 / admittedRequests : 0;
+  }
+
+  /**
+   * @return the longest time an admitted request waited for execution
+   */
+  public double getMaxWaitMillis() {
+    return _maxWaitNanos.get() / 1000000.0;
+  }
+
+  @Override
+  public String toString() {
+    return "AdmissionController: running=" + getRunningRequests() + " queued=" + getQueuedRequests() + " admitted="
+            + getAdmittedRequests() + " rejected=" + getRejectedRequests() + " avgWait=" + getAverageWaitMillis()
+            + "ms maxWait=" + getMaxWaitMillis() + "ms";
+  }
+}
@@ -17,22 +17,145 @@ package net.sf.katta.lib.lucene;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
 
+import net.sf.katta.operation.master.AbstractIndexOperation;
 import net.sf.katta.util.NodeConfiguration;
 
+import org.apache.log4j.Logger;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
 
+/**
+ * Opens the shard directories with the configured {@link DirectoryType}. The
+ * type and the files to preload can be configured for all indices and
+ * overridden per index by appending '.' and the index name to the key, e.g.
+ * <code>lucene.searcher.directory.hot-index=ram</code>.
+ */
 public class DefaultSearcherFactory implements ISeacherFactory {
 
+  private final static Logger LOG = Logger.getLogger(DefaultSearcherFactory.class);
+  public final static String CONF_KEY_DIRECTORY = "lucene.searcher.directory";
+  public final static String CONF_KEY_PRELOAD_EXTENSIONS = "lucene.searcher.preload-extensions";
+
+  private static final int PRELOAD_BUFFER_SIZE = 64 * 1024;
+
+  public enum DirectoryType {
+    /** the platform default of {@link FSDirectory#open(File)} */
+    FS,
+    MMAP, NIO, SIMPLE,
+    /** copies the whole index into the heap */
+    RAM;
+  }
+
+  private NodeConfiguration _config = new NodeConfiguration(new Properties());
+
   @Override
   public void init(NodeConfiguration config) {
-    // nothing todo
+    _config = config;
   }
 
   @Override
   public IndexSearcher createSearcher(String shardName, File shardDir) throws IOException {
-    return new IndexSearcher(FSDirectory.open(shardDir.getAbsoluteFile()));
+    String indexName = getIndexName(shardName);
+    DirectoryType directoryType = getDirectoryType(indexName);
+    Directory directory = openDirectory(directoryType, shardDir.getAbsoluteFile());
+    if (directoryType != DirectoryType.RAM) {
+      preload(shardName, directory, getPreloadExtensions(indexName));
+    }
+    return new IndexSearcher(directory);
+  }
+
+  protected Directory openDirectory(DirectoryType directoryType, File shardDir) throws IOException {
+    switch (directoryType) {
+    case MMAP:
+      return new MMapDirectory(shardDir);
+    case NIO:
+      return new NIOFSDirectory(shardDir);
+    case SIMPLE:
+      return new SimpleFSDirectory(shardDir);
+    case RAM:
+      Directory fsDirectory = FSDirectory.open(shardDir);
+      try {
+        return new RAMDirectory(fsDirectory);
+      } finally {
+        fsDirectory.close();
+      }
+    default:
+      return FSDirectory.open(shardDir);
+    }
+  }
+
+  /**
+   * Reads the index files with the given extensions once, so their pages are
+   * in the page cache (or mapped) before the first query touches them.
+   */
+  private static void preload(String shardName, Directory directory, Set<String> extensions) throws IOException {
+    if (extensions.isEmpty()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    long preloadedBytes = 0;
+    byte[] buffer = new byte[PRELOAD_BUFFER_SIZE];
+    for (String fileName : directory.listAll()) {
+      int extensionIndex = fileName.lastIndexOf('.');
+      if (extensionIndex < 0 || !extensions.contains(fileName.substring(extensionIndex + 1))) {
+        continue;
+      }
+      IndexInput input = directory.openInput(fileName, PRELOAD_BUFFER_SIZE);
+      try {
+        long remaining = input.length();
+        while (remaining > 0) {
+          int length = (int) Math.min(buffer.length, remaining);
+          input.readBytes(buffer, 0, length);
+          remaining -= length;
+        }
+        preloadedBytes += input.length();
+      } finally {
+        input.close();
+      }
+    }
+    LOG.info("preloaded " + preloadedBytes + " bytes of shard '" + shardName + "' in "
+            + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  protected DirectoryType getDirectoryType(String indexName) {
+    String directoryType = getProperty(CONF_KEY_DIRECTORY, indexName, DirectoryType.FS.name());
+    try {
+      return DirectoryType.valueOf(directoryType.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal value '" + directoryType + "' for " + CONF_KEY_DIRECTORY
+              + " of index '" + indexName + "'", e);
+    }
+  }
+
+  protected Set<String> getPreloadExtensions(String indexName) {
+    Set<String> extensions = new HashSet<String>();
+    for (String extension : getProperty(CONF_KEY_PRELOAD_EXTENSIONS, indexName, "").split(",")) {
+      if (extension.trim().length() > 0) {
+        extensions.add(extension.trim());
+      }
+    }
+    return extensions;
+  }
+
+  private String getProperty(String key, String indexName, String defaultValue) {
+    return _config.getProperty(key + "." + indexName, _config.getProperty(key, defaultValue));
+  }
+
+  private static String getIndexName(String shardName) {
+    if (shardName.indexOf(AbstractIndexOperation.INDEX_SHARD_NAME_SEPARATOR) < 0) {
+      return shardName;
+    }
+    return AbstractIndexOperation.getIndexNameFromShardName(shardName);
   }
 
 }
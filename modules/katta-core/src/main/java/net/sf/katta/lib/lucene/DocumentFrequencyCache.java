@@ -0,0 +1,199 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.Term;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Client side LRU cache of the global term statistics of deployed indices.
+ * Document frequencies are aggregated over all shards of an index and cached
+ * per index and term, the number of documents is cached per index. The
+ * statistics of an index are invalidated when it is deployed or undeployed, in
+ * addition entries expire after a fixed time.
+ */
+public class DocumentFrequencyCache {
+
+  private final Cache<IndexTerm, Integer> _docFreqs;
+  private final Cache<String, Long> _numDocs;
+
+  public DocumentFrequencyCache(int maxSize, int expireAfterWriteSeconds) {
+    _docFreqs = CacheBuilder.newBuilder().maximumSize(maxSize)
+            .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS).build();
+    _numDocs = CacheBuilder.newBuilder().expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS).build();
+  }
+
+  /**
+   * Returns the cached statistics for the given indices. Only terms which are
+   * cached for all of the indices are included. The number of documents is
+   * only set if it is known for all of the indices.
+   *
+   * @param indices
+   * @param terms
+   * @return the (possibly incomplete) aggregated statistics
+   */
+  public DocumentFrequencyWritable get(Collection<String> indices, Collection<Term> terms) {
+    DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+    for (Term term : terms) {
+      int docFreq = 0;
+      boolean cached = true;
+      for (String index : indices) {
+        Integer indexDocFreq = _docFreqs.getIfPresent(new IndexTerm(index, term.field(), term.text()));
+        if (indexDocFreq == null) {
+          cached = false;
+          break;
+        }
+        docFreq += indexDocFreq;
+      }
+      if (cached) {
+        docFreqs.put(term.field(), term.text(), docFreq);
+      }
+    }
+    long numDocs = 0;
+    for (String index : indices) {
+      Long indexNumDocs = _numDocs.getIfPresent(index);
+      if (indexNumDocs == null) {
+        return docFreqs;
+      }
+      numDocs += indexNumDocs;
+    }
+    docFreqs.addNumDocs(numDocs);
+    return docFreqs;
+  }
+
+  /**
+   * @return true if the statistics for all the terms and the number of
+   *         documents are cached for all of the indices
+   */
+  public boolean contains(Collection<String> indices, Collection<Term> terms) {
+    for (String index : indices) {
+      if (_numDocs.getIfPresent(index) == null) {
+        return false;
+      }
+      for (Term term : terms) {
+        if (_docFreqs.getIfPresent(new IndexTerm(index, term.field(), term.text())) == null) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Aggregates the statistics of single shards to index statistics and caches
+   * them. An index is only cached if the statistics of all of its shards are
+   * available.
+   *
+   * @param indexToShards
+   *          the shards of each index
+   * @param shardDocFreqs
+   *          the statistics per shard
+   */
+  public void put(Map<String, List<String>> indexToShards, Map<String, DocumentFrequencyWritable> shardDocFreqs) {
+    for (Map.Entry<String, List<String>> entry : indexToShards.entrySet()) {
+      String index = entry.getKey();
+      List<String> shards = entry.getValue();
+      if (!shardDocFreqs.keySet().containsAll(shards)) {
+        continue;
+      }
+      DocumentFrequencyWritable indexDocFreqs = new DocumentFrequencyWritable();
+      Set<TermWritable> terms = new HashSet<TermWritable>();
+      for (String shard : shards) {
+        DocumentFrequencyWritable docFreqs = shardDocFreqs.get(shard);
+        indexDocFreqs.putAll(docFreqs.getAll());
+        indexDocFreqs.addNumDocs(docFreqs.getNumDocs());
+        terms.addAll(docFreqs.getAll().keySet());
+      }
+      for (TermWritable term : terms) {
+        _docFreqs.put(new IndexTerm(index, term.getField(), term.getTerm()), indexDocFreqs.get(term));
+      }
+      _numDocs.put(index, indexDocFreqs.getNumDocs());
+    }
+  }
+
+  /**
+   * Removes all cached statistics of the given index.
+   */
+  public void invalidate(String index) {
+    _numDocs.invalidate(index);
+    for (IndexTerm indexTerm : _docFreqs.asMap().keySet()) {
+      if (indexTerm._index.equals(index)) {
+        _docFreqs.invalidate(indexTerm);
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    _numDocs.invalidateAll();
+    _docFreqs.invalidateAll();
+  }
+
+  public long size() {
+    return _docFreqs.size();
+  }
+
+  public CacheStats getStats() {
+    return _docFreqs.stats();
+  }
+
+  private static class IndexTerm {
+
+    private final String _index;
+    private final String _field;
+    private final String _text;
+
+    public IndexTerm(String index, String field, String text) {
+      _index = index;
+      _field = field;
+      _text = text;
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = _index.hashCode();
+      result = prime * result + _field.hashCode();
+      result = prime * result + _text.hashCode();
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      IndexTerm other = (IndexTerm) obj;
+      return _index.equals(other._index) && _field.equals(other._field) && _text.equals(other._text);
+    }
+
+    @Override
+    public String toString() {
+      return _index + "/" + _field + ":" + _text;
+    }
+  }
+
+}
@@ -67,12 +67,16 @@ public class Hit implements Writable, Comparable<Hit> {
     _sortFieldTypes = sortFieldTypes;
   }
 
-  // public Hit(Text shardName, Text serverName, float score, int docId) {
-  // _shard = shardName;
-  // _node = serverName;
-  // _score = score;
-  // _docId = docId;
-  // }
+  /**
+   * Lets hits of the same shard and node share the name instances.
+   */
+  Hit(Text shard, Text node, float score, int docId, WritableType[] sortFieldTypes) {
+    _shard = shard;
+    _node = node;
+    _score = score;
+    _docId = docId;
+    _sortFieldTypes = sortFieldTypes;
+  }
 
   public String getShard() {
     return _shard.toString();
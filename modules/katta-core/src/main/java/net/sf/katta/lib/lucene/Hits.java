@@ -20,7 +20,9 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -35,6 +37,13 @@ public class Hits implements Writable {
 
   private static final long serialVersionUID = -732226190122340208L;
 
+  private static final Comparator<Hit> SCORE_COMPARATOR = new Comparator<Hit>() {
+    @Override
+    public int compare(Hit hit1, Hit hit2) {
+      return hit1.compareTo(hit2);
+    }
+  };
+
   private List<List<Hit>> _hitsList = new Vector<List<Hit>>();
 
   private List<Hit> _sortedList;
@@ -95,21 +104,146 @@ public class Hits implements Writable {
   }
 
   public void sort(final int count) {
-    sortCollection(count);
+    merge(SCORE_COMPARATOR, count);
   }
 
   public void fieldSort(Sort sort, WritableType[] fieldTypes, int count) {
-    // TODO merge sort does not work due KATTA-93
-    final ArrayList<Hit> list = new ArrayList<Hit>(count);
-    final int size = _hitsList.size();
+    merge(new FieldSortComparator(sort.getSort(), fieldTypes), count);
+  }
+
+  /**
+   * Merges the hits of one result into the already sorted hits, keeping only
+   * the best count hits. This way node results can be merged one after the
+   * other while the remaining results are still on the way.
+   * 
+   * @param hits
+   *          the hits of one result, usually already sorted
+   * @param comparator
+   *          the comparator to use, null for sorting by score
+   * @param count
+   *          the maximum number of hits to keep
+   */
+  public void mergeHits(List<Hit> hits, Comparator<Hit> comparator, int count) {
+    if (comparator == null) {
+      comparator = SCORE_COMPARATOR;
+    }
+    List<Hit> sortedHits = ensureSorted(hits, comparator);
+    if (_sortedList == null) {
+      _sortedList = new ArrayList<Hit>(sortedHits.subList(0, Math.min(count, sortedHits.size())));
+      return;
+    }
+    final List<Hit> merged = new ArrayList<Hit>(Math.min(count, _sortedList.size() + sortedHits.size()));
+    int i = 0;
+    int j = 0;
+    while (merged.size() < count && (i < _sortedList.size() || j < sortedHits.size())) {
+      if (j >= sortedHits.size()
+              || (i < _sortedList.size() && comparator.compare(_sortedList.get(i), sortedHits.get(j)) <= 0)) {
+        merged.add(_sortedList.get(i++));
+      } else {
+        merged.add(sortedHits.get(j++));
+      }
+    }
+    _sortedList = merged;
+  }
+
+  /**
+   * Merges all added hit lists and the already sorted hits with a heap over
+   * the heads of the lists, stopping after count hits. Each list is expected
+   * to be sorted (as returned from the nodes), unsorted lists are sorted
+   * first.
+   */
+  private void merge(Comparator<Hit> comparator, int count) {
+    final List<List<Hit>> lists = new ArrayList<List<Hit>>(_hitsList.size() + 1);
+    int size = _hitsList.size();
     for (int i = 0; i < size; i++) {
-      list.addAll(_hitsList.remove(0));
+      List<Hit> hits = _hitsList.remove(0);
+      if (!hits.isEmpty()) {
+        lists.add(ensureSorted(hits, comparator));
+      }
     }
     _hitsList = new ArrayList<List<Hit>>();
-    if (!list.isEmpty()) {
-      Collections.sort(list, new FieldSortComparator(sort.getSort(), fieldTypes));
+    if (_sortedList != null && !_sortedList.isEmpty()) {
+      lists.add(_sortedList);
+    }
+    if (lists.size() == 1) {
+      List<Hit> list = lists.get(0);
+      _sortedList = list.subList(0, Math.min(count, list.size()));
+      return;
+    }
+
+    long hitCount = 0;
+    for (List<Hit> list : lists) {
+      hitCount += list.size();
+    }
+    if (count >= hitCount) {
+      // all hits are needed, the run detection of Collections.sort() merges
+      // the sorted lists faster than the heap
+      final List<Hit> sortedList = new ArrayList<Hit>((int) hitCount);
+      for (List<Hit> list : lists) {
+        sortedList.addAll(list);
+      }
+      Collections.sort(sortedList, comparator);
+      _sortedList = sortedList;
+      return;
+    }
+
+    final PriorityQueue<HitListCursor> queue = new PriorityQueue<HitListCursor>(lists.size(),
+            new HitListCursorComparator(comparator));
+    for (List<Hit> list : lists) {
+      queue.add(new HitListCursor(list));
+    }
+    final List<Hit> sortedList = new ArrayList<Hit>((int) Math.min(count, hitCount));
+    while (sortedList.size() < count && !queue.isEmpty()) {
+      HitListCursor cursor = queue.poll();
+      sortedList.add(cursor.current());
+      if (cursor.next()) {
+        queue.add(cursor);
+      }
+    }
+    _sortedList = sortedList;
+  }
+
+  private static List<Hit> ensureSorted(List<Hit> hits, Comparator<Hit> comparator) {
+    for (int i = 1; i < hits.size(); i++) {
+      if (comparator.compare(hits.get(i - 1), hits.get(i)) > 0) {
+        List<Hit> sortedHits = new ArrayList<Hit>(hits);
+        Collections.sort(sortedHits, comparator);
+        return sortedHits;
+      }
+    }
+    return hits;
+  }
+
+  private static class HitListCursor {
+
+    private final List<Hit> _hits;
+    private int _position;
+
+    public HitListCursor(List<Hit> hits) {
+      _hits = hits;
+    }
+
+    public Hit current() {
+      return _hits.get(_position);
+    }
+
+    public boolean next() {
+      return ++_position < _hits.size();
+    }
+  }
+
+  private static class HitListCursorComparator implements Comparator<HitListCursor> {
+
+    private final Comparator<Hit> _comparator;
+
+    public HitListCursorComparator(Comparator<Hit> comparator) {
+      _comparator = comparator;
+    }
+
+    @Override
+    public int compare(HitListCursor cursor1, HitListCursor cursor2) {
+      return _comparator.compare(cursor1.current(), cursor2.current());
     }
-    _sortedList = list.subList(0, Math.min(count, list.size()));
   }
 
   @SuppressWarnings("unchecked")
@@ -197,6 +331,19 @@ public class Hits implements Writable {
   // return -1;
   // }
 
+  /**
+   * @return a cursor to fetch the hits following the last hit with
+   *         {@link ILuceneClient#searchAfter(SearchCursor, org.apache.lucene.search.Query, String[], int)}
+   *         or null if there are no hits
+   */
+  public SearchCursor getCursor() {
+    List<Hit> hits = getHits();
+    if (hits.isEmpty()) {
+      return null;
+    }
+    return new SearchCursor(hits.get(hits.size() - 1));
+  }
+
   public void addTotalHits(final int size) {
     _totalHits.addAndGet(size);
   }
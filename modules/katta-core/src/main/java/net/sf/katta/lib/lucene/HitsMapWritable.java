@@ -19,6 +19,8 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,20 +29,35 @@ import java.util.Set;
 
 import net.sf.katta.util.WritableType;
 
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.log4j.Logger;
 
+/**
+ * The hits of a node. The hits are written column by column: the shard of
+ * each hit as an index into the shard names, the document ids as varints, the
+ * scores (only if tracked) and the sort fields field by field. Shards the node
+ * did not search, e.g. because the time of the request ran out, are marked as
+ * missing.
+ */
 public class HitsMapWritable implements Writable {
 
   private final static Logger LOG = Logger.getLogger(HitsMapWritable.class);
 
+  private static final byte VERSION = 3;
+  private static final byte FLAG_SCORES = 1;
+  private static final byte FLAG_SORT_FIELDS = 2;
+
   private String _nodeName;
   private int _totalHits;
   private WritableType[] _sortFieldTypes;
 
   private List<Hit> _hits;
   private Set<String> _shards;
+  private Map<String, DocumentFrequencyWritable> _shardDocFreqs;
+  private Set<String> _missingShards = Collections.emptySet();
 
   public HitsMapWritable() {
     // for serialization
@@ -57,9 +74,14 @@ public class HitsMapWritable implements Writable {
     if (LOG.isDebugEnabled()) {
       start = System.currentTimeMillis();
     }
+    final byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("unsupported hits format version " + version);
+    }
     _nodeName = in.readUTF();
-    _totalHits = in.readInt();
-    byte sortFieldTypesLen = in.readByte();
+    _totalHits = WritableUtils.readVInt(in);
+    final int sortFieldTypesLen = WritableUtils.readVInt(in);
+    _sortFieldTypes = null;
     if (sortFieldTypesLen > 0) {
       _sortFieldTypes = new WritableType[sortFieldTypesLen];
       for (int i = 0; i < sortFieldTypesLen; i++) {
@@ -69,38 +91,65 @@ public class HitsMapWritable implements Writable {
     if (LOG.isDebugEnabled()) {
       LOG.debug("HitsMap reading start at: " + start + " for server " + _nodeName);
     }
-    final int shardCount = in.readInt();
-    HashMap<Byte, String> shardByShardIndex = new HashMap<Byte, String>(shardCount);
+    final int shardCount = WritableUtils.readVInt(in);
+    final Text[] shardByShardIndex = new Text[shardCount];
     _shards = new HashSet<String>(shardCount);
     for (int i = 0; i < shardCount; i++) {
-      String shardName = in.readUTF();
-      shardByShardIndex.put((byte) i, shardName);
+      String shardName = Text.readString(in);
+      shardByShardIndex[i] = new Text(shardName);
       _shards.add(shardName);
     }
 
-    final int hitCount = in.readInt();
+    final int hitCount = WritableUtils.readVInt(in);
+    final byte flags = in.readByte();
+    final int[] shardIndices = new int[hitCount];
+    for (int i = 0; i < hitCount; i++) {
+      shardIndices[i] = WritableUtils.readVInt(in);
+    }
+    final int[] docIds = new int[hitCount];
+    for (int i = 0; i < hitCount; i++) {
+      docIds[i] = WritableUtils.readVInt(in);
+    }
+    final Text nodeName = new Text(_nodeName);
     _hits = new ArrayList<Hit>(hitCount + 1);
     for (int i = 0; i < hitCount; i++) {
-      final byte shardIndex = in.readByte();
-      final float score = in.readFloat();
-      final int docId = in.readInt();
-      final String shard = shardByShardIndex.get(shardIndex);
-      final Hit hit;
-      if (sortFieldTypesLen > 0) {
-        hit = new Hit(shard, _nodeName, score, docId, _sortFieldTypes);
-      } else {
-        hit = new Hit(shard, _nodeName, score, docId);
-      }
-      addHit(hit);
-      byte sortFieldsLen = in.readByte();
-      if (sortFieldsLen > 0) {
-        WritableComparable[] sortFields = new WritableComparable[sortFieldsLen];
-        for (int k = 0; k < sortFieldsLen; k++) {
-          sortFields[k] = _sortFieldTypes[k].newWritableComparable();
-          sortFields[k].readFields(in);
+      final float score = (flags & FLAG_SCORES) != 0 ? in.readFloat() : Float.NaN;
+      _hits.add(new Hit(shardByShardIndex[shardIndices[i]], nodeName, score, docIds[i], _sortFieldTypes));
+    }
+    if ((flags & FLAG_SORT_FIELDS) != 0) {
+      final WritableComparable[][] sortFields = new WritableComparable[hitCount][sortFieldTypesLen];
+      for (int k = 0; k < sortFieldTypesLen; k++) {
+        for (int i = 0; i < hitCount; i++) {
+          sortFields[i][k] = _sortFieldTypes[k].newWritableComparable();
+          sortFields[i][k].readFields(in);
         }
-        hit.setSortFields(sortFields);
       }
+      for (int i = 0; i < hitCount; i++) {
+        _hits.get(i).setSortFields(sortFields[i]);
+      }
+    }
+
+    final int shardDocFreqsCount = WritableUtils.readVInt(in);
+    if (shardDocFreqsCount > 0) {
+      _shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>(shardDocFreqsCount);
+      for (int i = 0; i < shardDocFreqsCount; i++) {
+        String shardName = Text.readString(in);
+        DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+        docFreqs.readFields(in);
+        _shardDocFreqs.put(shardName, docFreqs);
+      }
+    } else {
+      _shardDocFreqs = null;
+    }
+
+    final int missingShardsCount = WritableUtils.readVInt(in);
+    if (missingShardsCount > 0) {
+      _missingShards = new HashSet<String>(missingShardsCount);
+      for (int i = 0; i < missingShardsCount; i++) {
+        _missingShards.add(Text.readString(in));
+      }
+    } else {
+      _missingShards = Collections.emptySet();
     }
 
     if (LOG.isDebugEnabled()) {
@@ -114,40 +163,78 @@ public class HitsMapWritable implements Writable {
     if (LOG.isDebugEnabled()) {
       start = System.currentTimeMillis();
     }
+    out.writeByte(VERSION);
     out.writeUTF(_nodeName);
-    out.writeInt(_totalHits);
+    WritableUtils.writeVInt(out, _totalHits);
     if (_sortFieldTypes == null) {
-      out.writeByte(0);
+      WritableUtils.writeVInt(out, 0);
     } else {
-      out.writeByte(_sortFieldTypes.length);
+      WritableUtils.writeVInt(out, _sortFieldTypes.length);
       for (WritableType writableType : _sortFieldTypes) {
         out.writeByte(writableType.ordinal());
       }
     }
     int shardCount = _shards.size();
-    out.writeInt(shardCount);
-    byte shardIndex = 0;
-    Map<String, Byte> shardIndexByShard = new HashMap<String, Byte>(shardCount);
+    WritableUtils.writeVInt(out, shardCount);
+    int shardIndex = 0;
+    Map<String, Integer> shardIndexByShard = new HashMap<String, Integer>(shardCount);
     for (String shard : _shards) {
-      out.writeUTF(shard);
+      Text.writeString(out, shard);
       shardIndexByShard.put(shard, shardIndex);
       shardIndex++;
     }
-    out.writeInt(_hits.size());
+
+    final int hitCount = _hits.size();
+    WritableUtils.writeVInt(out, hitCount);
+    byte flags = 0;
+    for (Hit hit : _hits) {
+      if (!Float.isNaN(hit.getScore())) {
+        // scores are not tracked for field sorts by default
+        flags |= FLAG_SCORES;
+        break;
+      }
+    }
+    if (_sortFieldTypes != null && hitCount > 0) {
+      flags |= FLAG_SORT_FIELDS;
+    }
+    out.writeByte(flags);
     for (Hit hit : _hits) {
-      out.writeByte(shardIndexByShard.get(hit.getShard()));
-      out.writeFloat(hit.getScore());
-      out.writeInt(hit.getDocId());
-      WritableComparable[] sortFields = hit.getSortFields();
-      if (sortFields == null) {
-        out.writeByte(0);
-      } else {
-        out.writeByte(sortFields.length);
-        for (Writable writable : sortFields) {
-          writable.write(out);
+      WritableUtils.writeVInt(out, shardIndexByShard.get(hit.getShard()));
+    }
+    for (Hit hit : _hits) {
+      WritableUtils.writeVInt(out, hit.getDocId());
+    }
+    if ((flags & FLAG_SCORES) != 0) {
+      for (Hit hit : _hits) {
+        out.writeFloat(hit.getScore());
+      }
+    }
+    if ((flags & FLAG_SORT_FIELDS) != 0) {
+      for (int k = 0; k < _sortFieldTypes.length; k++) {
+        for (Hit hit : _hits) {
+          WritableComparable[] sortFields = hit.getSortFields();
+          if (sortFields == null || sortFields.length != _sortFieldTypes.length) {
+            throw new IOException("hit " + hit + " has no sort fields matching " + Arrays.asList(_sortFieldTypes));
+          }
+          sortFields[k].write(out);
         }
       }
     }
+
+    if (_shardDocFreqs == null) {
+      WritableUtils.writeVInt(out, 0);
+    } else {
+      WritableUtils.writeVInt(out, _shardDocFreqs.size());
+      for (Map.Entry<String, DocumentFrequencyWritable> entry : _shardDocFreqs.entrySet()) {
+        Text.writeString(out, entry.getKey());
+        entry.getValue().write(out);
+      }
+    }
+
+    WritableUtils.writeVInt(out, _missingShards.size());
+    for (String shard : _missingShards) {
+      Text.writeString(out, shard);
+    }
     if (LOG.isDebugEnabled()) {
       final long end = System.currentTimeMillis();
       LOG.debug("HitsMap writing took " + (end - start) / 1000.0 + "sec.");
@@ -208,4 +295,30 @@ public class HitsMapWritable implements Writable {
     _sortFieldTypes = sortFieldTypes;
   }
 
+  /**
+   * @return the term statistics of each searched shard if they were requested
+   *         with the search (see
+   *         {@link ILuceneServer#searchAndFetchDocFreqs(QueryWritable, DocumentFrequencyWritable, String[], long, int, SortWritable, FilterWritable)}
+   *         ), otherwise null
+   */
+  public Map<String, DocumentFrequencyWritable> getShardDocFreqs() {
+    return _shardDocFreqs;
+  }
+
+  public void setShardDocFreqs(Map<String, DocumentFrequencyWritable> shardDocFreqs) {
+    _shardDocFreqs = shardDocFreqs;
+  }
+
+  /**
+   * @return the shards the node did not search, the hits are incomplete if
+   *         not empty
+   */
+  public Set<String> getMissingShards() {
+    return _missingShards;
+  }
+
+  public void setMissingShards(Set<String> missingShards) {
+    _missingShards = missingShards;
+  }
+
 }
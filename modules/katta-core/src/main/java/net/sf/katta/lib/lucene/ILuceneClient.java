@@ -24,6 +24,8 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.Filter;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Client for searching document indices deployed on a katta cluster.
  * <p>
@@ -111,6 +113,99 @@ public interface ILuceneClient {
    */
   public Hits search(Query query, String[] indexNames, int count, Sort sort, Filter filter) throws KattaException;
 
+  /**
+   * Searches for the hits following the given cursor, ordered by score. Use
+   * this to page through large results: only count hits per shard are
+   * collected, independent of how many pages were fetched before.
+   * 
+   * @param cursor
+   *          The position of the last hit of the previous page, see
+   *          {@link Hits#getCursor()}.
+   * @param query
+   *          The query to search with.
+   * @param indexNames
+   *          A list of index names to search in.
+   * @param count
+   *          The count of results that should be returned.
+   * @return A object that capsulates all results.
+   * @throws KattaException
+   */
+  public Hits searchAfter(SearchCursor cursor, Query query, String[] indexNames, int count) throws KattaException;
+
+  /**
+   * Searches for the hits following the given cursor, ordered by score.
+   * 
+   * @param cursor
+   *          The position of the last hit of the previous page, see
+   *          {@link Hits#getCursor()}.
+   * @param query
+   *          The query to search with.
+   * @param indexNames
+   *          A list of index names to search in.
+   * @param count
+   *          The count of results that should be returned.
+   * @param filter
+   *          A query filter
+   * @return A object that capsulates all results.
+   * @throws KattaException
+   * @see #searchAfter(SearchCursor, Query, String[], int)
+   */
+  public Hits searchAfter(SearchCursor cursor, Query query, String[] indexNames, int count, Filter filter)
+          throws KattaException;
+
+  /**
+   * Searches with multiple queries in the supplied indexes. The term
+   * statistics of all queries are fetched with one call per node and all
+   * queries are sent to every node in one call, so this is much cheaper than
+   * calling {@link #search(Query, String[], int)} for each of many small
+   * queries.
+   * @param queries
+   *          The queries to search with.
+   * @param indexNames
+   *          A list of index names to search in.
+   * @param count
+   *          The count of results that should be returned per query.
+   * @return The results of every query, in the order of the queries.
+   * @throws KattaException
+   */
+  public List<Hits> searchBatch(List<Query> queries, String[] indexNames, int count) throws KattaException;
+
+  /**
+   * Like {@link #search(Query, String[], int)} but returns immediately. No
+   * thread is blocked while the nodes search, the returned future completes
+   * with the hits or fails with a {@link KattaException}. Completion callbacks
+   * can be registered with
+   * {@link com.google.common.util.concurrent.Futures#addCallback}. Cancelling
+   * the future terminates the search.
+   * 
+   * @param query
+   *          The query to search with.
+   * @param indexNames
+   *          A list of index names to search in.
+   * @param count
+   *          The count of results that should be returned.
+   * @return The future of the results.
+   */
+  public ListenableFuture<Hits> searchAsync(Query query, String[] indexNames, int count);
+
+  /**
+   * Like {@link #search(Query, String[], int, Sort, Filter)} but returns
+   * immediately, see {@link #searchAsync(Query, String[], int)}.
+   * 
+   * @param query
+   *          The query to search with.
+   * @param indexNames
+   *          A list of index names to search in.
+   * @param count
+   *          The count of results that should be returned.
+   * @param sort
+   *          Sort criteria for returned hits, may be null
+   * @param filter
+   *          A query filter, may be null
+   * @return The future of the results.
+   */
+  public ListenableFuture<Hits> searchAsync(Query query, String[] indexNames, int count, Sort sort, Filter filter);
+
   /**
    * Gets all the details to a hit.
    * 
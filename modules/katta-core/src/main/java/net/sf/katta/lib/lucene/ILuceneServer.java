@@ -100,6 +100,64 @@ public interface ILuceneServer extends VersionedProtocol {
   public HitsMapWritable search(QueryWritable query, DocumentFrequencyWritable freqs, String[] shardNames, long timeout, int count,
       SortWritable sort, FilterWritable filter) throws IOException;
 
+  /**
+   * Returns the top hits following the given cursor, so deep result pages can
+   * be fetched without collecting all hits of the previous pages. Each shard
+   * only collects hits after the cursor. The hits are ordered by score.
+   *
+   * @param query         The query to run.
+   * @param freqs         Term frequency information for term weighting.
+   * @param shardNames    A array of shard names to search in.
+   * @param timeout       How long the query is allowed to run before getting interrupted
+   * @param count         The top n high score hits after the cursor.
+   * @param cursor        The position of the last hit of the previous page.
+   * @param filter        A query filter, may be null
+   * @return A list of hits from the search.
+   * @throws IOException     If the search had a problem reading files.
+   */
+  public HitsMapWritable searchAfter(QueryWritable query, DocumentFrequencyWritable freqs, String[] shardNames,
+      long timeout, int count, SearchCursor cursor, FilterWritable filter) throws IOException;
+
+  /**
+   * Searches with multiple queries in one call. The queries are executed
+   * concurrently on the searcher threads, each query searches its shards on
+   * one thread. All queries share the given term frequencies, which must cover
+   * the terms of every query. A query which did not start before the timeout
+   * ran out is skipped, its result has no hits and all shards marked as
+   * missing.
+   *
+   * @param queries       The queries to run.
+   * @param freqs         Term frequency information for term weighting.
+   * @param shardNames    A array of shard names to search in.
+   * @param timeout       How long the queries are allowed to run in total before getting interrupted
+   * @param count         The top n high score hits per query.
+   * @return The hits of every query, in the order of the queries.
+   * @throws IOException     If the search had a problem reading files.
+   */
+  public HitsMapWritable[] searchBatch(QueryWritable[] queries, DocumentFrequencyWritable freqs, String[] shardNames,
+      long timeout, int count) throws IOException;
+
+  /**
+   * Searches without a preceding {@link #getDocFreqs(QueryWritable, String[])}
+   * round trip. The given term frequencies may be incomplete (typically they
+   * come from a client side cache). Statistics for terms which are missing in
+   * freqs are taken from the shards of this node, scaled to the total number of
+   * documents in freqs if that is known. The per-shard statistics of those terms
+   * are returned with the hits, see {@link HitsMapWritable#getShardDocFreqs()}.
+   *
+   * @param query         The query to run.
+   * @param freqs         Known term frequency information, may be incomplete or empty.
+   * @param shardNames    A array of shard names to search in.
+   * @param timeout       How long the query is allowed to run before getting interrupted
+   * @param count         The top n high score hits.
+   * @param sort          sort criteria for returned hits, may be null
+   * @param filter        A query filter, may be null
+   * @return A list of hits from the search together with the missing term statistics per shard.
+   * @throws IOException     If the search had a problem reading files.
+   */
+  public HitsMapWritable searchAndFetchDocFreqs(QueryWritable query, DocumentFrequencyWritable freqs, String[] shardNames,
+      long timeout, int count, SortWritable sort, FilterWritable filter) throws IOException;
+
 
   /**
    * Returns the number of documents a term occurs in. In a distributed search
@@ -126,6 +184,21 @@ public interface ILuceneServer extends VersionedProtocol {
    */
   public MapWritable getDetails(String[] shards, int docId, String[] fields) throws IOException;
 
+  /**
+   * Returns the requested fields of multiple lucene documents in one call. The
+   * documents are given by their shard and id, all of them of the given shards.
+   * The call fails if one of the shards is not served by the node anymore, so
+   * the client retries it on another replica.
+   *
+   * @param shards       The shards of this node to load documents from.
+   * @param docShards    The shard of every document.
+   * @param docIds       The id of every document.
+   * @param fields       The fields to return, null for all fields.
+   * @return             details of the documents in the order of docIds
+   * @throws IOException
+   */
+  public MapWritable[] getDetails(String[] shards, String[] docShards, int[] docIds, String[] fields) throws IOException;
+
   /**
    * Returns the lucene document. Each field:value tuple of the lucene document
    * is inserted into the returned map. In most cases
@@ -18,16 +18,24 @@ package net.sf.katta.lib.lucene;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Set;
 
 import net.sf.katta.client.Client;
 import net.sf.katta.client.ClientResult;
 import net.sf.katta.client.INodeSelectionPolicy;
+import net.sf.katta.client.IResultPolicy;
+import net.sf.katta.client.IShardDependentArgument;
+import net.sf.katta.client.ResultCompletePolicy;
+import net.sf.katta.protocol.IAddRemoveListener;
 import net.sf.katta.protocol.InteractionProtocol;
 import net.sf.katta.util.ClientConfiguration;
 import net.sf.katta.util.KattaException;
@@ -35,10 +43,18 @@ import net.sf.katta.util.ZkConfiguration;
 
 import org.apache.hadoop.io.MapWritable;
 import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Default implementation of {@link ILuceneClient}.
  */
@@ -56,38 +72,81 @@ public class LuceneClient implements ILuceneClient {
     }
   }
 
+  public final static String CONF_KEY_DOC_FREQ_CACHE_ENABLED = "lucene.client.docfreq-cache.enabled";
+  public final static String CONF_KEY_DOC_FREQ_CACHE_MAX_SIZE = "lucene.client.docfreq-cache.max-size";
+  public final static String CONF_KEY_DOC_FREQ_CACHE_EXPIRE_SECONDS = "lucene.client.docfreq-cache.expire-seconds";
+  public final static String CONF_KEY_PRIORITY = "lucene.client.priority";
+
   private long _timeout = 12000;
+  private QueryPriority _priority = QueryPriority.INTERACTIVE;
   private Client _kattaClient;
+  private DocumentFrequencyCache _docFreqCache;
 
   public LuceneClient() {
     _kattaClient = new Client(getServerClass());
+    init(_kattaClient.getClientConfiguration());
   }
 
   public LuceneClient(final INodeSelectionPolicy nodeSelectionPolicy) {
     _kattaClient = new Client(getServerClass(), nodeSelectionPolicy);
+    init(_kattaClient.getClientConfiguration());
   }
 
   public LuceneClient(InteractionProtocol protocol) {
     _kattaClient = new Client(getServerClass(), protocol);
+    init(_kattaClient.getClientConfiguration());
   }
 
   public LuceneClient(final ZkConfiguration zkConfig) {
     _kattaClient = new Client(getServerClass(), zkConfig);
+    init(_kattaClient.getClientConfiguration());
   }
 
   public LuceneClient(final INodeSelectionPolicy policy, final ZkConfiguration zkConfig) {
     _kattaClient = new Client(getServerClass(), policy, zkConfig);
+    init(_kattaClient.getClientConfiguration());
   }
 
   public LuceneClient(final INodeSelectionPolicy policy, final ZkConfiguration zkConfig,
           ClientConfiguration clientConfiguration) {
     _kattaClient = new Client(getServerClass(), policy, zkConfig, clientConfiguration);
+    init(clientConfiguration);
+  }
+
+  private void init(ClientConfiguration clientConfiguration) {
+    _priority = QueryPriority.parse(clientConfiguration.getProperty(CONF_KEY_PRIORITY,
+            QueryPriority.INTERACTIVE.name()));
+    if (clientConfiguration.getBoolean(CONF_KEY_DOC_FREQ_CACHE_ENABLED, false)) {
+      int maxSize = clientConfiguration.getInt(CONF_KEY_DOC_FREQ_CACHE_MAX_SIZE, 100000);
+      int expireSeconds = clientConfiguration.getInt(CONF_KEY_DOC_FREQ_CACHE_EXPIRE_SECONDS, 600);
+      _docFreqCache = new DocumentFrequencyCache(maxSize, expireSeconds);
+      // an index redeployed under the same name has other statistics
+      _kattaClient.addIndexListener(new IAddRemoveListener() {
+        @Override
+        public void added(String index) {
+          _docFreqCache.invalidate(index);
+        }
+
+        @Override
+        public void removed(String index) {
+          _docFreqCache.invalidate(index);
+        }
+      });
+    }
   }
 
   public Client getClient() {
     return _kattaClient;
   }
 
+  /**
+   * @return the cache of global term statistics or null if disabled (see
+   *         {@link #CONF_KEY_DOC_FREQ_CACHE_ENABLED})
+   */
+  public DocumentFrequencyCache getDocFreqCache() {
+    return _docFreqCache;
+  }
+
   public long getTimeout() {
     return _timeout;
   }
@@ -96,6 +155,19 @@ public class LuceneClient implements ILuceneClient {
     this._timeout = timeout;
   }
 
+  public QueryPriority getPriority() {
+    return _priority;
+  }
+
+  /**
+   * Sets the priority class of all following requests of this client. Batch
+   * jobs should use their own client with {@link QueryPriority#BATCH}, so the
+   * nodes keep them from delaying interactive requests.
+   */
+  public void setPriority(QueryPriority priority) {
+    _priority = priority;
+  }
+
   @Override
   public Hits search(final Query query, final String[] indexNames) throws KattaException {
     return search(query, indexNames, Integer.MAX_VALUE);
@@ -145,63 +217,394 @@ public class LuceneClient implements ILuceneClient {
     return search(query, indexNames, count, sort, null);
   }
 
+  private static final Method SEARCH_AND_FETCH_DOC_FREQS_METHOD;
+  static {
+    try {
+      SEARCH_AND_FETCH_DOC_FREQS_METHOD = ILuceneServer.class.getMethod("searchAndFetchDocFreqs", new Class[] {
+              QueryWritable.class, DocumentFrequencyWritable.class, String[].class, Long.TYPE, Integer.TYPE,
+              SortWritable.class, FilterWritable.class });
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException("Could not find method searchAndFetchDocFreqs() in ILuceneSearch!");
+    }
+  }
+
   @Override
   public Hits search(final Query query, final String[] indexNames, final int count, final Sort sort, final Filter filter)
           throws KattaException {
-    final DocumentFrequencyWritable docFreqs = getDocFrequencies(query, indexNames);
+    Hits result = new Hits();
+    HitsMergePolicy resultPolicy = new HitsMergePolicy(new ResultCompletePolicy<HitsMapWritable>(_timeout, true),
+            result, sort, count);
     ClientResult<HitsMapWritable> results;
-
-    if (sort == null && filter == null) {
-      results = _kattaClient.broadcastToIndices(_timeout, true, SEARCH_METHOD, SEARCH_METHOD_SHARD_ARG_IDX, indexNames,
-              new QueryWritable(query), docFreqs, null, _timeout, Integer.valueOf(count));
-    } else if (sort != null && filter == null) {
-      results = _kattaClient.broadcastToIndices(_timeout, true, SORTED_SEARCH_METHOD, SEARCH_METHOD_SHARD_ARG_IDX,
-              indexNames, new QueryWritable(query), docFreqs, null, _timeout, Integer.valueOf(count), new SortWritable(
-                      sort));
-    } else if (sort == null && filter != null) {
-      results = _kattaClient.broadcastToIndices(_timeout, true, FILTERED_SEARCH_METHOD, SEARCH_METHOD_SHARD_ARG_IDX,
-              indexNames, new QueryWritable(query), docFreqs, null, _timeout, Integer.valueOf(count),
-              new FilterWritable(filter));
+    if (_docFreqCache != null) {
+      results = searchWithCachedDocFreqs(query, indexNames, count, sort, filter, resultPolicy);
     } else {
-      results = _kattaClient.broadcastToIndices(_timeout, true, FILTERED_SORTED_SEARCH_METHOD,
-              SEARCH_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query), docFreqs, null, _timeout,
-              Integer.valueOf(count), new SortWritable(sort), new FilterWritable(filter));
+      final DocumentFrequencyWritable docFreqs = getDocFrequencies(query, indexNames);
+      results = broadcastSearch(query, docFreqs, indexNames, count, sort, filter, resultPolicy);
     }
+    return toHits(results, resultPolicy, result);
+  }
+
+  private static Hits toHits(ClientResult<HitsMapWritable> results, HitsMergePolicy resultPolicy, Hits result)
+          throws KattaException {
     if (results.isError()) {
       throw results.getKattaException();
     }
-    Hits result = new Hits();
-    HitsMapWritable exampleHitWritable = null;
     if (!results.getMissingShards().isEmpty()) {
       LOG.warn("incomplete result - missing shard-results: " + results.getMissingShards() + ", "
               + results.getShardCoverage());
       result.setMissingShards(results.getMissingShards());
     }
-    for (HitsMapWritable hmw : results.getResults()) {
-      List<Hit> hits = hmw.getHitList();
-      if (exampleHitWritable == null && !hits.isEmpty()) {
-        exampleHitWritable = hmw;
-      }
-      result.addTotalHits(hmw.getTotalHits());
-      result.addHits(hits);
-    }
     long start = 0;
     if (LOG.isDebugEnabled()) {
       start = System.currentTimeMillis();
     }
-    if (result.size() > 0) {
-      if (sort == null) {
-        result.sort(count);
+    // results which came in after the policy was asked the last time
+    resultPolicy.mergeNewResults(results);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Time for merging remaining results: " + (System.currentTimeMillis() - start) + " ms");
+    }
+    return result;
+  }
+
+  @Override
+  public ListenableFuture<Hits> searchAsync(Query query, String[] indexNames, int count) {
+    return searchAsync(query, indexNames, count, null, null);
+  }
+
+  @Override
+  public ListenableFuture<Hits> searchAsync(Query query, String[] indexNames, int count, Sort sort, Filter filter) {
+    return searchAsync(query, indexNames, count, sort, filter, new ResultCompletePolicy<HitsMapWritable>(_timeout,
+            true));
+  }
+
+  /**
+   * Like {@link #searchAsync(Query, String[], int, Sort, Filter)}, but the
+   * given policy decides when the search is complete. For example a
+   * {@link ResultCompletePolicy} with a coverage completes with the hits of
+   * most shards instead of waiting for the slowest node.
+   */
+  public ListenableFuture<Hits> searchAsync(final Query query, final String[] indexNames, final int count,
+          final Sort sort, final Filter filter, IResultPolicy<HitsMapWritable> completionPolicy) {
+    final Hits result = new Hits();
+    final HitsMergePolicy resultPolicy = new HitsMergePolicy(completionPolicy, result, sort, count);
+    ListenableFuture<ClientResult<HitsMapWritable>> results;
+    try {
+      if (_docFreqCache != null) {
+        results = searchWithCachedDocFreqsAsync(query, indexNames, count, sort, filter, resultPolicy);
       } else {
-        result.fieldSort(sort, exampleHitWritable.getSortFieldTypes(), count);
+        results = searchWithDocFreqsAsync(query, indexNames, count, sort, filter, resultPolicy);
       }
+    } catch (KattaException e) {
+      return Futures.immediateFailedFuture(e);
     }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Time for sorting: " + (System.currentTimeMillis() - start) + " ms");
+    return Futures.transform(results, new AsyncFunction<ClientResult<HitsMapWritable>, Hits>() {
+      @Override
+      public ListenableFuture<Hits> apply(ClientResult<HitsMapWritable> input) throws KattaException {
+        return Futures.immediateFuture(toHits(input, resultPolicy, result));
+      }
+    });
+  }
+
+  /**
+   * Fetches the term statistics and searches with them as soon as they
+   * arrived, without blocking a thread in between.
+   */
+  private ListenableFuture<ClientResult<HitsMapWritable>> searchWithDocFreqsAsync(final Query query,
+          final String[] indexNames, final int count, final Sort sort, final Filter filter,
+          final IResultPolicy<HitsMapWritable> resultPolicy) throws KattaException {
+    return Futures.transform(getDocFrequenciesAsync(query, indexNames),
+            new AsyncFunction<DocumentFrequencyWritable, ClientResult<HitsMapWritable>>() {
+              @Override
+              public ListenableFuture<ClientResult<HitsMapWritable>> apply(DocumentFrequencyWritable docFreqs)
+                      throws KattaException {
+                return _kattaClient.broadcastToIndicesAsync(resultPolicy, getSearchMethod(sort, filter),
+                        SEARCH_METHOD_SHARD_ARG_IDX, indexNames, getSearchArgs(query, docFreqs, count, sort, filter));
+              }
+            });
+  }
+
+  private static final Method SEARCH_AFTER_METHOD;
+  static {
+    try {
+      SEARCH_AFTER_METHOD = ILuceneServer.class.getMethod("searchAfter", new Class[] { QueryWritable.class,
+              DocumentFrequencyWritable.class, String[].class, Long.TYPE, Integer.TYPE, SearchCursor.class,
+              FilterWritable.class });
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException("Could not find method searchAfter() in ILuceneSearch!");
+    }
+  }
+
+  @Override
+  public Hits searchAfter(SearchCursor cursor, Query query, String[] indexNames, int count) throws KattaException {
+    return searchAfter(cursor, query, indexNames, count, null);
+  }
+
+  @Override
+  public Hits searchAfter(SearchCursor cursor, Query query, String[] indexNames, int count, Filter filter)
+          throws KattaException {
+    Hits result = new Hits();
+    HitsMergePolicy resultPolicy = new HitsMergePolicy(new ResultCompletePolicy<HitsMapWritable>(_timeout, true),
+            result, null, count);
+    final DocumentFrequencyWritable docFreqs = getDocFrequencies(query, indexNames);
+    ClientResult<HitsMapWritable> results = _kattaClient.broadcastToIndices(resultPolicy, SEARCH_AFTER_METHOD,
+            SEARCH_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority), docFreqs, null, _timeout,
+            Integer.valueOf(count), cursor, filter != null ? new FilterWritable(filter) : null);
+    if (results.isError()) {
+      throw results.getKattaException();
+    }
+    if (!results.getMissingShards().isEmpty()) {
+      LOG.warn("incomplete result - missing shard-results: " + results.getMissingShards() + ", "
+              + results.getShardCoverage());
+      result.setMissingShards(results.getMissingShards());
+    }
+    resultPolicy.mergeNewResults(results);
+    return result;
+  }
+
+  private static final Method SEARCH_BATCH_METHOD;
+  static {
+    try {
+      SEARCH_BATCH_METHOD = ILuceneServer.class.getMethod("searchBatch", new Class[] { QueryWritable[].class,
+              DocumentFrequencyWritable.class, String[].class, Long.TYPE, Integer.TYPE });
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException("Could not find method searchBatch() in ILuceneSearch!");
+    }
+  }
+
+  /**
+   * The term statistics of all queries are fetched with one
+   * {@link #getDocFrequencies(Query, String[])} call for a query combining all
+   * queries, then all queries are sent to every node with one call.
+   */
+  @Override
+  public List<Hits> searchBatch(List<Query> queries, String[] indexNames, int count) throws KattaException {
+    final List<Hits> result = new ArrayList<Hits>(queries.size());
+    if (queries.isEmpty()) {
+      return result;
+    }
+    final QueryWritable[] queryWritables = new QueryWritable[queries.size()];
+    for (int i = 0; i < queryWritables.length; i++) {
+      queryWritables[i] = new QueryWritable(queries.get(i), _priority);
+      result.add(new Hits());
+    }
+    final DocumentFrequencyWritable docFreqs = getDocFrequencies(combine(queries), indexNames);
+    ClientResult<HitsMapWritable[]> results = _kattaClient.broadcastToIndices(_timeout, true, SEARCH_BATCH_METHOD,
+            SEARCH_METHOD_SHARD_ARG_IDX, indexNames, queryWritables, docFreqs, null, _timeout, Integer.valueOf(count));
+    if (results.isError()) {
+      throw results.getKattaException();
+    }
+    // the shards a node skipped for a query because the time ran out
+    final List<Set<String>> skippedShards = new ArrayList<Set<String>>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      skippedShards.add(new HashSet<String>());
+    }
+    for (HitsMapWritable[] nodeResults : results.getResults()) {
+      for (int i = 0; i < nodeResults.length; i++) {
+        Hits hits = result.get(i);
+        hits.addTotalHits(nodeResults[i].getTotalHits());
+        hits.mergeHits(nodeResults[i].getHitList(), null, count);
+        skippedShards.get(i).addAll(nodeResults[i].getMissingShards());
+      }
+    }
+    if (!results.getMissingShards().isEmpty()) {
+      LOG.warn("incomplete result - missing shard-results: " + results.getMissingShards() + ", "
+              + results.getShardCoverage());
+    }
+    for (int i = 0; i < result.size(); i++) {
+      Set<String> missingShards = skippedShards.get(i);
+      missingShards.addAll(results.getMissingShards());
+      if (!missingShards.isEmpty()) {
+        result.get(i).setMissingShards(missingShards);
+      }
     }
     return result;
   }
 
+  /**
+   * @return a query containing all given queries, nested if there are more
+   *         queries than a boolean query may have clauses
+   */
+  private static Query combine(List<Query> queries) {
+    if (queries.size() == 1) {
+      return queries.get(0);
+    }
+    int maxClauseCount = BooleanQuery.getMaxClauseCount();
+    if (queries.size() > maxClauseCount) {
+      List<Query> groups = new ArrayList<Query>();
+      for (int i = 0; i < queries.size(); i += maxClauseCount) {
+        groups.add(combine(queries.subList(i, Math.min(i + maxClauseCount, queries.size()))));
+      }
+      return combine(groups);
+    }
+    BooleanQuery combined = new BooleanQuery(true);
+    for (Query query : queries) {
+      combined.add(query, Occur.SHOULD);
+    }
+    return combined;
+  }
+
+  /**
+   * Merges the hits of every node result into the final hits as soon as the
+   * waiting client thread is notified about it, so merging overlaps with
+   * waiting for the slower nodes. Node results are sorted already, each merge
+   * keeps only the best count hits.
+   */
+  private static class HitsMergePolicy implements IResultPolicy<HitsMapWritable> {
+
+    private final IResultPolicy<HitsMapWritable> _delegate;
+    private final Hits _hits;
+    private final Sort _sort;
+    private final int _count;
+    private final Set<HitsMapWritable> _mergedResults = Collections
+            .newSetFromMap(new IdentityHashMap<HitsMapWritable, Boolean>());
+    private Comparator<Hit> _comparator;
+
+    public HitsMergePolicy(IResultPolicy<HitsMapWritable> delegate, Hits hits, Sort sort, int count) {
+      _delegate = delegate;
+      _hits = hits;
+      _sort = sort;
+      _count = count;
+    }
+
+    @Override
+    public long waitTime(ClientResult<HitsMapWritable> result) {
+      mergeNewResults(result);
+      return _delegate.waitTime(result);
+    }
+
+    public synchronized void mergeNewResults(ClientResult<HitsMapWritable> result) {
+      for (HitsMapWritable hmw : result.getResults()) {
+        if (!_mergedResults.add(hmw)) {
+          continue;
+        }
+        _hits.addTotalHits(hmw.getTotalHits());
+        List<Hit> hits = hmw.getHitList();
+        if (hits.isEmpty()) {
+          continue;
+        }
+        if (_sort != null && _comparator == null) {
+          _comparator = new FieldSortComparator(_sort.getSort(), hmw.getSortFieldTypes());
+        }
+        _hits.mergeHits(hits, _comparator, _count);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Merge hits, " + _delegate;
+    }
+  }
+
+  private ClientResult<HitsMapWritable> broadcastSearch(final Query query, final DocumentFrequencyWritable docFreqs,
+          final String[] indexNames, final int count, final Sort sort, final Filter filter,
+          IResultPolicy<HitsMapWritable> resultPolicy) throws KattaException {
+    return _kattaClient.broadcastToIndices(resultPolicy, getSearchMethod(sort, filter), SEARCH_METHOD_SHARD_ARG_IDX,
+            indexNames, getSearchArgs(query, docFreqs, count, sort, filter));
+  }
+
+  private static Method getSearchMethod(Sort sort, Filter filter) {
+    if (sort == null && filter == null) {
+      return SEARCH_METHOD;
+    } else if (sort != null && filter == null) {
+      return SORTED_SEARCH_METHOD;
+    } else if (sort == null && filter != null) {
+      return FILTERED_SEARCH_METHOD;
+    }
+    return FILTERED_SORTED_SEARCH_METHOD;
+  }
+
+  private Object[] getSearchArgs(Query query, DocumentFrequencyWritable docFreqs, int count, Sort sort, Filter filter) {
+    List<Object> args = new ArrayList<Object>(7);
+    args.addAll(Arrays.asList(new QueryWritable(query, _priority), docFreqs, null, _timeout, Integer.valueOf(count)));
+    if (sort != null) {
+      args.add(new SortWritable(sort));
+    }
+    if (filter != null) {
+      args.add(new FilterWritable(filter));
+    }
+    return args.toArray();
+  }
+
+  /**
+   * Searches in a single round trip if possible. If the statistics of all query
+   * terms are cached, the normal search is called with them. Otherwise the
+   * nodes complete the statistics while searching and return the missing ones,
+   * which are then cached. Queries which need to be rewritten on the nodes
+   * (like prefix or wildcard queries) fall back to a separate
+   * {@link #getDocFrequencies(Query, String[])} call.
+   */
+  private ClientResult<HitsMapWritable> searchWithCachedDocFreqs(final Query query, final String[] indexNames,
+          final int count, final Sort sort, final Filter filter, IResultPolicy<HitsMapWritable> resultPolicy)
+          throws KattaException {
+    Set<Term> terms = new HashSet<Term>();
+    try {
+      query.extractTerms(terms);
+    } catch (UnsupportedOperationException e) {
+      // query needs to be rewritten first
+      return broadcastSearch(query, getDocFrequencies(query, indexNames), indexNames, count, sort, filter,
+              resultPolicy);
+    }
+    Map<String, List<String>> indexToShards = _kattaClient.getIndexToShardsMap(indexNames);
+    if (_docFreqCache.contains(indexToShards.keySet(), terms)) {
+      DocumentFrequencyWritable docFreqs = _docFreqCache.get(indexToShards.keySet(), terms);
+      return broadcastSearch(query, docFreqs, indexNames, count, sort, filter, resultPolicy);
+    }
+
+    DocumentFrequencyWritable docFreqs = _docFreqCache.get(indexToShards.keySet(), terms);
+    ClientResult<HitsMapWritable> results = _kattaClient.broadcastToIndices(resultPolicy,
+            SEARCH_AND_FETCH_DOC_FREQS_METHOD, SEARCH_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority),
+            docFreqs, null, _timeout, Integer.valueOf(count), sort != null ? new SortWritable(sort) : null,
+            filter != null ? new FilterWritable(filter) : null);
+    cacheShardDocFreqs(indexToShards, results);
+    return results;
+  }
+
+  /**
+   * Like
+   * {@link #searchWithCachedDocFreqs(Query, String[], int, Sort, Filter, IResultPolicy)}
+   * without blocking the calling thread.
+   */
+  private ListenableFuture<ClientResult<HitsMapWritable>> searchWithCachedDocFreqsAsync(final Query query,
+          final String[] indexNames, final int count, final Sort sort, final Filter filter,
+          IResultPolicy<HitsMapWritable> resultPolicy) throws KattaException {
+    Set<Term> terms = new HashSet<Term>();
+    try {
+      query.extractTerms(terms);
+    } catch (UnsupportedOperationException e) {
+      // query needs to be rewritten first
+      return searchWithDocFreqsAsync(query, indexNames, count, sort, filter, resultPolicy);
+    }
+    final Map<String, List<String>> indexToShards = _kattaClient.getIndexToShardsMap(indexNames);
+    DocumentFrequencyWritable docFreqs = _docFreqCache.get(indexToShards.keySet(), terms);
+    if (_docFreqCache.contains(indexToShards.keySet(), terms)) {
+      return _kattaClient.broadcastToIndicesAsync(resultPolicy, getSearchMethod(sort, filter),
+              SEARCH_METHOD_SHARD_ARG_IDX, indexNames, getSearchArgs(query, docFreqs, count, sort, filter));
+    }
+    ListenableFuture<ClientResult<HitsMapWritable>> results = _kattaClient.broadcastToIndicesAsync(resultPolicy,
+            SEARCH_AND_FETCH_DOC_FREQS_METHOD, SEARCH_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query,
+                    _priority), docFreqs, null, _timeout, Integer.valueOf(count), sort != null ? new SortWritable(sort)
+                    : null, filter != null ? new FilterWritable(filter) : null);
+    return Futures.transform(results, new Function<ClientResult<HitsMapWritable>, ClientResult<HitsMapWritable>>() {
+      @Override
+      public ClientResult<HitsMapWritable> apply(ClientResult<HitsMapWritable> input) {
+        cacheShardDocFreqs(indexToShards, input);
+        return input;
+      }
+    });
+  }
+
+  private void cacheShardDocFreqs(Map<String, List<String>> indexToShards, ClientResult<HitsMapWritable> results) {
+    if (!results.isError()) {
+      Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+      for (HitsMapWritable hmw : results.getResults()) {
+        if (hmw.getShardDocFreqs() != null) {
+          shardDocFreqs.putAll(hmw.getShardDocFreqs());
+        }
+      }
+      _docFreqCache.put(indexToShards, shardDocFreqs);
+    }
+  }
+
   private static final Method COUNT_METHOD;
   private static final Method FILTER_COUNT_METHOD;
   private static final int COUNT_METHOD_SHARD_ARG_IDX = 1;
@@ -224,7 +627,7 @@ public class LuceneClient implements ILuceneClient {
   @Override
   public int count(final Query query, final String[] indexNames) throws KattaException {
     ClientResult<Integer> results = _kattaClient.broadcastToIndices(_timeout, true, COUNT_METHOD,
-            COUNT_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query), null, _timeout);
+            COUNT_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority), null, _timeout);
     if (results.isError()) {
       throw results.getKattaException();
     }
@@ -238,7 +641,7 @@ public class LuceneClient implements ILuceneClient {
   @Override
   public int count(final Query query, Filter filter, final String[] indexNames) throws KattaException {
     ClientResult<Integer> results = _kattaClient.broadcastToIndices(_timeout, true, FILTER_COUNT_METHOD,
-            FILTER_COUNT_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query), new FilterWritable(filter), null,
+            FILTER_COUNT_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority), new FilterWritable(filter), null,
             _timeout);
     if (results.isError()) {
       throw results.getKattaException();
@@ -264,7 +667,31 @@ public class LuceneClient implements ILuceneClient {
   protected DocumentFrequencyWritable getDocFrequencies(final Query query, final String[] indexNames)
           throws KattaException {
     ClientResult<DocumentFrequencyWritable> results = _kattaClient.broadcastToIndices(_timeout, true, DOC_FREQ_METHOD,
-            DOC_FREQ_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query), null);
+            DOC_FREQ_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority), null);
+    return aggregateDocFreqs(results);
+  }
+
+  /**
+   * Like {@link #getDocFrequencies(Query, String[])} without blocking the
+   * calling thread.
+   */
+  protected ListenableFuture<DocumentFrequencyWritable> getDocFrequenciesAsync(final Query query,
+          final String[] indexNames) throws KattaException {
+    ListenableFuture<ClientResult<DocumentFrequencyWritable>> results = _kattaClient.broadcastToIndicesAsync(
+            new ResultCompletePolicy<DocumentFrequencyWritable>(_timeout, true), DOC_FREQ_METHOD,
+            DOC_FREQ_METHOD_SHARD_ARG_IDX, indexNames, new QueryWritable(query, _priority), null);
+    return Futures.transform(results,
+            new AsyncFunction<ClientResult<DocumentFrequencyWritable>, DocumentFrequencyWritable>() {
+              @Override
+              public ListenableFuture<DocumentFrequencyWritable> apply(ClientResult<DocumentFrequencyWritable> input)
+                      throws KattaException {
+                return Futures.immediateFuture(aggregateDocFreqs(input));
+              }
+            });
+  }
+
+  private static DocumentFrequencyWritable aggregateDocFreqs(ClientResult<DocumentFrequencyWritable> results)
+          throws KattaException {
     if (results.isError()) {
       throw results.getKattaException();
     }
@@ -340,34 +767,88 @@ public class LuceneClient implements ILuceneClient {
     return getDetails(hits, null);
   }
 
+  private static final Method GET_DETAILS_BULK_METHOD;
+  private static final int GET_DETAILS_BULK_METHOD_SHARD_ARG_IDX = 0;
+  static {
+    try {
+      GET_DETAILS_BULK_METHOD = ILuceneServer.class.getMethod("getDetails", new Class[] { String[].class,
+              String[].class, int[].class, String[].class });
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException("Could not find method getDetails() in ILuceneSearch!");
+    }
+  }
+
+  /**
+   * The details of all hits are fetched with one call per node. Every node gets
+   * only the hits of the shards it was selected for.
+   */
   @Override
-  public List<MapWritable> getDetails(List<Hit> hits, final String[] fields) throws KattaException,
+  public List<MapWritable> getDetails(final List<Hit> hits, final String[] fields) throws KattaException,
           InterruptedException {
-    ExecutorService executorService = Executors.newFixedThreadPool(Math.min(10, hits.size() + 1));
-    List<MapWritable> results = new ArrayList<MapWritable>();
-    List<Future<MapWritable>> futures = new ArrayList<Future<MapWritable>>();
-    for (final Hit hit : hits) {
-      futures.add(executorService.submit(new Callable<MapWritable>() {
-        @Override
-        public MapWritable call() throws Exception {
-          return getDetails(hit, fields);
+    final List<MapWritable> results = new ArrayList<MapWritable>(hits.size());
+    if (hits.isEmpty()) {
+      return results;
+    }
+    final Set<String> shards = new LinkedHashSet<String>();
+    for (Hit hit : hits) {
+      shards.add(hit.getShard());
+    }
+    IShardDependentArgument docShards = new IShardDependentArgument() {
+      @Override
+      public Object getValue(Collection<String> nodeShards) {
+        List<Integer> hitIndexes = getHitIndexes(hits, nodeShards);
+        String[] docShards = new String[hitIndexes.size()];
+        for (int i = 0; i < docShards.length; i++) {
+          docShards[i] = hits.get(hitIndexes.get(i)).getShard();
         }
-      }));
+        return docShards;
+      }
+    };
+    IShardDependentArgument docIds = new IShardDependentArgument() {
+      @Override
+      public Object getValue(Collection<String> nodeShards) {
+        List<Integer> hitIndexes = getHitIndexes(hits, nodeShards);
+        int[] docIds = new int[hitIndexes.size()];
+        for (int i = 0; i < docIds.length; i++) {
+          docIds[i] = hits.get(hitIndexes.get(i)).getDocId();
+        }
+        return docIds;
+      }
+    };
+    ClientResult<MapWritable[]> nodeResults = _kattaClient.broadcastToShards(_timeout, true, GET_DETAILS_BULK_METHOD,
+            GET_DETAILS_BULK_METHOD_SHARD_ARG_IDX, new ArrayList<String>(shards), null, docShards, docIds, fields);
+    if (nodeResults.isError()) {
+      throw nodeResults.getKattaException();
     }
-
-    for (Future<MapWritable> future : futures) {
-      try {
-        results.add(future.get());
-      } catch (ExecutionException e) {
-        throw new KattaException("Could not get hit details.", e.getCause());
+    final MapWritable[] details = new MapWritable[hits.size()];
+    for (ClientResult<MapWritable[]>.Entry entry : nodeResults) {
+      if (entry.result == null) {
+        continue;
+      }
+      List<Integer> hitIndexes = getHitIndexes(hits, entry.shards);
+      for (int i = 0; i < hitIndexes.size(); i++) {
+        details[hitIndexes.get(i)] = entry.result[i];
       }
     }
-
-    executorService.shutdown();
-
+    results.addAll(Arrays.asList(details));
     return results;
   }
 
+  /**
+   * @return the positions of the hits of the given shards, in the order of the
+   *         hit list
+   */
+  private static List<Integer> getHitIndexes(List<Hit> hits, Collection<String> shards) {
+    Set<String> shardSet = new HashSet<String>(shards);
+    List<Integer> hitIndexes = new ArrayList<Integer>();
+    for (int i = 0; i < hits.size(); i++) {
+      if (shardSet.contains(hits.get(i).getShard())) {
+        hitIndexes.add(i);
+      }
+    }
+    return hitIndexes;
+  }
+
   @Override
   public double getQueryPerMinute() {
     return _kattaClient.getQueryPerMinute();
@@ -19,25 +19,27 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.katta.node.IContentServer;
 import net.sf.katta.util.ClassUtil;
@@ -48,14 +50,15 @@ import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.DefaultSimilarity;
 import org.apache.lucene.search.Explanation;
@@ -74,12 +77,15 @@ import org.apache.lucene.search.TopDocsCollector;
 import org.apache.lucene.search.TopFieldCollector;
 import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.Counter;
-import org.apache.lucene.util.PriorityQueue;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * The back end server which searches a set of Lucene indices. Each shard is a
@@ -97,19 +103,65 @@ public class LuceneServer implements IContentServer, ILuceneServer {
   public final static String CONF_KEY_COLLECTOR_TRACK_DOC_SCORES_ON_FIELD_SORT = "lucene.collector.track-doc-scores-on-field-sort";
   public final static String CONF_KEY_SEARCHER_THREADPOOL_CORESIZE = "lucene.searcher.threadpool.core-size";
   public final static String CONF_KEY_SEARCHER_THREADPOOL_MAXSIZE = "lucene.searcher.threadpool.max-size";
+  public final static String CONF_KEY_SEARCHER_THREADPOOL_QUEUE_SIZE = "lucene.searcher.threadpool.queue-size";
+  public final static String CONF_KEY_ADMISSION_MAX_CONCURRENT_REQUESTS = "lucene.admission.max-concurrent-requests";
+  public final static String CONF_KEY_ADMISSION_MAX_QUEUED_REQUESTS = "lucene.admission.max-queued-requests";
+  public final static String CONF_KEY_ADMISSION_QUEUE_TIMEOUT = "lucene.admission.queue-timeout";
+  public final static String CONF_KEY_BATCH_THREADPOOL_SIZE = "lucene.batch.threadpool.size";
+  public final static String CONF_KEY_BATCH_THREADPOOL_QUEUE_SIZE = "lucene.batch.threadpool.queue-size";
+  public final static String CONF_KEY_BATCH_ADMISSION_MAX_CONCURRENT_REQUESTS = "lucene.batch.admission.max-concurrent-requests";
+  public final static String CONF_KEY_BATCH_ADMISSION_MAX_QUEUED_REQUESTS = "lucene.batch.admission.max-queued-requests";
+  public final static String CONF_KEY_BATCH_ADMISSION_QUEUE_TIMEOUT = "lucene.batch.admission.queue-timeout";
+  public final static String CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_ENABLED = "lucene.searcher.parallel-segments.enabled";
+  public final static String CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_SEGMENTS = "lucene.searcher.parallel-segments.min-segments";
+  public final static String CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_DOCS = "lucene.searcher.parallel-segments.min-docs";
   public final static String CONF_KEY_FILTER_CACHE_ENABLED = "lucene.filter.cache.enabled";
-
-  private static final int INDEX_HANDLE_CLOSE_SLEEP_TIME = 500;
+  public final static String CONF_KEY_FILTER_CACHE_MAX_BYTES = "lucene.filter.cache.max-bytes";
+  public final static String CONF_KEY_RESULT_CACHE_ENABLED = "lucene.result.cache.enabled";
+  public final static String CONF_KEY_RESULT_CACHE_MAX_HITS = "lucene.result.cache.max-hits";
+  public final static String CONF_KEY_COUNT_CACHE_ENABLED = "lucene.count.cache.enabled";
+  public final static String CONF_KEY_COUNT_CACHE_MAX_SIZE = "lucene.count.cache.max-size";
+  public final static String CONF_KEY_REWRITE_CACHE_ENABLED = "lucene.rewrite.cache.enabled";
+  public final static String CONF_KEY_REWRITE_CACHE_MAX_SIZE = "lucene.rewrite.cache.max-size";
+  public final static String CONF_KEY_DOC_FREQ_CACHE_ENABLED = "lucene.docfreq.cache.enabled";
+  public final static String CONF_KEY_DOC_FREQ_CACHE_MAX_SIZE = "lucene.docfreq.cache.max-size";
+  public final static String CONF_KEY_DOCUMENT_CACHE_ENABLED = "lucene.document.cache.enabled";
+  public final static String CONF_KEY_DOCUMENT_CACHE_MAX_BYTES = "lucene.document.cache.max-bytes";
+  public final static String CONF_KEY_WARMUP_QUERY_FILE = "lucene.warmup.query-file";
+  public final static String CONF_KEY_WARMUP_RECENT_QUERIES = "lucene.warmup.recent-queries";
+  public final static String CONF_KEY_WARMUP_SORT_FIELDS = "lucene.warmup.sort-fields";
+  public final static String CONF_KEY_WARMUP_TIMEOUT = "lucene.warmup.timeout";
 
   protected final Map<String, SearcherHandle> _searcherHandlesByShard = new ConcurrentHashMap<String, SearcherHandle>();
-  protected Cache<Filter, CachingWrapperFilter> _filterCache;
-  protected ExecutorService _threadPool;
+  protected ShardFilterCache _filterCache;
+  protected Cache<ResultCacheKey, HitsMapWritable> _resultCache;
+  protected Cache<CountCacheKey, Integer> _countCache;
+  protected Cache<RewriteCacheKey, Query> _rewriteCache;
+  protected Cache<DocFreqCacheKey, Integer> _docFreqCache;
+  protected Cache<DocumentCacheKey, MapWritable> _documentCache;
+  protected SearcherWarmer _searcherWarmer;
+  private final Map<String, Long> _shardGenerations = new ConcurrentHashMap<String, Long>();
+  private final Map<String, Integer> _shardNumDocs = new ConcurrentHashMap<String, Integer>();
+  private final AtomicLong _shardGenerationCounter = new AtomicLong();
+  protected ThreadPoolExecutor _threadPool;
+  protected ThreadPoolExecutor _batchThreadPool;
+  /**
+   * Set while a query of a batch runs on a searcher thread. Its shards are then
+   * searched on the same thread, a searcher thread never waits for other
+   * searcher threads.
+   */
+  private final ThreadLocal<Boolean> _searchOnCallingThread = new ThreadLocal<Boolean>();
+  protected AdmissionController _admissionController;
+  protected AdmissionController _batchAdmissionController;
   private TimeLimitingCollector.TimerThread _searchTimerThread;
   private Counter _searchTimerCounter;
 
   protected String _nodeName;
   private float _timeoutPercentage = 0.75f;
   private boolean _trackDocScoresOnSort;
+  private boolean _parallelSegmentSearch;
+  private int _parallelSegmentsMinSegments;
+  private int _parallelSegmentsMinDocs;
   private ISeacherFactory _seacherFactory;
 
   public LuceneServer() {
@@ -141,6 +193,7 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     _nodeName = nodeName;
     _seacherFactory = (ISeacherFactory) ClassUtil.newInstance(nodeConfiguration.getClass(
             CONF_KEY_SEARCHER_FACTORY_CLASS, DefaultSearcherFactory.class));
+    _seacherFactory.init(nodeConfiguration);
     _timeoutPercentage = nodeConfiguration.getFloat(CONF_KEY_COLLECTOR_TIMOUT_PERCENTAGE, _timeoutPercentage);
     _trackDocScoresOnSort = nodeConfiguration.getBoolean(CONF_KEY_COLLECTOR_TRACK_DOC_SCORES_ON_FIELD_SORT, false);
     if (_timeoutPercentage < 0 || _timeoutPercentage > 1) {
@@ -150,16 +203,104 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     int coreSize = nodeConfiguration.getInt(CONF_KEY_SEARCHER_THREADPOOL_CORESIZE, 25);
     int maxSize = nodeConfiguration.getInt(CONF_KEY_SEARCHER_THREADPOOL_MAXSIZE, 100);
     boolean filterCacheEnabled = nodeConfiguration.getBoolean(CONF_KEY_FILTER_CACHE_ENABLED, true);
-    _threadPool = new ThreadPoolExecutor(coreSize, maxSize, 100L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+    _parallelSegmentSearch = nodeConfiguration.getBoolean(CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_ENABLED, false);
+    _parallelSegmentsMinSegments = nodeConfiguration.getInt(CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_SEGMENTS, 2);
+    _parallelSegmentsMinDocs = nodeConfiguration.getInt(CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_DOCS, 100000);
+    int queueSize = nodeConfiguration.getInt(CONF_KEY_SEARCHER_THREADPOOL_QUEUE_SIZE, 100);
+    // the pool grows to the max size once the queue is full, when all threads
+    // are busy the requesting thread runs the shard search itself
+    _threadPool = new ThreadPoolExecutor(coreSize, maxSize, 100L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(
+            queueSize), new ThreadPoolExecutor.CallerRunsPolicy());
+    int maxConcurrentRequests = nodeConfiguration.getInt(CONF_KEY_ADMISSION_MAX_CONCURRENT_REQUESTS, 0);
+    if (maxConcurrentRequests > 0) {
+      int maxQueuedRequests = nodeConfiguration.getInt(CONF_KEY_ADMISSION_MAX_QUEUED_REQUESTS, 50);
+      long queueTimeout = nodeConfiguration.getInt(CONF_KEY_ADMISSION_QUEUE_TIMEOUT, 1000);
+      _admissionController = new AdmissionController(maxConcurrentRequests, maxQueuedRequests, queueTimeout);
+    }
+    // batch requests search on their own threads, so they never take threads
+    // from or queue in front of interactive requests
+    int batchPoolSize = nodeConfiguration.getInt(CONF_KEY_BATCH_THREADPOOL_SIZE, 5);
+    int batchQueueSize = nodeConfiguration.getInt(CONF_KEY_BATCH_THREADPOOL_QUEUE_SIZE, 100);
+    _batchThreadPool = new ThreadPoolExecutor(batchPoolSize, batchPoolSize, 100L, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<Runnable>(batchQueueSize), new ThreadPoolExecutor.CallerRunsPolicy());
+    int maxConcurrentBatchRequests = nodeConfiguration.getInt(CONF_KEY_BATCH_ADMISSION_MAX_CONCURRENT_REQUESTS, 0);
+    if (maxConcurrentBatchRequests > 0) {
+      int maxQueuedRequests = nodeConfiguration.getInt(CONF_KEY_BATCH_ADMISSION_MAX_QUEUED_REQUESTS, 100);
+      long queueTimeout = nodeConfiguration.getInt(CONF_KEY_BATCH_ADMISSION_QUEUE_TIMEOUT, 60000);
+      _batchAdmissionController = new AdmissionController(maxConcurrentBatchRequests, maxQueuedRequests,
+              queueTimeout);
+    }
     if (filterCacheEnabled) {
-      _filterCache = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).maximumSize(1000).build();
+      long maxFilterBytes = nodeConfiguration.getInt(CONF_KEY_FILTER_CACHE_MAX_BYTES, 128 * 1024 * 1024);
+      _filterCache = new ShardFilterCache(maxFilterBytes);
+    }
+    if (nodeConfiguration.getBoolean(CONF_KEY_RESULT_CACHE_ENABLED, false)) {
+      long maxHits = nodeConfiguration.getInt(CONF_KEY_RESULT_CACHE_MAX_HITS, 100000);
+      _resultCache = CacheBuilder.newBuilder().maximumWeight(maxHits)
+              .weigher(new Weigher<ResultCacheKey, HitsMapWritable>() {
+                @Override
+                public int weigh(ResultCacheKey key, HitsMapWritable value) {
+                  return value.getHitList().size() + 1;
+                }
+              }).build();
     }
+    if (nodeConfiguration.getBoolean(CONF_KEY_COUNT_CACHE_ENABLED, false)) {
+      int maxCounts = nodeConfiguration.getInt(CONF_KEY_COUNT_CACHE_MAX_SIZE, 10000);
+      _countCache = CacheBuilder.newBuilder().maximumSize(maxCounts).build();
+    }
+    if (nodeConfiguration.getBoolean(CONF_KEY_REWRITE_CACHE_ENABLED, false)) {
+      int maxQueries = nodeConfiguration.getInt(CONF_KEY_REWRITE_CACHE_MAX_SIZE, 10000);
+      _rewriteCache = CacheBuilder.newBuilder().maximumSize(maxQueries).build();
+    }
+    if (nodeConfiguration.getBoolean(CONF_KEY_DOC_FREQ_CACHE_ENABLED, false)) {
+      int maxTerms = nodeConfiguration.getInt(CONF_KEY_DOC_FREQ_CACHE_MAX_SIZE, 100000);
+      _docFreqCache = CacheBuilder.newBuilder().maximumSize(maxTerms).build();
+    }
+    if (nodeConfiguration.getBoolean(CONF_KEY_DOCUMENT_CACHE_ENABLED, false)) {
+      long maxBytes = nodeConfiguration.getInt(CONF_KEY_DOCUMENT_CACHE_MAX_BYTES, 64 * 1024 * 1024);
+      _documentCache = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+              .weigher(new Weigher<DocumentCacheKey, MapWritable>() {
+                @Override
+                public int weigh(DocumentCacheKey key, MapWritable value) {
+                  return estimateSize(value);
+                }
+              }).build();
+    }
+    _searcherWarmer = createSearcherWarmer(nodeConfiguration);
 
     _searchTimerCounter = Counter.newCounter(true);
     _searchTimerThread = new TimeLimitingCollector.TimerThread(_searchTimerCounter);
     _searchTimerThread.start();
   }
 
+  /**
+   * @return the warmer configured for new shards or null if no warm-up is
+   *         configured
+   */
+  private static SearcherWarmer createSearcherWarmer(NodeConfiguration nodeConfiguration) {
+    List<Query> queries = new ArrayList<Query>();
+    if (nodeConfiguration.containsProperty(CONF_KEY_WARMUP_QUERY_FILE)) {
+      File queryFile = nodeConfiguration.getFile(CONF_KEY_WARMUP_QUERY_FILE);
+      try {
+        queries = SearcherWarmer.readQueries(queryFile);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("could not read warm-up queries from " + queryFile, e);
+      }
+    }
+    List<String> sortFields = new ArrayList<String>();
+    for (String sortField : nodeConfiguration.getProperty(CONF_KEY_WARMUP_SORT_FIELDS, "").split(",")) {
+      if (sortField.trim().length() > 0) {
+        sortFields.add(sortField.trim());
+      }
+    }
+    int recentQueries = nodeConfiguration.getInt(CONF_KEY_WARMUP_RECENT_QUERIES, 0);
+    if (queries.isEmpty() && sortFields.isEmpty() && recentQueries <= 0) {
+      return null;
+    }
+    long timeout = nodeConfiguration.getInt(CONF_KEY_WARMUP_TIMEOUT, 60000);
+    return new SearcherWarmer(queries, sortFields, recentQueries, timeout);
+  }
+
   public String getNodeName() {
     return _nodeName;
   }
@@ -174,7 +315,8 @@ public class LuceneServer implements IContentServer, ILuceneServer {
 
   /**
    * Adds an shard index search for given name to the list of shards
-   * MultiSearcher search in.
+   * MultiSearcher search in. If a warm-up is configured the searcher is warmed
+   * before it is added, so the shard is only published once it is warm.
    * 
    * @param shardName
    * @param shardDir
@@ -185,7 +327,22 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     LOG.info("LuceneServer " + _nodeName + " got shard " + shardName);
     try {
       IndexSearcher indexSearcher = _seacherFactory.createSearcher(shardName, shardDir);
+      if (_searcherWarmer != null) {
+        _searcherWarmer.warm(shardName, indexSearcher, _filterCache);
+      }
       _searcherHandlesByShard.put(shardName, new SearcherHandle(indexSearcher));
+      _shardGenerations.put(shardName, _shardGenerationCounter.incrementAndGet());
+      // shards are not modified while deployed
+      _shardNumDocs.put(shardName, indexSearcher.getIndexReader().numDocs());
+      invalidateResultCache(shardName);
+      invalidateCountCache(shardName);
+      invalidateRewriteCache(shardName);
+      invalidateDocFreqCache(shardName);
+      invalidateDocumentCache(shardName);
+      if (_filterCache != null) {
+        // keep the document sets of the warm-up
+        _filterCache.invalidate(shardName, indexSearcher);
+      }
     } catch (CorruptIndexException e) {
       LOG.error("Error building index for shard " + shardName, e);
       throw e;
@@ -199,6 +356,14 @@ public class LuceneServer implements IContentServer, ILuceneServer {
   public void removeShard(final String shardName) {
     LOG.info("LuceneServer " + _nodeName + " removing shard " + shardName);
     SearcherHandle handle = _searcherHandlesByShard.remove(shardName);
+    _shardGenerations.remove(shardName);
+    _shardNumDocs.remove(shardName);
+    invalidateResultCache(shardName);
+    invalidateCountCache(shardName);
+    invalidateRewriteCache(shardName);
+    invalidateDocFreqCache(shardName);
+    invalidateDocumentCache(shardName);
+    invalidateFilterCache(shardName);
 
     if (handle == null) {
       return; // nothing to do.
@@ -210,6 +375,226 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     }
   }
 
+  /**
+   * Removes all cached results which contain hits of the given shard.
+   */
+  private void invalidateResultCache(String shardName) {
+    if (_resultCache == null) {
+      return;
+    }
+    for (ResultCacheKey key : _resultCache.asMap().keySet()) {
+      if (key.containsShard(shardName)) {
+        _resultCache.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Removes all cached counts of the given shard.
+   */
+  private void invalidateCountCache(String shardName) {
+    if (_countCache == null) {
+      return;
+    }
+    for (CountCacheKey key : _countCache.asMap().keySet()) {
+      if (key.getShard().equals(shardName)) {
+        _countCache.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Removes all cached rewritten queries of the given shard.
+   */
+  private void invalidateRewriteCache(String shardName) {
+    if (_rewriteCache == null) {
+      return;
+    }
+    for (RewriteCacheKey key : _rewriteCache.asMap().keySet()) {
+      if (key.getShard().equals(shardName)) {
+        _rewriteCache.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Removes all cached document frequencies of the given shard.
+   */
+  private void invalidateDocFreqCache(String shardName) {
+    if (_docFreqCache == null) {
+      return;
+    }
+    for (DocFreqCacheKey key : _docFreqCache.asMap().keySet()) {
+      if (key.getShard().equals(shardName)) {
+        _docFreqCache.invalidate(key);
+      }
+    }
+  }
+
+  private void invalidateFilterCache(String shardName) {
+    if (_filterCache != null) {
+      _filterCache.invalidate(shardName);
+    }
+  }
+
+  /**
+   * @return the admission control of interactive search, count and document
+   *         frequency requests or null if the number of concurrent requests is
+   *         not limited
+   */
+  public AdmissionController getAdmissionController() {
+    return _admissionController;
+  }
+
+  /**
+   * @return the admission control of requests with
+   *         {@link QueryPriority#BATCH} or null if the number of concurrent
+   *         batch requests is not limited
+   */
+  public AdmissionController getBatchAdmissionController() {
+    return _batchAdmissionController;
+  }
+
+  private AdmissionController getAdmissionController(QueryPriority priority) {
+    return priority == QueryPriority.BATCH ? _batchAdmissionController : _admissionController;
+  }
+
+  private ThreadPoolExecutor getThreadPool(QueryPriority priority) {
+    return priority == QueryPriority.BATCH ? _batchThreadPool : _threadPool;
+  }
+
+  /**
+   * @return the executor for the shard calls of a request of the given
+   *         priority class
+   */
+  private Executor getSearchExecutor(QueryPriority priority) {
+    if (_searchOnCallingThread.get() != null) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return getThreadPool(priority);
+  }
+
+  /**
+   * @return the number of shard searches waiting for a thread of the searcher
+   *         pool
+   */
+  public int getSearcherQueueSize() {
+    return _threadPool.getQueue().size();
+  }
+
+  /**
+   * @return the number of shard searches of batch requests waiting for a
+   *         thread of the batch pool
+   */
+  public int getBatchSearcherQueueSize() {
+    return _batchThreadPool.getQueue().size();
+  }
+
+  /**
+   * Waits until the admission control of the request's priority class lets
+   * the request execute. {@link #finishRequest(QueryPriority)} must be called
+   * once the request is done.
+   * 
+   * @throws net.sf.katta.node.NodeOverloadedException
+   *           if the node rejects the request
+   */
+  private void admitRequest(QueryPriority priority) throws IOException {
+    AdmissionController admissionController = getAdmissionController(priority);
+    if (admissionController != null) {
+      admissionController.acquire();
+    }
+  }
+
+  private void finishRequest(QueryPriority priority) {
+    AdmissionController admissionController = getAdmissionController(priority);
+    if (admissionController != null) {
+      admissionController.release();
+    }
+  }
+
+  /**
+   * @return the warmer of new shards or null if no warm-up is configured
+   */
+  public SearcherWarmer getSearcherWarmer() {
+    return _searcherWarmer;
+  }
+
+  /**
+   * @return the filter cache or null if disabled
+   */
+  public ShardFilterCache getFilterCache() {
+    return _filterCache;
+  }
+
+  /**
+   * Removes all cached documents of the given shard.
+   */
+  private void invalidateDocumentCache(String shardName) {
+    if (_documentCache == null) {
+      return;
+    }
+    for (DocumentCacheKey key : _documentCache.asMap().keySet()) {
+      if (key.getShard().equals(shardName)) {
+        _documentCache.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the document cache or null if
+   *         the document cache is disabled
+   */
+  public CacheStats getDocumentCacheStats() {
+    if (_documentCache == null) {
+      return null;
+    }
+    return _documentCache.stats();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the count cache or null if the
+   *         count cache is disabled
+   */
+  public CacheStats getCountCacheStats() {
+    if (_countCache == null) {
+      return null;
+    }
+    return _countCache.stats();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the rewrite cache or null if
+   *         the rewrite cache is disabled
+   */
+  public CacheStats getRewriteCacheStats() {
+    if (_rewriteCache == null) {
+      return null;
+    }
+    return _rewriteCache.stats();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the document frequency cache
+   *         or null if the document frequency cache is disabled
+   */
+  public CacheStats getDocFreqCacheStats() {
+    if (_docFreqCache == null) {
+      return null;
+    }
+    return _docFreqCache.stats();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the result cache or null if
+   *         the result cache is disabled
+   */
+  public CacheStats getResultCacheStats() {
+    if (_resultCache == null) {
+      return null;
+    }
+    return _resultCache.stats();
+  }
+
   @Override
   public Collection<String> getShards() {
     return Collections.unmodifiableCollection(_searcherHandlesByShard.keySet());
@@ -222,17 +607,21 @@ public class LuceneServer implements IContentServer, ILuceneServer {
    * @return the number of documents in the shard.
    */
   protected int shardSize(String shardName) {
+    Integer numDocs = _shardNumDocs.get(shardName);
+    if (numDocs != null) {
+      return numDocs;
+    }
     final SearcherHandle handle = getSearcherHandleByShard(shardName);
     IndexSearcher searcher = handle.getSearcher();
+    if (searcher == null) {
+      throw new IllegalArgumentException("Shard '" + shardName + "' unknown");
+    }
     try {
-      if (searcher != null) {
-        int size = searcher.getIndexReader().numDocs();
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Shard '" + shardName + "' has " + size + " docs.");
-        }
-        return size;
+      int size = searcher.getIndexReader().numDocs();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Shard '" + shardName + "' has " + size + " docs.");
       }
-      throw new IllegalArgumentException("Shard '" + shardName + "' unknown");
+      return size;
     } finally {
       handle.finishSearcher();
     }
@@ -266,6 +655,26 @@ public class LuceneServer implements IContentServer, ILuceneServer {
       handle.closeSearcher();
     }
     _searcherHandlesByShard.clear();
+    _shardGenerations.clear();
+    _shardNumDocs.clear();
+    if (_resultCache != null) {
+      _resultCache.invalidateAll();
+    }
+    if (_countCache != null) {
+      _countCache.invalidateAll();
+    }
+    if (_rewriteCache != null) {
+      _rewriteCache.invalidateAll();
+    }
+    if (_docFreqCache != null) {
+      _docFreqCache.invalidateAll();
+    }
+    if (_documentCache != null) {
+      _documentCache.invalidateAll();
+    }
+    if (_filterCache != null) {
+      _filterCache.invalidateAll();
+    }
     _searchTimerThread.stopTimer();
   }
 
@@ -311,6 +720,16 @@ public class LuceneServer implements IContentServer, ILuceneServer {
   @Override
   public HitsMapWritable search(QueryWritable query, DocumentFrequencyWritable freqs, String[] shards,
           final long timeout, int count, SortWritable sortWritable, FilterWritable filterWritable) throws IOException {
+    admitRequest(query.getPriority());
+    try {
+      return searchWithResultCache(query, freqs, shards, timeout, count, sortWritable, filterWritable);
+    } finally {
+      finishRequest(query.getPriority());
+    }
+  }
+
+  private HitsMapWritable searchWithResultCache(QueryWritable query, DocumentFrequencyWritable freqs, String[] shards,
+          final long timeout, int count, SortWritable sortWritable, FilterWritable filterWritable) throws IOException {
     if (LOG.isDebugEnabled()) {
       LOG.debug("You are searching with the query: '" + query.getQuery() + "'");
     }
@@ -321,6 +740,23 @@ public class LuceneServer implements IContentServer, ILuceneServer {
       LOG.debug("Lucene query: " + luceneQuery.toString());
     }
 
+    if (_searcherWarmer != null) {
+      _searcherWarmer.recordQuery(luceneQuery, sortWritable != null ? sortWritable.getSort() : null,
+              filterWritable != null ? filterWritable.getFilter() : null);
+    }
+
+    ResultCacheKey cacheKey = null;
+    if (_resultCache != null) {
+      cacheKey = createResultCacheKey(luceneQuery, freqs, shards, count, sortWritable, filterWritable);
+      HitsMapWritable cachedResult = cacheKey != null ? _resultCache.getIfPresent(cacheKey) : null;
+      if (cachedResult != null) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Returning cached result for query: " + luceneQuery);
+        }
+        return copyResult(cachedResult);
+      }
+    }
+
     long completeSearchTime = 0;
     final HitsMapWritable result = new net.sf.katta.lib.lucene.HitsMapWritable(getNodeName());
     long start = 0;
@@ -335,15 +771,11 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     if (filterWritable != null) {
       filter = filterWritable.getFilter();
     }
-    if (_filterCache != null && filter != null) {
-      CachingWrapperFilter cachedFilter = _filterCache.getIfPresent(filter);
-      if (cachedFilter == null) {
-        cachedFilter = new CachingWrapperFilter(filter);
-        _filterCache.put(filter, cachedFilter);
-      }
-      filter = cachedFilter;
+    boolean complete = search(luceneQuery, freqs, shards, result, count, sort, timeout, filter, null,
+            query.getPriority());
+    if (cacheKey != null && complete) {
+      _resultCache.put(cacheKey, copyResult(result));
     }
-    search(luceneQuery, freqs, shards, result, count, sort, timeout, filter);
     if (LOG.isDebugEnabled()) {
       final long end = System.currentTimeMillis();
       LOG.debug("Search took " + (end - start) / 1000.0 + "sec.");
@@ -358,31 +790,288 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     return result;
   }
 
+  /**
+   * @return the filter which takes the document sets of the given filter from
+   *         the filter cache (if enabled) when searching the given shard
+   */
+  private Filter getShardFilter(String shardName, Filter filter) {
+    if (_filterCache != null && filter != null) {
+      return _filterCache.getFilter(shardName, filter);
+    }
+    return filter;
+  }
+
+  /**
+   * Creates the result cache key for a search. Returns null if one of the
+   * shards is not deployed.
+   */
+  private ResultCacheKey createResultCacheKey(Query query, DocumentFrequencyWritable freqs, String[] shards,
+          int count, SortWritable sortWritable, FilterWritable filterWritable) {
+    long[] shardGenerations = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      Long generation = _shardGenerations.get(shards[i]);
+      if (generation == null) {
+        return null;
+      }
+      shardGenerations[i] = generation;
+    }
+    Sort sort = sortWritable != null ? sortWritable.getSort() : null;
+    Filter filter = filterWritable != null ? filterWritable.getFilter() : null;
+    return new ResultCacheKey(query, filter, sort, shards, shardGenerations, count, freqs);
+  }
+
+  /**
+   * Cached results are copied on the way in and out, since callers are free to
+   * modify a returned result.
+   */
+  private static HitsMapWritable copyResult(HitsMapWritable result) {
+    HitsMapWritable copy = new HitsMapWritable(result.getNodeName());
+    copy.addTotalHits(result.getTotalHits());
+    copy.setSortFieldTypes(result.getSortFieldTypes());
+    for (Hit hit : result.getHitList()) {
+      copy.addHit(hit);
+    }
+    return copy;
+  }
+
   @Override
-  public DocumentFrequencyWritable getDocFreqs(final QueryWritable input, final String[] shards) throws IOException {
-    Query luceneQuery = input.getQuery();
-    final Query rewrittenQuery = rewrite(luceneQuery, shards);
-    final DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+  public HitsMapWritable searchAfter(QueryWritable query, DocumentFrequencyWritable freqs, String[] shards,
+          long timeout, int count, SearchCursor cursor, FilterWritable filterWritable) throws IOException {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("You are searching with the query: '" + query.getQuery() + "' " + cursor);
+    }
+    final HitsMapWritable result = new HitsMapWritable(getNodeName());
+    Filter filter = filterWritable != null ? filterWritable.getFilter() : null;
+    admitRequest(query.getPriority());
+    try {
+      search(query.getQuery(), freqs, shards, result, count, null, timeout, filter, cursor, query.getPriority());
+    } finally {
+      finishRequest(query.getPriority());
+    }
+    return result;
+  }
 
+  @Override
+  public HitsMapWritable searchAndFetchDocFreqs(QueryWritable query, DocumentFrequencyWritable freqs, String[] shards,
+          long timeout, int count, SortWritable sortWritable, FilterWritable filterWritable) throws IOException {
+    admitRequest(query.getPriority());
+    try {
+      return searchAndFetchDocFreqsAdmitted(query, freqs, shards, timeout, count, sortWritable, filterWritable);
+    } finally {
+      finishRequest(query.getPriority());
+    }
+  }
+
+  @Override
+  public HitsMapWritable[] searchBatch(QueryWritable[] queries, final DocumentFrequencyWritable freqs,
+          final String[] shards, final long timeout, final int count) throws IOException {
+    final HitsMapWritable[] results = new HitsMapWritable[queries.length];
+    if (queries.length == 0) {
+      return results;
+    }
+    // the batch is admitted as one request of the priority of its queries
+    QueryPriority priority = queries[0].getPriority();
+    final long start = System.currentTimeMillis();
+    admitRequest(priority);
+    try {
+      // the queries run concurrently, each on one searcher thread
+      final List<Future<HitsMapWritable>> futures = new ArrayList<Future<HitsMapWritable>>(queries.length);
+      for (final QueryWritable query : queries) {
+        futures.add(getThreadPool(priority).submit(new Callable<HitsMapWritable>() {
+          @Override
+          public HitsMapWritable call() throws Exception {
+            long remainingTimeout = timeout - (System.currentTimeMillis() - start);
+            if (remainingTimeout <= 0) {
+              HitsMapWritable skipped = new HitsMapWritable(getNodeName());
+              skipped.setMissingShards(new HashSet<String>(Arrays.asList(shards)));
+              return skipped;
+            }
+            _searchOnCallingThread.set(Boolean.TRUE);
+            try {
+              return searchWithResultCache(query, freqs, shards, remainingTimeout, count, null, null);
+            } finally {
+              _searchOnCallingThread.remove();
+            }
+          }
+        }));
+      }
+      int skippedQueries = 0;
+      for (int i = 0; i < results.length; i++) {
+        try {
+          results[i] = futures.get(i).get();
+        } catch (InterruptedException e) {
+          for (Future<HitsMapWritable> future : futures) {
+            future.cancel(true);
+          }
+          throw new IOException("Multithread batch search interrupted:", e);
+        } catch (ExecutionException e) {
+          for (Future<HitsMapWritable> future : futures) {
+            future.cancel(true);
+          }
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IOException("Multithread batch search could not be executed:", e);
+        }
+        if (!results[i].getMissingShards().isEmpty()) {
+          skippedQueries++;
+        }
+      }
+      if (skippedQueries > 0) {
+        LOG.warn("search batch exceeded timeout of " + timeout + " ms, skipped " + skippedQueries + " of "
+                + queries.length + " queries");
+      }
+    } finally {
+      finishRequest(priority);
+    }
+    return results;
+  }
+
+  private HitsMapWritable searchAndFetchDocFreqsAdmitted(QueryWritable query, DocumentFrequencyWritable freqs,
+          String[] shards, long timeout, int count, SortWritable sortWritable, FilterWritable filterWritable)
+          throws IOException {
     final HashSet<Term> termSet = new HashSet<Term>();
-    rewrittenQuery.extractTerms(termSet);
-    for (final String shard : shards) {
-      final java.util.Iterator<Term> termIterator = termSet.iterator();
+    rewrite(query.getQuery(), shards, query.getPriority()).extractTerms(termSet);
+    final Set<Term> missingTerms = new HashSet<Term>();
+    for (Term term : termSet) {
+      if (freqs.get(term.field(), term.text()) == null) {
+        missingTerms.add(term);
+      }
+    }
+
+    final Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    final DocumentFrequencyWritable localDocFreqs = new DocumentFrequencyWritable();
+    final DocumentFrequencyWritable[] docFreqsOfShards = getDocFreqs(shards, missingTerms, query.getPriority());
+    for (int i = 0; i < shards.length; i++) {
+      DocumentFrequencyWritable docFreqs = docFreqsOfShards[i];
+      shardDocFreqs.put(shards[i], docFreqs);
+      localDocFreqs.putAll(docFreqs.getAll());
+      localDocFreqs.addNumDocs(docFreqs.getNumDocs());
+    }
+
+    // complete the given statistics with the local ones, the local document
+    // frequencies are scaled to the global document count (if known) so the
+    // idf of the missing terms stays in the right proportion
+    final DocumentFrequencyWritable completeDocFreqs = new DocumentFrequencyWritable();
+    completeDocFreqs.putAll(freqs.getAll());
+    long numDocs = freqs.getNumDocs() > 0 ? freqs.getNumDocs() : localDocFreqs.getNumDocs();
+    completeDocFreqs.addNumDocs(numDocs);
+    double scale = localDocFreqs.getNumDocs() > 0 ? (double) numDocs / localDocFreqs.getNumDocs() : 1;
+    for (Map.Entry<TermWritable, Integer> entry : localDocFreqs.getAll().entrySet()) {
+      int docFreq = (int) Math.min(Integer.MAX_VALUE, Math.round(entry.getValue() * scale));
+      completeDocFreqs.put(entry.getKey().getField(), entry.getKey().getTerm(), docFreq);
+    }
+
+    HitsMapWritable result = searchWithResultCache(query, completeDocFreqs, shards, timeout, count, sortWritable,
+            filterWritable);
+    result.setShardDocFreqs(shardDocFreqs);
+    return result;
+  }
+
+  @Override
+  public DocumentFrequencyWritable getDocFreqs(final QueryWritable input, final String[] shards) throws IOException {
+    admitRequest(input.getPriority());
+    try {
+      Query luceneQuery = input.getQuery();
+      final Query rewrittenQuery = rewrite(luceneQuery, shards, input.getPriority());
+      final DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+
+      final HashSet<Term> termSet = new HashSet<Term>();
+      rewrittenQuery.extractTerms(termSet);
+      for (DocumentFrequencyWritable shardDocFreqs : getDocFreqs(shards, termSet, input.getPriority())) {
+        docFreqs.putAll(shardDocFreqs.getAll());
+        docFreqs.addNumDocs(shardDocFreqs.getNumDocs());
+      }
+      return docFreqs;
+    } finally {
+      finishRequest(input.getPriority());
+    }
+  }
+
+  /**
+   * Returns the term statistics of every given shard. The shards are looked up
+   * in parallel on the searcher threads of the given priority class.
+   * 
+   * @return the term statistics in the order of the shards
+   */
+  protected DocumentFrequencyWritable[] getDocFreqs(final String[] shards, final Set<Term> terms,
+          QueryPriority priority) throws IOException {
+    final DocumentFrequencyWritable[] docFreqs = new DocumentFrequencyWritable[shards.length];
+    if (shards.length == 1) {
+      docFreqs[0] = getDocFreqs(shards[0], terms);
+      return docFreqs;
+    }
+    CompletionService<DocumentFrequencyWritable> csDocFreqs = new ExecutorCompletionService<DocumentFrequencyWritable>(
+            getSearchExecutor(priority));
+    final Map<Future<DocumentFrequencyWritable>, Integer> shardIndexes;
+    shardIndexes = new HashMap<Future<DocumentFrequencyWritable>, Integer>();
+    for (int i = 0; i < shards.length; i++) {
+      final String shard = shards[i];
+      shardIndexes.put(csDocFreqs.submit(new Callable<DocumentFrequencyWritable>() {
+        @Override
+        public DocumentFrequencyWritable call() throws Exception {
+          return getDocFreqs(shard, terms);
+        }
+      }), i);
+    }
+    for (int i = 0; i < shards.length; i++) {
+      try {
+        Future<DocumentFrequencyWritable> future = csDocFreqs.take();
+        docFreqs[shardIndexes.get(future)] = future.get();
+      } catch (InterruptedException e) {
+        throw new IOException("Multithread document frequency lookup interrupted:", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IOException("Multithread document frequency lookup could not be executed:", e);
+      }
+    }
+    return docFreqs;
+  }
+
+  /**
+   * Returns the document frequencies of the given terms and the number of
+   * documents of a single shard. The document frequencies are taken from the
+   * document frequency cache if enabled.
+   * 
+   * @param shard
+   * @param terms
+   * @return the term statistics of the shard
+   */
+  protected DocumentFrequencyWritable getDocFreqs(final String shard, final Set<Term> terms) throws IOException {
+    final DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+    Set<Term> missingTerms = terms;
+    Long generation = _docFreqCache != null ? _shardGenerations.get(shard) : null;
+    if (generation != null) {
+      missingTerms = new HashSet<Term>();
+      for (final Term term : terms) {
+        Integer docFreq = _docFreqCache.getIfPresent(new DocFreqCacheKey(shard, generation, term));
+        if (docFreq != null) {
+          docFreqs.put(term.field(), term.text(), docFreq);
+        } else {
+          missingTerms.add(term);
+        }
+      }
+    }
+    if (!missingTerms.isEmpty()) {
       SearcherHandle handle = getSearcherHandleByShard(shard);
       IndexSearcher searcher = handle.getSearcher();
       if (searcher != null) {
         try {
-          while (termIterator.hasNext()) {
-            final Term term = termIterator.next();
+          for (final Term term : missingTerms) {
             final int docFreq = searcher.docFreq(term);
             docFreqs.put(term.field(), term.text(), docFreq);
+            if (generation != null) {
+              _docFreqCache.put(new DocFreqCacheKey(shard, generation, term), docFreq);
+            }
           }
         } finally {
           handle.finishSearcher();
         }
       }
-      docFreqs.addNumDocs(shardSize(shard));
     }
+    docFreqs.addNumDocs(shardSize(shard));
     return docFreqs;
   }
 
@@ -393,8 +1082,88 @@ public class LuceneServer implements IContentServer, ILuceneServer {
 
   @Override
   public MapWritable getDetails(final String[] shards, final int docId, final String[] fieldNames) throws IOException {
+    final MapWritable details = getDetails(shards[0], docId, fieldNames);
+    if (details == null) {
+      throw new IllegalStateException("no index-server for shard '" + shards[0] + "' found - probably undeployed");
+    }
+    return details;
+  }
+
+  @Override
+  public MapWritable[] getDetails(final String[] shards, final String[] docShards, final int[] docIds,
+          final String[] fieldNames) throws IOException {
+    final MapWritable[] result = new MapWritable[docIds.length];
+    for (int i = 0; i < docIds.length; i++) {
+      result[i] = getDetails(docShards[i], docIds[i], fieldNames);
+      if (result[i] == null) {
+        // fail the call, so the client retries the documents on another replica
+        throw new IOException("shard '" + docShards[i] + "' is closed - probably undeployed");
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the given fields of a document, from the document cache if enabled.
+   * 
+   * @return the fields or null if the shard was closed
+   */
+  protected MapWritable getDetails(final String shardName, final int docId, final String[] fieldNames)
+          throws IOException {
+    DocumentCacheKey cacheKey = null;
+    if (_documentCache != null) {
+      Long generation = _shardGenerations.get(shardName);
+      if (generation != null) {
+        cacheKey = new DocumentCacheKey(shardName, generation, docId, fieldNames);
+        MapWritable cachedDetails = _documentCache.getIfPresent(cacheKey);
+        if (cachedDetails != null) {
+          return copyDetails(cachedDetails);
+        }
+      }
+    }
+    final Document doc = doc(shardName, docId, fieldNames);
+    if (doc == null) {
+      return null;
+    }
+    final MapWritable details = toMapWritable(doc);
+    if (cacheKey != null) {
+      _documentCache.put(cacheKey, copyDetails(details));
+    }
+    return details;
+  }
+
+  /**
+   * Cached details are copied on the way in and out, since callers are free to
+   * modify a returned map.
+   */
+  private static MapWritable copyDetails(MapWritable details) {
+    MapWritable copy = new MapWritable();
+    copy.putAll(details);
+    return copy;
+  }
+
+  /**
+   * @return the approximate number of bytes the given details occupy
+   */
+  private static int estimateSize(MapWritable details) {
+    int size = 64;
+    for (Map.Entry<Writable, Writable> entry : details.entrySet()) {
+      size += 64 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+    }
+    return size;
+  }
+
+  private static int estimateSize(Writable writable) {
+    if (writable instanceof Text) {
+      return ((Text) writable).getLength();
+    } else if (writable instanceof BytesWritable) {
+      return ((BytesWritable) writable).getLength();
+    }
+    return 16;
+  }
+
+  private static MapWritable toMapWritable(final Document doc) {
     final MapWritable result = new MapWritable();
-    final Document doc = doc(shards[0], docId, fieldNames);
     final List<Fieldable> fields = doc.getFields();
     for (final Fieldable field : fields) {
       final String name = field.name();
@@ -411,15 +1180,113 @@ public class LuceneServer implements IContentServer, ILuceneServer {
 
   @Override
   public int getResultCount(final QueryWritable query, final String[] shards, long timeout) throws IOException {
-    final DocumentFrequencyWritable docFreqs = getDocFreqs(query, shards);
-    return search(query, docFreqs, shards, timeout, 1).getTotalHits();
+    return getResultCount(query, null, shards, timeout);
   }
 
   @Override
   public int getResultCount(final QueryWritable query, FilterWritable filter, final String[] shards, long timeout)
           throws IOException {
-    final DocumentFrequencyWritable docFreqs = getDocFreqs(query, shards);
-    return search(query, docFreqs, shards, timeout, 1, null, filter).getTotalHits();
+    admitRequest(query.getPriority());
+    try {
+      return count(query.getQuery(), filter != null ? filter.getFilter() : null, shards, timeout, query.getPriority());
+    } finally {
+      finishRequest(query.getPriority());
+    }
+  }
+
+  /**
+   * Counts the hits of a query in the given shards. Other than a search this
+   * needs no global term statistics and scores no documents. The segments of
+   * all shards are counted in parallel, the count of every shard is cached for
+   * its current generation if the count cache is enabled.
+   * 
+   * @param query
+   * @param filter
+   *          may be null
+   * @param shards
+   * @param timeout
+   * @return the number of hits
+   * @throws IOException
+   */
+  protected int count(final Query query, final Filter filter, final String[] shards, long timeout) throws IOException {
+    return count(query, filter, shards, timeout, QueryPriority.INTERACTIVE);
+  }
+
+  /**
+   * Counts the hits of a query in the given shards on the searcher threads of
+   * the given priority class.
+   */
+  protected int count(final Query query, final Filter filter, final String[] shards, long timeout,
+          QueryPriority priority) throws IOException {
+    timeout = getCollectorTiemout(timeout);
+    final int[] shardCounts = new int[shards.length];
+    final boolean[] shardComplete = new boolean[shards.length];
+    final CountCacheKey[] cacheKeys = new CountCacheKey[shards.length];
+    final List<SearcherHandle> acquiredHandles = new ArrayList<SearcherHandle>(shards.length);
+    int totalHits = 0;
+    try {
+      CompletionService<CountResult> csCount = new ExecutorCompletionService<CountResult>(getSearchExecutor(priority));
+      int callCount = 0;
+      for (int i = 0; i < shards.length; i++) {
+        if (_countCache != null) {
+          Long generation = _shardGenerations.get(shards[i]);
+          if (generation != null) {
+            cacheKeys[i] = new CountCacheKey(shards[i], generation, query, filter);
+            Integer cachedCount = _countCache.getIfPresent(cacheKeys[i]);
+            if (cachedCount != null) {
+              totalHits += cachedCount;
+              cacheKeys[i] = null;
+              continue;
+            }
+          }
+        }
+        final SearcherHandle handle = getSearcherHandleByShard(shards[i]);
+        IndexSearcher searcher = handle.getSearcher();
+        if (searcher == null) {
+          LOG.warn(String.format("Count attempt for shard %s skipped because shard was closed", shards[i]));
+          continue;
+        }
+        acquiredHandles.add(handle);
+        shardComplete[i] = true;
+        final Filter shardFilter = getShardFilter(shards[i], filter);
+        for (IndexReader segmentReader : searcher.getSubReaders()) {
+          // like the segment search calls every count call holds the searcher
+          handle.retainSearcher();
+          try {
+            csCount.submit(new CountCall(shards[i], handle, new IndexSearcher(segmentReader), query, shardFilter,
+                    timeout, i));
+          } catch (RuntimeException e) {
+            handle.finishSearcher();
+            throw e;
+          }
+          callCount++;
+        }
+      }
+
+      for (int i = 0; i < callCount; i++) {
+        try {
+          final CountResult countResult = csCount.take().get();
+          shardCounts[countResult._callIndex] += countResult._count;
+          shardComplete[countResult._callIndex] &= countResult._complete;
+        } catch (InterruptedException e) {
+          throw new IOException("Multithread shard count interrupted:", e);
+        } catch (ExecutionException e) {
+          throw new IOException("Multithread shard count could not be executed:", e);
+        }
+      }
+    } finally {
+      for (SearcherHandle handle : acquiredHandles) {
+        handle.finishSearcher();
+      }
+    }
+
+    for (int i = 0; i < shards.length; i++) {
+      totalHits += shardCounts[i];
+      if (cacheKeys[i] != null && shardComplete[i]) {
+        _countCache.put(cacheKeys[i], shardCounts[i]);
+      }
+    }
+    return totalHits;
   }
 
   /**
@@ -430,138 +1297,156 @@ public class LuceneServer implements IContentServer, ILuceneServer {
    * @param shards
    * @param result
    * @param max
+   * @return false if the search on one of the shards was cut by the timeout or
+   *         skipped because the shard was closed
    * @throws IOException
    */
-  protected final void search(final Query query, final DocumentFrequencyWritable freqs, final String[] shards,
+  protected final boolean search(final Query query, final DocumentFrequencyWritable freqs, final String[] shards,
           final HitsMapWritable result, final int max, Sort sort, long timeout, Filter filter) throws IOException {
-    timeout = getCollectorTiemout(timeout);
-    final Query rewrittenQuery = rewrite(query, shards);
-    final int numDocs = freqs.getNumDocsAsInteger();
-
-    final Weight weight = rewrittenQuery.weight(new CachedDfSource(freqs.getAll(), numDocs, new DefaultSimilarity()));
-    int totalHits = 0;
-    final int shardsCount = shards.length;
+    return search(query, freqs, shards, result, max, sort, timeout, filter, null);
+  }
 
-    // Run the search in parallel on the shards with a thread pool.
-    CompletionService<SearchResult> csSearch = new ExecutorCompletionService<SearchResult>(_threadPool);
+  /**
+   * Search in the given shards for hits following the given cursor.
+   *
+   * @param cursor
+   *          the position after which hits are collected, null to collect the
+   *          top hits; only supported for searches ordered by score
+   * @return false if the search on one of the shards was cut by the timeout or
+   *         skipped because the shard was closed
+   * @throws IOException
+   */
+  protected final boolean search(final Query query, final DocumentFrequencyWritable freqs, final String[] shards,
+          final HitsMapWritable result, final int max, Sort sort, long timeout, Filter filter, SearchCursor cursor)
+          throws IOException {
+    return search(query, freqs, shards, result, max, sort, timeout, filter, cursor, QueryPriority.INTERACTIVE);
+  }
 
-    for (int i = 0; i < shardsCount; i++) {
-      SearchCall call = new SearchCall(shards[i], weight, max, sort, timeout, i, filter);
-      csSearch.submit(call);
+  /**
+   * Search in the given shards on the searcher threads of the given priority
+   * class.
+   *
+   * @return false if the search on one of the shards was cut by the timeout or
+   *         skipped because the shard was closed
+   * @throws IOException
+   */
+  protected final boolean search(final Query query, final DocumentFrequencyWritable freqs, final String[] shards,
+          final HitsMapWritable result, final int max, Sort sort, long timeout, Filter filter, SearchCursor cursor,
+          QueryPriority priority) throws IOException {
+    if (cursor != null && sort != null) {
+      throw new IllegalArgumentException("searching after a cursor is only supported for searches ordered by score");
     }
+    timeout = getCollectorTiemout(timeout);
+    final Query rewrittenQuery = rewrite(query, shards, priority);
+    final int numDocs = freqs.getNumDocsAsInteger();
 
-    final ScoreDoc[][] scoreDocs = new ScoreDoc[shardsCount][];
+    final Weight weight = rewrittenQuery.weight(new CachedDfSource(freqs.getAll(), numDocs, new DefaultSimilarity()));
+    int totalHits = 0;
+    boolean complete = true;
+
+    // Run the search in parallel on the shards with a thread pool. The
+    // segments of large shards are searched in parallel as well, each search
+    // call result is then merged like the result of a shard.
+    CompletionService<SearchResult> csSearch = new ExecutorCompletionService<SearchResult>(getSearchExecutor(priority));
+    final List<String> callShards = new ArrayList<String>(shards.length);
+    final List<SearcherHandle> acquiredHandles = new ArrayList<SearcherHandle>();
+    final ScoreDoc[][] scoreDocs;
     ScoreDoc scoreDocExample = null;
-    for (int i = 0; i < shardsCount; i++) {
-      try {
-        final SearchResult searchResult = csSearch.take().get();
-        final int callIndex = searchResult.getSearchCallIndex();
+    try {
+      for (int i = 0; i < shards.length; i++) {
+        ScoreDoc after = cursor != null ? cursor.getScoreDocAfter(shards[i]) : null;
+        Filter shardFilter = getShardFilter(shards[i], filter);
+        SearcherHandle handle = null;
+        IndexReader[] segmentReaders = null;
+        if (_parallelSegmentSearch) {
+          handle = getSearcherHandleByShard(shards[i]);
+          IndexSearcher searcher = handle.getSearcher();
+          if (searcher != null) {
+            acquiredHandles.add(handle);
+            segmentReaders = getSegmentsToSearchInParallel(searcher);
+          }
+        }
+        if (segmentReaders == null) {
+          csSearch.submit(new SearchCall(shards[i], weight, max, sort, timeout, callShards.size(), shardFilter, after));
+          callShards.add(shards[i]);
+          continue;
+        }
+        int docBase = 0;
+        for (IndexReader segmentReader : segmentReaders) {
+          // every segment call holds the searcher until it is done, the shard
+          // might be removed while a failed search still runs on other segments
+          handle.retainSearcher();
+          try {
+            csSearch.submit(new SegmentSearchCall(shards[i], handle, new IndexSearcher(segmentReader), docBase,
+                    weight, max, sort, timeout, callShards.size(), shardFilter, after));
+          } catch (RuntimeException e) {
+            handle.finishSearcher();
+            throw e;
+          }
+          callShards.add(shards[i]);
+          docBase += segmentReader.maxDoc();
+        }
+      }
 
-        totalHits += searchResult._totalHits;
-        scoreDocs[callIndex] = searchResult._scoreDocs;
-        if (scoreDocExample == null && scoreDocs[callIndex].length > 0) {
-          scoreDocExample = scoreDocs[callIndex][0];
+      scoreDocs = new ScoreDoc[callShards.size()][];
+      for (int i = 0; i < scoreDocs.length; i++) {
+        try {
+          final SearchResult searchResult = csSearch.take().get();
+          final int callIndex = searchResult.getSearchCallIndex();
+
+          totalHits += searchResult._totalHits;
+          complete &= searchResult.isComplete();
+          scoreDocs[callIndex] = searchResult._scoreDocs;
+          if (scoreDocExample == null && scoreDocs[callIndex].length > 0) {
+            scoreDocExample = scoreDocs[callIndex][0];
+          }
+        } catch (InterruptedException e) {
+          throw new IOException("Multithread shard search interrupted:", e);
+        } catch (ExecutionException e) {
+          throw new IOException("Multithread shard search could not be executed:", e);
         }
-      } catch (InterruptedException e) {
-        throw new IOException("Multithread shard search interrupted:", e);
-      } catch (ExecutionException e) {
-        throw new IOException("Multithread shard search could not be executed:", e);
+      }
+    } finally {
+      for (SearcherHandle handle : acquiredHandles) {
+        handle.finishSearcher();
       }
     }
 
     result.addTotalHits(totalHits);
 
-    final Iterable<Hit> finalHitList;
+    final List<Hit> finalHitList;
     // Limit the request to the number requested or the total number of
     // documents, whichever is smaller.
     int limit = Math.min(numDocs, max);
+    final String[] scoreDocShards = callShards.toArray(new String[callShards.size()]);
     if (sort == null || totalHits == 0) {
-      final KattaHitQueue hq = new KattaHitQueue(limit);
-      int pos = 0;
-      BitSet done = new BitSet(shardsCount);
-      while (done.cardinality() != shardsCount) {
-        ScoreDoc scoreDoc = null;
-        for (int i = 0; i < shardsCount; i++) {
-          // only process this shard if it is not yet done.
-          if (!done.get(i)) {
-            final ScoreDoc[] docs = scoreDocs[i];
-            if (pos < docs.length) {
-              scoreDoc = docs[pos];
-              final Hit hit = new Hit(shards[i], getNodeName(), scoreDoc.score, scoreDoc.doc);
-              if (!hq.insert(hit)) {
-                // no doc left that has a higher score than the lowest score in
-                // the queue
-                done.set(i, true);
-              }
-            } else {
-              // no docs left in this shard
-              done.set(i, true);
-            }
-          }
-        }
-        // we always wait until we got all hits from this position in all
-        // shards.
-
-        pos++;
-        if (scoreDoc == null) {
-          // we do not have any more data
-          break;
-        }
-      }
-      finalHitList = hq;
+      finalHitList = ScoreDocMerger.mergeByScore(scoreDocs, scoreDocShards, getNodeName(), limit);
     } else {
       WritableType[] sortFieldsTypes = null;
       FieldDoc fieldDoc = (FieldDoc) scoreDocExample;
       sortFieldsTypes = WritableType.detectWritableTypes(fieldDoc.fields);
       result.setSortFieldTypes(sortFieldsTypes);
-      finalHitList = mergeFieldSort(new FieldSortComparator(sort.getSort(), sortFieldsTypes), limit, scoreDocs, shards,
-              getNodeName());
+      finalHitList = ScoreDocMerger.mergeByFields(new FieldSortComparator(sort.getSort(), sortFieldsTypes), scoreDocs,
+              scoreDocShards, getNodeName(), limit);
     }
 
     for (Hit hit : finalHitList) {
-      if (hit != null) {
-        result.addHit(hit);
-      }
+      result.addHit(hit);
     }
+    return complete;
   }
 
   /**
-   * Merges the already sorted sub-lists to one big sorted list.
+   * @return the segments of the given searcher if they should be searched in
+   *         parallel, null if the searcher should be searched as a whole
    */
-  private final static List<Hit> mergeFieldSort(FieldSortComparator comparator, int count,
-          ScoreDoc[][] sortedFieldDocs, String[] shards, String nodeName) {
-    int[] arrayPositions = new int[sortedFieldDocs.length];
-    final List<Hit> sortedResult = new ArrayList<Hit>(count);
-
-    BitSet listDone = new BitSet(sortedFieldDocs.length);
-    for (int subListIndex = 0; subListIndex < arrayPositions.length; subListIndex++) {
-      if (sortedFieldDocs[subListIndex].length == 0) {
-        listDone.set(subListIndex, true);
-      }
+  private IndexReader[] getSegmentsToSearchInParallel(IndexSearcher searcher) {
+    IndexReader[] segmentReaders = searcher.getSubReaders();
+    if (segmentReaders.length < Math.max(2, _parallelSegmentsMinSegments)
+            || searcher.maxDoc() < _parallelSegmentsMinDocs) {
+      return null;
     }
-    do {
-      int fieldDocArrayWithSmallestFieldDoc = -1;
-      FieldDoc smallestFieldDoc = null;
-      for (int subListIndex = 0; subListIndex < arrayPositions.length; subListIndex++) {
-        if (!listDone.get(subListIndex)) {
-          FieldDoc hit = (FieldDoc) sortedFieldDocs[subListIndex][arrayPositions[subListIndex]];
-          if (smallestFieldDoc == null || comparator.compare(hit.fields, smallestFieldDoc.fields) < 0) {
-            smallestFieldDoc = hit;
-            fieldDocArrayWithSmallestFieldDoc = subListIndex;
-          }
-        }
-      }
-      ScoreDoc[] smallestElementList = sortedFieldDocs[fieldDocArrayWithSmallestFieldDoc];
-      FieldDoc fieldDoc = (FieldDoc) smallestElementList[arrayPositions[fieldDocArrayWithSmallestFieldDoc]];
-      arrayPositions[fieldDocArrayWithSmallestFieldDoc]++;
-      final Hit hit = new Hit(shards[fieldDocArrayWithSmallestFieldDoc], nodeName, fieldDoc.score, fieldDoc.doc);
-      hit.setSortFields(WritableType.convertComparable(comparator.getFieldTypes(), fieldDoc.fields));
-      sortedResult.add(hit);
-      if (arrayPositions[fieldDocArrayWithSmallestFieldDoc] >= smallestElementList.length) {
-        listDone.set(fieldDocArrayWithSmallestFieldDoc, true);
-      }
-    } while (sortedResult.size() < count && listDone.cardinality() < arrayPositions.length);
-    return sortedResult;
+    return segmentReaders;
   }
 
   /**
@@ -577,15 +1462,15 @@ public class LuceneServer implements IContentServer, ILuceneServer {
   protected Document doc(final String shardName, final int docId, final String[] fieldNames) throws IOException {
     final SearcherHandle handle = getSearcherHandleByShard(shardName);
     IndexSearcher searcher = handle.getSearcher();
+    if (searcher == null) {
+      return null;
+    }
     try {
-      if (searcher != null) {
-        if (fieldNames == null) {
-          return searcher.doc(docId);
-        } else {
-          return searcher.doc(docId, new MapFieldSelector(fieldNames));
-        }
+      if (fieldNames == null) {
+        return searcher.doc(docId);
+      } else {
+        return searcher.doc(docId, new MapFieldSelector(fieldNames));
       }
-      return null;
     } finally {
       handle.finishSearcher();
     }
@@ -600,19 +1485,68 @@ public class LuceneServer implements IContentServer, ILuceneServer {
    * @throws IOException
    */
   protected Query rewrite(final Query original, final String[] shardNames) throws IOException {
+    return rewrite(original, shardNames, QueryPriority.INTERACTIVE);
+  }
+
+  /**
+   * Rewrites a query for the given shards. The rewritten query of every shard
+   * is taken from the rewrite cache if enabled, the shards which miss the cache
+   * are rewritten in parallel on the searcher threads of the given priority
+   * class.
+   */
+  protected Query rewrite(final Query original, final String[] shardNames, QueryPriority priority)
+          throws IOException {
     final Query[] queries = new Query[shardNames.length];
+    final RewriteCacheKey[] cacheKeys = new RewriteCacheKey[shardNames.length];
+    final List<Integer> missingShards = new ArrayList<Integer>(shardNames.length);
     for (int i = 0; i < shardNames.length; i++) {
-      final String shard = shardNames[i];
-      final SearcherHandle handle = getSearcherHandleByShard(shard);
-      IndexSearcher searcher = handle.getSearcher();
-      try {
-        if (searcher == null) {
-          throw new IllegalStateException("no index-server for shard '" + shard + "' found - probably undeployed");
-        } else {
-          queries[i] = searcher.rewrite(original);
+      if (_rewriteCache != null) {
+        Long generation = _shardGenerations.get(shardNames[i]);
+        if (generation != null) {
+          cacheKeys[i] = new RewriteCacheKey(shardNames[i], generation, original);
+          queries[i] = _rewriteCache.getIfPresent(cacheKeys[i]);
+        }
+      }
+      if (queries[i] == null) {
+        missingShards.add(i);
+      }
+    }
+
+    if (missingShards.size() == 1) {
+      int i = missingShards.get(0);
+      queries[i] = rewrite(original, shardNames[i]);
+    } else if (missingShards.size() > 1) {
+      CompletionService<Query> csRewrite = new ExecutorCompletionService<Query>(getSearchExecutor(priority));
+      final Map<Future<Query>, Integer> shardIndexes = new HashMap<Future<Query>, Integer>();
+      for (final int i : missingShards) {
+        shardIndexes.put(csRewrite.submit(new Callable<Query>() {
+          @Override
+          public Query call() throws Exception {
+            return rewrite(original, shardNames[i]);
+          }
+        }), i);
+      }
+      for (int n = 0; n < missingShards.size(); n++) {
+        try {
+          Future<Query> future = csRewrite.take();
+          queries[shardIndexes.get(future)] = future.get();
+        } catch (InterruptedException e) {
+          throw new IOException("Multithread shard rewrite interrupted:", e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IOException("Multithread shard rewrite could not be executed:", e);
+        }
+      }
+    }
+
+    if (_rewriteCache != null) {
+      for (int i : missingShards) {
+        // queries which rewrite to themselves are cheap and not cached
+        if (cacheKeys[i] != null && queries[i] != original) {
+          _rewriteCache.put(cacheKeys[i], queries[i]);
         }
-      } finally {
-        handle.finishSearcher();
       }
     }
     if (queries.length > 0 && queries[0] != null) {
@@ -623,6 +1557,19 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     return original;
   }
 
+  private Query rewrite(final Query original, final String shard) throws IOException {
+    final SearcherHandle handle = getSearcherHandleByShard(shard);
+    IndexSearcher searcher = handle.getSearcher();
+    if (searcher == null) {
+      throw new IllegalStateException("no index-server for shard '" + shard + "' found - probably undeployed");
+    }
+    try {
+      return searcher.rewrite(original);
+    } finally {
+      handle.finishSearcher();
+    }
+  }
+
   /**
    * Implements a single thread of a search. Each shard has a separate
    * SearchCall and they are run more or less in parallel.
@@ -636,8 +1583,14 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     protected final long _timeout;
     protected final int _callIndex;
     protected final Filter _filter;
+    protected final ScoreDoc _after;
 
     public SearchCall(String shardName, Weight weight, int limit, Sort sort, long timeout, int callIndex, Filter filter) {
+      this(shardName, weight, limit, sort, timeout, callIndex, filter, null);
+    }
+
+    public SearchCall(String shardName, Weight weight, int limit, Sort sort, long timeout, int callIndex,
+            Filter filter, ScoreDoc after) {
       _shardName = shardName;
       _weight = weight;
       _limit = limit;
@@ -645,10 +1598,10 @@ public class LuceneServer implements IContentServer, ILuceneServer {
       _timeout = timeout;
       _callIndex = callIndex;
       _filter = filter;
+      _after = after;
     }
 
     @Override
-    @SuppressWarnings({ "rawtypes" })
     public SearchResult call() throws Exception {
       SearcherHandle handle = getSearcherHandleByShard(_shardName);
       IndexSearcher searcher = handle.getSearcher();
@@ -658,37 +1611,45 @@ public class LuceneServer implements IContentServer, ILuceneServer {
           LOG.warn(String.format("Search attempt for shard %s skipped because shard was closed; empty result returned",
                   _shardName));
           // return empty result...
-          return new SearchResult(0, new ScoreDoc[0], _callIndex);
+          return new SearchResult(0, new ScoreDoc[0], _callIndex, false);
+        }
+        return search(searcher, _after);
+      } finally {
+        if (searcher != null) {
+          handle.finishSearcher();
         }
+      }
+    }
 
-        int nDocs = Math.min(_limit, searcher.maxDoc());
+    @SuppressWarnings({ "rawtypes" })
+    protected SearchResult search(IndexSearcher searcher, ScoreDoc after) throws IOException {
+      int nDocs = Math.min(_limit, searcher.maxDoc());
 
-        // empty index (or result limit <= 0); return empty results (as the
-        // collectors will fail if nDocs <= 0)
-        if (nDocs <= 0) {
-          return new SearchResult(0, new ScoreDoc[0], _callIndex);
-        }
+      // empty index (or result limit <= 0); return empty results (as the
+      // collectors will fail if nDocs <= 0)
+      if (nDocs <= 0) {
+        return new SearchResult(0, new ScoreDoc[0], _callIndex);
+      }
 
-        TopDocsCollector resultCollector;
-        if (_sort != null) {
-          boolean fillFields = true;// see IndexSearcher#search(...)
-          boolean fieldSortDoMaxScore = false;
-          resultCollector = TopFieldCollector.create(_sort, nDocs, fillFields, _trackDocScoresOnSort,
-                  fieldSortDoMaxScore, !_weight.scoresDocsOutOfOrder());
-        } else {
-          resultCollector = TopScoreDocCollector.create(nDocs, !_weight.scoresDocsOutOfOrder());
-        }
-        try {
-          searcher.search(_weight, _filter, wrapInTimeoutCollector(resultCollector));
-        } catch (TimeExceededException e) {
-          LOG.warn("encountered exceeded timout for query '" + _weight.getQuery() + " on shard '" + _shardName
-                  + "' with timeout set to '" + _timeout + "'");
-        }
-        TopDocs docs = resultCollector.topDocs();
-        return new SearchResult(docs.totalHits, docs.scoreDocs, _callIndex);
-      } finally {
-        handle.finishSearcher();
+      TopDocsCollector resultCollector;
+      if (_sort != null) {
+        boolean fillFields = true;// see IndexSearcher#search(...)
+        boolean fieldSortDoMaxScore = false;
+        resultCollector = TopFieldCollector.create(_sort, nDocs, fillFields, _trackDocScoresOnSort,
+                fieldSortDoMaxScore, !_weight.scoresDocsOutOfOrder());
+      } else {
+        resultCollector = TopScoreDocCollector.create(nDocs, after, !_weight.scoresDocsOutOfOrder());
+      }
+      boolean complete = true;
+      try {
+        searcher.search(_weight, _filter, wrapInTimeoutCollector(resultCollector));
+      } catch (TimeExceededException e) {
+        LOG.warn("encountered exceeded timout for query '" + _weight.getQuery() + " on shard '" + _shardName
+                + "' with timeout set to '" + _timeout + "'");
+        complete = false;
       }
+      TopDocs docs = resultCollector.topDocs();
+      return new SearchResult(docs.totalHits, docs.scoreDocs, _callIndex, complete);
     }
 
     @SuppressWarnings({ "rawtypes" })
@@ -703,16 +1664,121 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     }
   }
 
+  /**
+   * Searches one segment of a shard. The call owns one usage of the searcher
+   * handle of the shard and finishes it when done, so the searcher is not
+   * closed while the segment is searched. The document ids of the result are
+   * rebased to the shard, so the results of the segments merge like shard
+   * results.
+   */
+  protected class SegmentSearchCall extends SearchCall {
+
+    private final SearcherHandle _handle;
+    private final IndexSearcher _segmentSearcher;
+    private final int _docBase;
+
+    public SegmentSearchCall(String shardName, SearcherHandle handle, IndexSearcher segmentSearcher, int docBase,
+            Weight weight, int limit, Sort sort, long timeout, int callIndex, Filter filter, ScoreDoc after) {
+      super(shardName, weight, limit, sort, timeout, callIndex, filter, after);
+      _handle = handle;
+      _segmentSearcher = segmentSearcher;
+      _docBase = docBase;
+    }
+
+    @Override
+    public SearchResult call() throws Exception {
+      try {
+        ScoreDoc segmentAfter = _after != null ? new ScoreDoc(_after.doc - _docBase, _after.score) : null;
+        SearchResult result = search(_segmentSearcher, segmentAfter);
+        for (ScoreDoc scoreDoc : result._scoreDocs) {
+          scoreDoc.doc += _docBase;
+        }
+        return result;
+      } finally {
+        _handle.finishSearcher();
+      }
+    }
+  }
+
+  /**
+   * Counts the hits of one segment of a shard without scoring them. The call
+   * owns one usage of the searcher handle of the shard and finishes it when
+   * done.
+   */
+  protected class CountCall implements Callable<CountResult> {
+
+    private final String _shardName;
+    private final SearcherHandle _handle;
+    private final IndexSearcher _segmentSearcher;
+    private final Query _query;
+    private final Filter _filter;
+    private final long _timeout;
+    private final int _callIndex;
+
+    public CountCall(String shardName, SearcherHandle handle, IndexSearcher segmentSearcher, Query query,
+            Filter filter, long timeout, int callIndex) {
+      _shardName = shardName;
+      _handle = handle;
+      _segmentSearcher = segmentSearcher;
+      _query = query;
+      _filter = filter;
+      _timeout = timeout;
+      _callIndex = callIndex;
+    }
+
+    @Override
+    public CountResult call() throws Exception {
+      TotalHitCountCollector countCollector = new TotalHitCountCollector();
+      Collector collector = countCollector;
+      if (_timeout > 0) {
+        TimeLimitingCollector timeoutCollector = new TimeLimitingCollector(countCollector, _searchTimerCounter,
+                _timeout);
+        timeoutCollector.setBaseline();
+        collector = timeoutCollector;
+      }
+      boolean complete = true;
+      try {
+        _segmentSearcher.search(_query, _filter, collector);
+      } catch (TimeExceededException e) {
+        LOG.warn("encountered exceeded timout for count query '" + _query + " on shard '" + _shardName
+                + "' with timeout set to '" + _timeout + "'");
+        complete = false;
+      } finally {
+        _handle.finishSearcher();
+      }
+      return new CountResult(countCollector.getTotalHits(), _callIndex, complete);
+    }
+  }
+
+  protected static class CountResult {
+
+    protected final int _count;
+    protected final int _callIndex;
+    protected final boolean _complete;
+
+    public CountResult(int count, int callIndex, boolean complete) {
+      _count = count;
+      _callIndex = callIndex;
+      _complete = complete;
+    }
+  }
+
   protected static class SearchResult {
 
     protected final int _totalHits;
     protected final ScoreDoc[] _scoreDocs;
     protected int _searchCallIndex;
+    protected final boolean _complete;
 
     public SearchResult(int totalHits, ScoreDoc[] scoreDocs, int searchCallIndex) {
+      this(totalHits, scoreDocs, searchCallIndex, true);
+    }
+
+    public SearchResult(int totalHits, ScoreDoc[] scoreDocs, int searchCallIndex, boolean complete) {
       _totalHits = totalHits;
       _scoreDocs = scoreDocs;
       _searchCallIndex = searchCallIndex;
+      _complete = complete;
     }
 
     public int getTotalHits() {
@@ -727,6 +1793,267 @@ public class LuceneServer implements IContentServer, ILuceneServer {
       return _searchCallIndex;
     }
 
+    /**
+     * @return false if the search was cut by the timeout or the shard was
+     *         closed
+     */
+    public boolean isComplete() {
+      return _complete;
+    }
+
+  }
+
+  /**
+   * Key of the result cache. Besides the search parameters it contains the
+   * generation of each searched shard, so a result of a replaced shard is
+   * never returned, even if it was put into the cache after the shard
+   * changed.
+   */
+  protected static class ResultCacheKey {
+
+    private final Query _query;
+    private final Filter _filter;
+    private final Sort _sort;
+    private final String[] _shards;
+    private final long[] _shardGenerations;
+    private final int _count;
+    private final Map<TermWritable, Integer> _docFreqs;
+    private final long _numDocs;
+    private final int _hashCode;
+
+    public ResultCacheKey(Query query, Filter filter, Sort sort, String[] shards, long[] shardGenerations, int count,
+            DocumentFrequencyWritable freqs) {
+      _query = query;
+      _filter = filter;
+      _sort = sort;
+      _shards = shards.clone();
+      _shardGenerations = shardGenerations;
+      _count = count;
+      _docFreqs = new HashMap<TermWritable, Integer>(freqs.getAll());
+      _numDocs = freqs.getNumDocs();
+      _hashCode = computeHashCode();
+    }
+
+    public boolean containsShard(String shardName) {
+      for (String shard : _shards) {
+        if (shard.equals(shardName)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int computeHashCode() {
+      final int prime = 31;
+      int result = _query.hashCode();
+      result = prime * result + (_filter == null ? 0 : _filter.hashCode());
+      result = prime * result + (_sort == null ? 0 : _sort.hashCode());
+      result = prime * result + Arrays.hashCode(_shards);
+      result = prime * result + Arrays.hashCode(_shardGenerations);
+      result = prime * result + _count;
+      result = prime * result + _docFreqs.hashCode();
+      result = prime * result + (int) (_numDocs ^ (_numDocs >>> 32));
+      return result;
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      ResultCacheKey other = (ResultCacheKey) obj;
+      return _hashCode == other._hashCode && _count == other._count && _numDocs == other._numDocs
+              && Arrays.equals(_shardGenerations, other._shardGenerations) && Arrays.equals(_shards, other._shards)
+              && _query.equals(other._query) && (_filter == null ? other._filter == null : _filter.equals(other._filter))
+              && (_sort == null ? other._sort == null : _sort.equals(other._sort)) && _docFreqs.equals(other._docFreqs);
+    }
+  }
+
+  /**
+   * Key of a cached count. Contains the generation of the shard, so counts
+   * from before a redeploy of the shard are never returned.
+   */
+  protected static class CountCacheKey {
+
+    private final String _shard;
+    private final long _shardGeneration;
+    private final Query _query;
+    private final Filter _filter;
+    private final int _hashCode;
+
+    public CountCacheKey(String shard, long shardGeneration, Query query, Filter filter) {
+      _shard = shard;
+      _shardGeneration = shardGeneration;
+      _query = query;
+      _filter = filter;
+      final int prime = 31;
+      int hashCode = _shard.hashCode();
+      hashCode = prime * hashCode + (int) (_shardGeneration ^ (_shardGeneration >>> 32));
+      hashCode = prime * hashCode + _query.hashCode();
+      hashCode = prime * hashCode + (_filter == null ? 0 : _filter.hashCode());
+      _hashCode = hashCode;
+    }
+
+    public String getShard() {
+      return _shard;
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      CountCacheKey other = (CountCacheKey) obj;
+      return _hashCode == other._hashCode && _shardGeneration == other._shardGeneration && _shard.equals(other._shard)
+              && _query.equals(other._query) && (_filter == null ? other._filter == null : _filter.equals(other._filter));
+    }
+  }
+
+  /**
+   * Key of a query rewritten for a shard. Contains the generation of the shard,
+   * so queries rewritten against the terms of a former shard version are never
+   * returned.
+   */
+  protected static class RewriteCacheKey {
+
+    private final String _shard;
+    private final long _shardGeneration;
+    private final Query _query;
+    private final int _hashCode;
+
+    public RewriteCacheKey(String shard, long shardGeneration, Query query) {
+      _shard = shard;
+      _shardGeneration = shardGeneration;
+      _query = query;
+      final int prime = 31;
+      int hashCode = _shard.hashCode();
+      hashCode = prime * hashCode + (int) (_shardGeneration ^ (_shardGeneration >>> 32));
+      hashCode = prime * hashCode + _query.hashCode();
+      _hashCode = hashCode;
+    }
+
+    public String getShard() {
+      return _shard;
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      RewriteCacheKey other = (RewriteCacheKey) obj;
+      return _hashCode == other._hashCode && _shardGeneration == other._shardGeneration && _shard.equals(other._shard)
+              && _query.equals(other._query);
+    }
+  }
+
+  /**
+   * Key of the cached document frequency of a term in a shard. Contains the
+   * generation of the shard, so frequencies of a former shard version are never
+   * returned.
+   */
+  protected static class DocFreqCacheKey {
+
+    private final String _shard;
+    private final long _shardGeneration;
+    private final Term _term;
+    private final int _hashCode;
+
+    public DocFreqCacheKey(String shard, long shardGeneration, Term term) {
+      _shard = shard;
+      _shardGeneration = shardGeneration;
+      _term = term;
+      final int prime = 31;
+      int hashCode = _shard.hashCode();
+      hashCode = prime * hashCode + (int) (_shardGeneration ^ (_shardGeneration >>> 32));
+      hashCode = prime * hashCode + _term.hashCode();
+      _hashCode = hashCode;
+    }
+
+    public String getShard() {
+      return _shard;
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      DocFreqCacheKey other = (DocFreqCacheKey) obj;
+      return _hashCode == other._hashCode && _shardGeneration == other._shardGeneration && _shard.equals(other._shard)
+              && _term.equals(other._term);
+    }
+  }
+
+  /**
+   * Key of a cached document. Contains the generation of the shard, so
+   * documents from before a redeploy of the shard are never returned.
+   */
+  protected static class DocumentCacheKey {
+
+    private final String _shard;
+    private final long _shardGeneration;
+    private final int _docId;
+    private final Set<String> _fieldNames;
+    private final int _hashCode;
+
+    public DocumentCacheKey(String shard, long shardGeneration, int docId, String[] fieldNames) {
+      _shard = shard;
+      _shardGeneration = shardGeneration;
+      _docId = docId;
+      _fieldNames = fieldNames != null ? new HashSet<String>(Arrays.asList(fieldNames)) : null;
+      final int prime = 31;
+      int hashCode = _shard.hashCode();
+      hashCode = prime * hashCode + (int) (_shardGeneration ^ (_shardGeneration >>> 32));
+      hashCode = prime * hashCode + _docId;
+      hashCode = prime * hashCode + (_fieldNames == null ? 0 : _fieldNames.hashCode());
+      _hashCode = hashCode;
+    }
+
+    public String getShard() {
+      return _shard;
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      DocumentCacheKey other = (DocumentCacheKey) obj;
+      return _hashCode == other._hashCode && _docId == other._docId && _shardGeneration == other._shardGeneration
+              && _shard.equals(other._shard)
+              && (_fieldNames == null ? other._fieldNames == null : _fieldNames.equals(other._fieldNames));
+    }
   }
 
   // Cached document frequency source from apache lucene
@@ -819,62 +2146,20 @@ public class LuceneServer implements IContentServer, ILuceneServer {
     }
   }
 
-  protected static class KattaHitQueue extends PriorityQueue<Hit> implements Iterable<Hit> {
-
-    private final int _maxSize;
-
-    KattaHitQueue(final int maxSize) {
-      _maxSize = maxSize;
-      initialize(maxSize);
-    }
-
-    public boolean insert(Hit hit) {
-      if (size() < _maxSize) {
-        add(hit);
-        return true;
-      }
-      if (lessThan(top(), hit)) {
-        insertWithOverflow(hit);
-        return true;
-      }
-      return false;
-    }
-
-    @Override
-    protected final boolean lessThan(final Hit hitA, final Hit hitB) {
-      return hitA.compareTo(hitB) > 0;
-    }
-
-    @Override
-    public Iterator<Hit> iterator() {
-      return new Iterator<Hit>() {
-        @Override
-        public boolean hasNext() {
-          return KattaHitQueue.this.size() > 0;
-        }
-
-        @Override
-        public Hit next() {
-          return KattaHitQueue.this.pop();
-        }
-
-        @Override
-        public void remove() {
-          throw new UnsupportedOperationException("Can't remove using this iterator");
-        }
-      };
-    }
-  }
-
   /**
    * Holds an IndexSearcher and maintains the current number of threads using
-   * it. For every call to getSearcher(), finishSearcher() must be called
-   * exactly one time. finally blocks are a good idea.
+   * it. For every call to getSearcher() which returns a searcher,
+   * finishSearcher() must be called exactly one time. finally blocks are a good
+   * idea.
+   * <p>
+   * The handle itself holds one reference until closeSearcher() is called.
+   * Whoever releases the last reference closes the searcher, so closing never
+   * waits for running searches. The reference count is maintained lock-free.
    */
   protected static class SearcherHandle {
-    private volatile IndexSearcher _indexSearcher;
-    private final Object _lock = new Object();
-    private final AtomicInteger _refCount = new AtomicInteger(0);
+    private final IndexSearcher _indexSearcher;
+    private final AtomicInteger _refCount = new AtomicInteger(1);
+    private final AtomicBoolean _closed = new AtomicBoolean(false);
 
     public SearcherHandle(IndexSearcher indexSearcher) {
       _indexSearcher = indexSearcher;
@@ -882,51 +2167,64 @@ public class LuceneServer implements IContentServer, ILuceneServer {
 
     /**
      * Returns the IndexSearcher and increments the usage count.
-     * finishSearcher() must be called once after each call to getSearcher().
+     * finishSearcher() must be called once after each call to getSearcher()
+     * which returned a searcher.
      * 
-     * @return the searcher
+     * @return the searcher or null if the handle is already closed
      */
     public IndexSearcher getSearcher() {
-      synchronized (_lock) {
-        if (_refCount.get() < 0) {
+      if (_closed.get()) {
+        return null;
+      }
+      while (true) {
+        int refCount = _refCount.get();
+        if (refCount <= 0) {
           return null;
         }
-        _refCount.incrementAndGet();
+        if (_refCount.compareAndSet(refCount, refCount + 1)) {
+          return _indexSearcher;
+        }
       }
-      return _indexSearcher;
     }
 
     /**
-     * Decrements the searcher usage count.
+     * Increments the usage count for a caller which uses the searcher already,
+     * e.g. to hand it over to another thread. Other than getSearcher() this
+     * succeeds on a closed handle, since the searcher is still open.
+     * finishSearcher() must be called once after each call.
+     */
+    public void retainSearcher() {
+      _refCount.incrementAndGet();
+    }
+
+    /**
+     * Decrements the searcher usage count and closes the searcher if it was
+     * the last usage of a closed handle.
      */
     public void finishSearcher() {
-      synchronized (_lock) {
-        _refCount.decrementAndGet();
+      try {
+        release();
+      } catch (IOException e) {
+        LOG.error("failed to close searcher", e);
       }
     }
 
     /**
-     * Spins until the searcher is no longer in use, then closes it.
+     * Releases the reference of the handle. The searcher is closed immediately
+     * if it is not in use, otherwise by the last finishSearcher() call.
      * 
      * @throws IOException
      *           on IndexSearcher close failure
      */
     public void closeSearcher() throws IOException {
-      while (true) {
-        synchronized (_lock) {
-          if (_refCount.get() == 0) {
-            IndexSearcher indexSearcher = _indexSearcher;
-            _indexSearcher = null;
-            _refCount.set(-1);
-
-            indexSearcher.close();
-            return;
-          }
-        }
-        try {
-          Thread.sleep(INDEX_HANDLE_CLOSE_SLEEP_TIME);
-        } catch (InterruptedException e) {
-        }
+      if (_closed.compareAndSet(false, true)) {
+        release();
+      }
+    }
+
+    private void release() throws IOException {
+      if (_refCount.decrementAndGet() == 0) {
+        _indexSearcher.close();
       }
     }
   }
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+
+/**
+ * Compact binary encoding of the standard Lucene queries (term, boolean,
+ * phrase, prefix, wildcard, term range, numeric range, filtered and constant
+ * score queries). Field names are written once per query and referenced by
+ * index afterwards. Other queries (including subclasses of the standard ones)
+ * and filters are written with Java serialization, embedded into the binary
+ * encoding of the surrounding query.
+ * <p>
+ * Every encoded query starts with a format version, so the encoding can be
+ * extended without breaking the decoding of older clients.
+ */
+class QueryCodec {
+
+  static final byte VERSION = 1;
+
+  private static final byte TYPE_SERIALIZED = 0;
+  private static final byte TYPE_TERM = 1;
+  private static final byte TYPE_BOOLEAN = 2;
+  private static final byte TYPE_PHRASE = 3;
+  private static final byte TYPE_PREFIX = 4;
+  private static final byte TYPE_WILDCARD = 5;
+  private static final byte TYPE_TERM_RANGE = 6;
+  private static final byte TYPE_NUMERIC_RANGE = 7;
+  private static final byte TYPE_FILTERED = 8;
+  private static final byte TYPE_CONSTANT_SCORE_QUERY = 9;
+  private static final byte TYPE_CONSTANT_SCORE_FILTER = 10;
+
+  private static final byte NUMBER_INT = 0;
+  private static final byte NUMBER_LONG = 1;
+  private static final byte NUMBER_FLOAT = 2;
+  private static final byte NUMBER_DOUBLE = 3;
+
+  private static final MultiTermQuery.RewriteMethod[] REWRITE_METHODS = {
+          MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT, MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE,
+          MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE, MultiTermQuery.CONSTANT_SCORE_BOOLEAN_QUERY_REWRITE };
+
+  private static final BooleanClause.Occur[] OCCURS = BooleanClause.Occur.values();
+
+  private QueryCodec() {
+    // no instances
+  }
+
+  public static void write(Query query, DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    new Encoder(out).writeQuery(query);
+  }
+
+  public static Query read(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("unsupported query encoding version " + version);
+    }
+    return new Decoder(in).readQuery();
+  }
+
+  private static class Encoder {
+
+    private final DataOutput _out;
+    private final Map<String, Integer> _fieldIndices = new HashMap<String, Integer>();
+
+    public Encoder(DataOutput out) {
+      _out = out;
+    }
+
+    public void writeQuery(Query query) throws IOException {
+      Class<?> queryClass = query.getClass();
+      if (queryClass == TermQuery.class) {
+        _out.writeByte(TYPE_TERM);
+        writeTerm(((TermQuery) query).getTerm());
+      } else if (queryClass == BooleanQuery.class) {
+        writeBooleanQuery((BooleanQuery) query);
+      } else if (queryClass == PhraseQuery.class) {
+        writePhraseQuery((PhraseQuery) query);
+      } else if (queryClass == PrefixQuery.class && isKnownRewriteMethod((MultiTermQuery) query)) {
+        _out.writeByte(TYPE_PREFIX);
+        writeTerm(((PrefixQuery) query).getPrefix());
+        writeRewriteMethod((MultiTermQuery) query);
+      } else if (queryClass == WildcardQuery.class && isKnownRewriteMethod((MultiTermQuery) query)) {
+        _out.writeByte(TYPE_WILDCARD);
+        writeTerm(((WildcardQuery) query).getTerm());
+        writeRewriteMethod((MultiTermQuery) query);
+      } else if (queryClass == TermRangeQuery.class && ((TermRangeQuery) query).getCollator() == null
+              && isKnownRewriteMethod((MultiTermQuery) query)) {
+        writeTermRangeQuery((TermRangeQuery) query);
+      } else if (queryClass == NumericRangeQuery.class && isKnownRewriteMethod((MultiTermQuery) query)
+              && getNumberType((NumericRangeQuery<?>) query) >= 0) {
+        writeNumericRangeQuery((NumericRangeQuery<?>) query);
+      } else if (queryClass == FilteredQuery.class) {
+        _out.writeByte(TYPE_FILTERED);
+        writeQuery(((FilteredQuery) query).getQuery());
+        writeSerialized(((FilteredQuery) query).getFilter());
+      } else if (queryClass == ConstantScoreQuery.class && ((ConstantScoreQuery) query).getQuery() != null) {
+        _out.writeByte(TYPE_CONSTANT_SCORE_QUERY);
+        writeQuery(((ConstantScoreQuery) query).getQuery());
+      } else if (queryClass == ConstantScoreQuery.class) {
+        _out.writeByte(TYPE_CONSTANT_SCORE_FILTER);
+        writeSerialized(((ConstantScoreQuery) query).getFilter());
+      } else {
+        _out.writeByte(TYPE_SERIALIZED);
+        writeSerialized(query);
+        return;
+      }
+      _out.writeFloat(query.getBoost());
+    }
+
+    private void writeBooleanQuery(BooleanQuery query) throws IOException {
+      _out.writeByte(TYPE_BOOLEAN);
+      _out.writeBoolean(query.isCoordDisabled());
+      WritableUtils.writeVInt(_out, query.getMinimumNumberShouldMatch());
+      List<BooleanClause> clauses = query.clauses();
+      WritableUtils.writeVInt(_out, clauses.size());
+      for (BooleanClause clause : clauses) {
+        _out.writeByte(clause.getOccur().ordinal());
+        writeQuery(clause.getQuery());
+      }
+    }
+
+    private void writePhraseQuery(PhraseQuery query) throws IOException {
+      _out.writeByte(TYPE_PHRASE);
+      WritableUtils.writeVInt(_out, query.getSlop());
+      Term[] terms = query.getTerms();
+      int[] positions = query.getPositions();
+      WritableUtils.writeVInt(_out, terms.length);
+      for (int i = 0; i < terms.length; i++) {
+        writeTerm(terms[i]);
+        WritableUtils.writeVInt(_out, positions[i]);
+      }
+    }
+
+    private void writeTermRangeQuery(TermRangeQuery query) throws IOException {
+      _out.writeByte(TYPE_TERM_RANGE);
+      writeField(query.getField());
+      writeNullableString(query.getLowerTerm());
+      writeNullableString(query.getUpperTerm());
+      _out.writeBoolean(query.includesLower());
+      _out.writeBoolean(query.includesUpper());
+      writeRewriteMethod(query);
+    }
+
+    private void writeNumericRangeQuery(NumericRangeQuery<?> query) throws IOException {
+      _out.writeByte(TYPE_NUMERIC_RANGE);
+      writeField(query.getField());
+      byte numberType = getNumberType(query);
+      _out.writeByte(numberType);
+      WritableUtils.writeVInt(_out, query.getPrecisionStep());
+      writeNullableNumber(numberType, query.getMin());
+      writeNullableNumber(numberType, query.getMax());
+      _out.writeBoolean(query.includesMin());
+      _out.writeBoolean(query.includesMax());
+      writeRewriteMethod(query);
+    }
+
+    private void writeNullableNumber(byte numberType, Number number) throws IOException {
+      _out.writeBoolean(number != null);
+      if (number == null) {
+        return;
+      }
+      switch (numberType) {
+      case NUMBER_INT:
+        WritableUtils.writeVInt(_out, number.intValue());
+        break;
+      case NUMBER_LONG:
+        WritableUtils.writeVLong(_out, number.longValue());
+        break;
+      case NUMBER_FLOAT:
+        _out.writeFloat(number.floatValue());
+        break;
+      default:
+        _out.writeDouble(number.doubleValue());
+      }
+    }
+
+    private void writeRewriteMethod(MultiTermQuery query) throws IOException {
+      _out.writeByte(getRewriteMethodIndex(query));
+    }
+
+    private void writeTerm(Term term) throws IOException {
+      writeField(term.field());
+      Text.writeString(_out, term.text());
+    }
+
+    /**
+     * Writes 0 followed by the name for a new field, the index + 1 for a field
+     * which was already written.
+     */
+    private void writeField(String field) throws IOException {
+      Integer index = _fieldIndices.get(field);
+      if (index != null) {
+        WritableUtils.writeVInt(_out, index + 1);
+      } else {
+        WritableUtils.writeVInt(_out, 0);
+        Text.writeString(_out, field);
+        _fieldIndices.put(field, _fieldIndices.size());
+      }
+    }
+
+    private void writeNullableString(String string) throws IOException {
+      _out.writeBoolean(string != null);
+      if (string != null) {
+        Text.writeString(_out, string);
+      }
+    }
+
+    private void writeSerialized(Object object) throws IOException {
+      ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+      ObjectOutputStream objectStream = new ObjectOutputStream(byteArrayStream);
+      objectStream.writeObject(object);
+      objectStream.close();
+      byte[] byteArray = byteArrayStream.toByteArray();
+      WritableUtils.writeVInt(_out, byteArray.length);
+      _out.write(byteArray);
+    }
+  }
+
+  private static class Decoder {
+
+    private final DataInput _in;
+    private final List<String> _fields = new ArrayList<String>();
+
+    public Decoder(DataInput in) {
+      _in = in;
+    }
+
+    public Query readQuery() throws IOException {
+      Query query;
+      byte type = _in.readByte();
+      switch (type) {
+      case TYPE_SERIALIZED:
+        return (Query) readSerialized();
+      case TYPE_TERM:
+        query = new TermQuery(readTerm());
+        break;
+      case TYPE_BOOLEAN:
+        query = readBooleanQuery();
+        break;
+      case TYPE_PHRASE:
+        query = readPhraseQuery();
+        break;
+      case TYPE_PREFIX:
+        query = new PrefixQuery(readTerm());
+        readRewriteMethod((MultiTermQuery) query);
+        break;
+      case TYPE_WILDCARD:
+        query = new WildcardQuery(readTerm());
+        readRewriteMethod((MultiTermQuery) query);
+        break;
+      case TYPE_TERM_RANGE:
+        query = new TermRangeQuery(readField(), readNullableString(), readNullableString(), _in.readBoolean(),
+                _in.readBoolean());
+        readRewriteMethod((MultiTermQuery) query);
+        break;
+      case TYPE_NUMERIC_RANGE:
+        query = readNumericRangeQuery();
+        readRewriteMethod((MultiTermQuery) query);
+        break;
+      case TYPE_FILTERED:
+        query = new FilteredQuery(readQuery(), (Filter) readSerialized());
+        break;
+      case TYPE_CONSTANT_SCORE_QUERY:
+        query = new ConstantScoreQuery(readQuery());
+        break;
+      case TYPE_CONSTANT_SCORE_FILTER:
+        query = new ConstantScoreQuery((Filter) readSerialized());
+        break;
+      default:
+        throw new IOException("unknown query type " + type);
+      }
+      query.setBoost(_in.readFloat());
+      return query;
+    }
+
+    private Query readBooleanQuery() throws IOException {
+      BooleanQuery query = new BooleanQuery(_in.readBoolean());
+      query.setMinimumNumberShouldMatch(WritableUtils.readVInt(_in));
+      int clauseCount = WritableUtils.readVInt(_in);
+      for (int i = 0; i < clauseCount; i++) {
+        BooleanClause.Occur occur = OCCURS[_in.readByte()];
+        query.add(readQuery(), occur);
+      }
+      return query;
+    }
+
+    private Query readPhraseQuery() throws IOException {
+      PhraseQuery query = new PhraseQuery();
+      query.setSlop(WritableUtils.readVInt(_in));
+      int termCount = WritableUtils.readVInt(_in);
+      for (int i = 0; i < termCount; i++) {
+        Term term = readTerm();
+        query.add(term, WritableUtils.readVInt(_in));
+      }
+      return query;
+    }
+
+    private Query readNumericRangeQuery() throws IOException {
+      String field = readField();
+      byte numberType = _in.readByte();
+      int precisionStep = WritableUtils.readVInt(_in);
+      switch (numberType) {
+      case NUMBER_INT:
+        return NumericRangeQuery.newIntRange(field, precisionStep, _in.readBoolean() ? WritableUtils.readVInt(_in)
+                : null, _in.readBoolean() ? WritableUtils.readVInt(_in) : null, _in.readBoolean(), _in.readBoolean());
+      case NUMBER_LONG:
+        return NumericRangeQuery.newLongRange(field, precisionStep, _in.readBoolean() ? WritableUtils.readVLong(_in)
+                : null, _in.readBoolean() ? WritableUtils.readVLong(_in) : null, _in.readBoolean(), _in.readBoolean());
+      case NUMBER_FLOAT:
+        return NumericRangeQuery.newFloatRange(field, precisionStep, _in.readBoolean() ? _in.readFloat() : null, _in
+                .readBoolean() ? _in.readFloat() : null, _in.readBoolean(), _in.readBoolean());
+      case NUMBER_DOUBLE:
+        return NumericRangeQuery.newDoubleRange(field, precisionStep, _in.readBoolean() ? _in.readDouble() : null,
+                _in.readBoolean() ? _in.readDouble() : null, _in.readBoolean(), _in.readBoolean());
+      default:
+        throw new IOException("unknown number type " + numberType);
+      }
+    }
+
+    private void readRewriteMethod(MultiTermQuery query) throws IOException {
+      query.setRewriteMethod(REWRITE_METHODS[_in.readByte()]);
+    }
+
+    private Term readTerm() throws IOException {
+      String field = readField();
+      return new Term(field, Text.readString(_in));
+    }
+
+    private String readField() throws IOException {
+      int index = WritableUtils.readVInt(_in);
+      if (index > 0) {
+        return _fields.get(index - 1);
+      }
+      String field = Text.readString(_in).intern();
+      _fields.add(field);
+      return field;
+    }
+
+    private String readNullableString() throws IOException {
+      return _in.readBoolean() ? Text.readString(_in) : null;
+    }
+
+    private Object readSerialized() throws IOException {
+      byte[] bytes = new byte[WritableUtils.readVInt(_in)];
+      _in.readFully(bytes);
+      ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+        return objectStream.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Unable to deserialize lucene query", e);
+      }
+    }
+  }
+
+  private static boolean isKnownRewriteMethod(MultiTermQuery query) {
+    return getRewriteMethodIndex(query) >= 0;
+  }
+
+  private static byte getRewriteMethodIndex(MultiTermQuery query) {
+    MultiTermQuery.RewriteMethod rewriteMethod = query.getRewriteMethod();
+    for (byte i = 0; i < REWRITE_METHODS.length; i++) {
+      if (REWRITE_METHODS[i] == rewriteMethod) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the type of the range bounds or -1 if no bound is set
+   */
+  private static byte getNumberType(NumericRangeQuery<?> query) {
+    Number number = query.getMin() != null ? query.getMin() : query.getMax();
+    if (number instanceof Integer) {
+      return NUMBER_INT;
+    } else if (number instanceof Long) {
+      return NUMBER_LONG;
+    } else if (number instanceof Float) {
+      return NUMBER_FLOAT;
+    } else if (number instanceof Double) {
+      return NUMBER_DOUBLE;
+    }
+    return -1;
+  }
+
+}
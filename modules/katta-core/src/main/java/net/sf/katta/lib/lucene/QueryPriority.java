@@ -0,0 +1,41 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.util.Arrays;
+
+/**
+ * The priority class of a request. Nodes execute the requests of every class
+ * with their own concurrency limits and searcher threads, so batch requests
+ * cannot delay interactive ones.
+ */
+public enum QueryPriority {
+
+  /** user facing requests, the default */
+  INTERACTIVE,
+
+  /** exports, analytics and other requests which tolerate a higher latency */
+  BATCH;
+
+  public static QueryPriority parse(String priority) {
+    try {
+      return valueOf(priority.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal query priority '" + priority + "', allowed are "
+              + Arrays.asList(values()), e);
+    }
+  }
+}
@@ -16,19 +16,35 @@
 package net.sf.katta.lib.lucene;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.lucene.search.Query;
 
+/**
+ * Writes queries with the compact {@link QueryCodec} encoding. Queries written
+ * with plain Java serialization (as done by older versions) are still read.
+ * The {@link QueryPriority} of the request travels with the query; the
+ * default priority is written in the old format.
+ */
 public class QueryWritable implements Writable {
 
+  /**
+   * Written instead of the length of the serialized query, which is never
+   * negative.
+   */
+  private static final int CODEC_MARKER = -1;
+
+  /**
+   * Like {@link #CODEC_MARKER}, followed by the priority.
+   */
+  private static final int PRIORITY_CODEC_MARKER = -2;
+
   private Query _query;
+  private QueryPriority _priority = QueryPriority.INTERACTIVE;
 
   public QueryWritable() {
     // for serialization
@@ -39,9 +55,27 @@ public class QueryWritable implements Writable {
 
   }
 
+  public QueryWritable(Query query, QueryPriority priority) {
+    _query = query;
+    _priority = priority;
+  }
+
   @Override
   public void readFields(DataInput input) throws IOException {
     int readInt = input.readInt();
+    _priority = QueryPriority.INTERACTIVE;
+    if (readInt == PRIORITY_CODEC_MARKER) {
+      int priority = input.readByte();
+      if (priority < 0 || priority >= QueryPriority.values().length) {
+        throw new IOException("Unknown query priority " + priority);
+      }
+      _priority = QueryPriority.values()[priority];
+      readInt = CODEC_MARKER;
+    }
+    if (readInt == CODEC_MARKER) {
+      _query = QueryCodec.read(input);
+      return;
+    }
     byte[] bs = new byte[readInt];
     input.readFully(bs);
     ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(bs));
@@ -55,19 +89,23 @@ public class QueryWritable implements Writable {
 
   @Override
   public void write(DataOutput output) throws IOException {
-    ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-    ObjectOutputStream objectStream = new ObjectOutputStream(byteArrayStream);
-    objectStream.writeObject(_query);
-    objectStream.close();
-    byte[] byteArray = byteArrayStream.toByteArray();
-    output.writeInt(byteArray.length);
-    output.write(byteArray);
+    if (_priority == QueryPriority.INTERACTIVE) {
+      output.writeInt(CODEC_MARKER);
+    } else {
+      output.writeInt(PRIORITY_CODEC_MARKER);
+      output.writeByte(_priority.ordinal());
+    }
+    QueryCodec.write(_query, output);
   }
 
   public Query getQuery() {
     return _query;
   }
 
+  public QueryPriority getPriority() {
+    return _priority;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (getClass() != obj.getClass()) {
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.katta.util.WritableType;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Merges the already sorted search results of the shards of one node into the
+ * top hits of the node. A heap holds the current head of every shard result,
+ * so each returned hit costs O(log shards) and {@link Hit} objects are only
+ * created for the returned hits.
+ * <p>
+ * The hits are returned best first. Ties are broken like in
+ * {@link Hit#compareTo(Hit)}: by document id and then by shard name.
+ */
+class ScoreDocMerger {
+
+  private ScoreDocMerger() {
+    // no instances
+  }
+
+  /**
+   * Merges results sorted by score.
+   */
+  public static List<Hit> mergeByScore(ScoreDoc[][] shardDocs, String[] shards, String nodeName, int count) {
+    return merge(new ScoreMergeQueue(shards), shardDocs, shards, nodeName, count, null);
+  }
+
+  /**
+   * Merges results sorted by fields. The score docs have to be
+   * {@link FieldDoc}s.
+   */
+  public static List<Hit> mergeByFields(FieldSortComparator comparator, ScoreDoc[][] shardDocs, String[] shards,
+          String nodeName, int count) {
+    return merge(new FieldMergeQueue(shards, comparator), shardDocs, shards, nodeName, count,
+            comparator.getFieldTypes());
+  }
+
+  private static List<Hit> merge(MergeQueue queue, ScoreDoc[][] shardDocs, String[] shards, String nodeName,
+          int count, WritableType[] fieldTypes) {
+    long docCount = 0;
+    for (int i = 0; i < shardDocs.length; i++) {
+      if (shardDocs[i].length > 0) {
+        queue.add(new ShardCursor(i, shardDocs[i]));
+        docCount += shardDocs[i].length;
+      }
+    }
+    final List<Hit> hits = new ArrayList<Hit>((int) Math.min(count, docCount));
+    while (hits.size() < count && queue.size() > 0) {
+      ShardCursor cursor = queue.top();
+      ScoreDoc scoreDoc = cursor.current();
+      Hit hit = new Hit(shards[cursor._shardIndex], nodeName, scoreDoc.score, scoreDoc.doc);
+      if (fieldTypes != null) {
+        hit.setSortFields(WritableType.convertComparable(fieldTypes, ((FieldDoc) scoreDoc).fields));
+      }
+      hits.add(hit);
+      if (cursor.next()) {
+        queue.updateTop();
+      } else {
+        queue.pop();
+      }
+    }
+    return hits;
+  }
+
+  private static class ShardCursor {
+
+    private final int _shardIndex;
+    private final ScoreDoc[] _docs;
+    private int _position;
+
+    public ShardCursor(int shardIndex, ScoreDoc[] docs) {
+      _shardIndex = shardIndex;
+      _docs = docs;
+    }
+
+    public ScoreDoc current() {
+      return _docs[_position];
+    }
+
+    public boolean next() {
+      return ++_position < _docs.length;
+    }
+  }
+
+  /**
+   * Heap with the best shard head on top.
+   */
+  private static abstract class MergeQueue extends PriorityQueue<ShardCursor> {
+
+    private final String[] _shards;
+
+    public MergeQueue(String[] shards) {
+      _shards = shards;
+      initialize(shards.length);
+    }
+
+    @Override
+    protected final boolean lessThan(ShardCursor cursorA, ShardCursor cursorB) {
+      ScoreDoc docA = cursorA.current();
+      ScoreDoc docB = cursorB.current();
+      int c = compare(docA, docB);
+      if (c != 0) {
+        return c < 0;
+      }
+      if (docA.doc != docB.doc) {
+        return docA.doc < docB.doc;
+      }
+      return _shards[cursorB._shardIndex].compareTo(_shards[cursorA._shardIndex]) < 0;
+    }
+
+    protected abstract int compare(ScoreDoc docA, ScoreDoc docB);
+  }
+
+  private static class ScoreMergeQueue extends MergeQueue {
+
+    public ScoreMergeQueue(String[] shards) {
+      super(shards);
+    }
+
+    @Override
+    protected int compare(ScoreDoc docA, ScoreDoc docB) {
+      return Float.compare(docB.score, docA.score);
+    }
+  }
+
+  private static class FieldMergeQueue extends MergeQueue {
+
+    private final FieldSortComparator _comparator;
+
+    public FieldMergeQueue(String[] shards, FieldSortComparator comparator) {
+      super(shards);
+      _comparator = comparator;
+    }
+
+    @Override
+    protected int compare(ScoreDoc docA, ScoreDoc docB) {
+      return _comparator.compare(((FieldDoc) docA).fields, ((FieldDoc) docB).fields);
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Marks the position of the last hit of a result page, so the next page can be
+ * searched with
+ * {@link ILuceneClient#searchAfter(SearchCursor, org.apache.lucene.search.Query, String[], int)}
+ * without collecting the hits of all previous pages again. The position is the
+ * score, document id and shard of the hit, which follows the order of
+ * {@link Hit#compareTo(Hit)}.
+ */
+public class SearchCursor implements Writable {
+
+  private float _score;
+  private int _docId;
+  private String _shard;
+
+  public SearchCursor() {
+    // needed for serialization
+  }
+
+  public SearchCursor(Hit lastHit) {
+    this(lastHit.getScore(), lastHit.getDocId(), lastHit.getShard());
+  }
+
+  public SearchCursor(float score, int docId, String shard) {
+    _score = score;
+    _docId = docId;
+    _shard = shard;
+  }
+
+  public float getScore() {
+    return _score;
+  }
+
+  public int getDocId() {
+    return _docId;
+  }
+
+  public String getShard() {
+    return _shard;
+  }
+
+  /**
+   * @return the position to pass to a lucene collector of the given shard, so
+   *         that only hits after this cursor are collected
+   */
+  public ScoreDoc getScoreDocAfter(String shard) {
+    // hits with equal score and document id are ordered by shard name
+    // descending, so on shards ordered before the cursor shard the cursor
+    // document id itself comes next
+    if (shard.compareTo(_shard) < 0) {
+      return new ScoreDoc(_docId - 1, _score);
+    }
+    return new ScoreDoc(_docId, _score);
+  }
+
+  public void readFields(final DataInput in) throws IOException {
+    _score = in.readFloat();
+    _docId = in.readInt();
+    _shard = in.readUTF();
+  }
+
+  public void write(final DataOutput out) throws IOException {
+    out.writeFloat(_score);
+    out.writeInt(_docId);
+    out.writeUTF(_shard);
+  }
+
+  @Override
+  public String toString() {
+    return "after " + _shard + "#" + _docId + " (" + _score + ")";
+  }
+
+}
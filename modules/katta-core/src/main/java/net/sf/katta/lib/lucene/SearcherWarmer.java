@@ -0,0 +1,275 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.util.Version;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Warms a freshly opened shard searcher before it serves queries. The warmer
+ * loads the field cache entries of the configured sort fields for every
+ * segment and replays the configured warm-up queries as well as the most
+ * recently searched queries of the node, so the first real queries do not pay
+ * for cold index files, field caches and filter sets.
+ */
+public class SearcherWarmer {
+
+  private final static Logger LOG = Logger.getLogger(SearcherWarmer.class);
+  private final static int HIT_COUNT = 10;
+
+  public enum SortFieldType {
+    STRING, INT, LONG, FLOAT, DOUBLE;
+  }
+
+  private final List<WarmupQuery> _queries;
+  private final List<String> _sortFields;
+  private final List<SortFieldType> _sortFieldTypes;
+  private final Cache<WarmupQuery, Boolean> _recentQueries;
+  private final long _timeout;
+
+  /**
+   * @param queries
+   *          the queries replayed on every new searcher
+   * @param sortFields
+   *          the fields to load into the field cache, a field name optionally
+   *          followed by ':' and the lower case name of a
+   *          {@link SortFieldType}, string if omitted
+   * @param maxRecentQueries
+   *          the number of recently searched queries replayed on every new
+   *          searcher, 0 to not record queries
+   * @param timeout
+   *          the time in milliseconds after which no further queries are
+   *          replayed on a searcher, 0 for no limit
+   */
+  public SearcherWarmer(List<Query> queries, List<String> sortFields, int maxRecentQueries, long timeout) {
+    _queries = new ArrayList<WarmupQuery>(queries.size());
+    for (Query query : queries) {
+      _queries.add(new WarmupQuery(query, null, null));
+    }
+    _sortFields = new ArrayList<String>(sortFields.size());
+    _sortFieldTypes = new ArrayList<SortFieldType>(sortFields.size());
+    for (String sortField : sortFields) {
+      int typeIndex = sortField.lastIndexOf(':');
+      if (typeIndex < 0) {
+        _sortFields.add(sortField);
+        _sortFieldTypes.add(SortFieldType.STRING);
+      } else {
+        _sortFields.add(sortField.substring(0, typeIndex));
+        _sortFieldTypes.add(SortFieldType.valueOf(sortField.substring(typeIndex + 1).toUpperCase()));
+      }
+    }
+    _recentQueries = maxRecentQueries > 0 ? CacheBuilder.newBuilder().maximumSize(maxRecentQueries)
+            .<WarmupQuery, Boolean> build() : null;
+    _timeout = timeout;
+  }
+
+  /**
+   * Parses the warm-up queries of the given file, one query per line. Empty
+   * lines and lines starting with '#' are skipped.
+   */
+  public static List<Query> readQueries(File file) throws IOException {
+    List<Query> queries = new ArrayList<Query>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      QueryParser parser = new QueryParser(Version.LUCENE_35, "", new KeywordAnalyzer());
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          queries.add(parser.parse(line));
+        } catch (ParseException e) {
+          throw new IllegalArgumentException("could not parse warm-up query '" + line + "' of " + file, e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return queries;
+  }
+
+  /**
+   * Remembers a searched query for the warm-up of later deployed shards.
+   *
+   * @param sort
+   *          may be null
+   * @param filter
+   *          may be null
+   */
+  public void recordQuery(Query query, Sort sort, Filter filter) {
+    if (_recentQueries != null) {
+      _recentQueries.put(new WarmupQuery(query, sort, filter), Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return the number of currently remembered queries
+   */
+  public int getRecentQueryCount() {
+    return _recentQueries != null ? (int) _recentQueries.size() : 0;
+  }
+
+  /**
+   * Warms the given searcher. Failing queries are logged and skipped, so a
+   * warm-up never prevents a shard from being deployed.
+   *
+   * @param shardName
+   * @param searcher
+   * @param filterCache
+   *          the cache which should hold the document sets of the replayed
+   *          filters, may be null
+   * @return the number of replayed queries
+   */
+  public int warm(String shardName, IndexSearcher searcher, ShardFilterCache filterCache) {
+    long start = System.currentTimeMillis();
+    loadFieldCache(shardName, searcher);
+
+    List<WarmupQuery> queries = new ArrayList<WarmupQuery>(_queries);
+    if (_recentQueries != null) {
+      queries.addAll(_recentQueries.asMap().keySet());
+    }
+    int replayedQueries = 0;
+    for (WarmupQuery query : queries) {
+      if (_timeout > 0 && System.currentTimeMillis() - start > _timeout) {
+        LOG.warn("warm-up of shard '" + shardName + "' stopped after " + replayedQueries + " of " + queries.size()
+                + " queries, timeout of " + _timeout + " ms exceeded");
+        break;
+      }
+      try {
+        query.search(shardName, searcher, filterCache, HIT_COUNT);
+        replayedQueries++;
+      } catch (Exception e) {
+        LOG.warn("warm-up query '" + query + "' failed on shard '" + shardName + "'", e);
+      }
+    }
+    LOG.info("warmed shard '" + shardName + "' with " + replayedQueries + " queries and " + _sortFields.size()
+            + " sort fields in " + (System.currentTimeMillis() - start) + " ms");
+    return replayedQueries;
+  }
+
+  /**
+   * Sorting loads the field cache per segment, so the entries are loaded for
+   * the segment readers the same way the sort comparators do.
+   */
+  private void loadFieldCache(String shardName, IndexSearcher searcher) {
+    List<IndexReader> segmentReaders = new ArrayList<IndexReader>();
+    Collections.addAll(segmentReaders, searcher.getSubReaders());
+    if (segmentReaders.isEmpty()) {
+      segmentReaders.add(searcher.getIndexReader());
+    }
+    for (int i = 0; i < _sortFields.size(); i++) {
+      String field = _sortFields.get(i);
+      try {
+        for (IndexReader reader : segmentReaders) {
+          switch (_sortFieldTypes.get(i)) {
+          case INT:
+            FieldCache.DEFAULT.getInts(reader, field);
+            break;
+          case LONG:
+            FieldCache.DEFAULT.getLongs(reader, field);
+            break;
+          case FLOAT:
+            FieldCache.DEFAULT.getFloats(reader, field);
+            break;
+          case DOUBLE:
+            FieldCache.DEFAULT.getDoubles(reader, field);
+            break;
+          default:
+            FieldCache.DEFAULT.getStringIndex(reader, field);
+          }
+        }
+      } catch (Exception e) {
+        LOG.warn("could not load field cache of field '" + field + "' for shard '" + shardName + "'", e);
+      }
+    }
+  }
+
+  private static class WarmupQuery {
+
+    private final Query _query;
+    private final Sort _sort;
+    private final Filter _filter;
+    private final int _hashCode;
+
+    public WarmupQuery(Query query, Sort sort, Filter filter) {
+      _query = query;
+      _sort = sort;
+      _filter = filter;
+      final int prime = 31;
+      int hashCode = _query.hashCode();
+      hashCode = prime * hashCode + (_sort == null ? 0 : _sort.hashCode());
+      hashCode = prime * hashCode + (_filter == null ? 0 : _filter.hashCode());
+      _hashCode = hashCode;
+    }
+
+    public void search(String shardName, IndexSearcher searcher, ShardFilterCache filterCache, int hitCount)
+            throws IOException {
+      Filter filter = _filter;
+      if (filter != null && filterCache != null) {
+        filter = filterCache.getFilter(shardName, filter);
+      }
+      if (_sort != null) {
+        searcher.search(_query, filter, hitCount, _sort);
+      } else {
+        searcher.search(_query, filter, hitCount);
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      WarmupQuery other = (WarmupQuery) obj;
+      return _hashCode == other._hashCode && _query.equals(other._query)
+              && (_sort == null ? other._sort == null : _sort.equals(other._sort))
+              && (_filter == null ? other._filter == null : _filter.equals(other._filter));
+    }
+
+    @Override
+    public String toString() {
+      return _query + (_sort != null ? " sort " + _sort : "") + (_filter != null ? " filter " + _filter : "");
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetDISI;
+import org.apache.lucene.util.SortedVIntList;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Node side LRU cache of the document sets of filters. The sets are cached per
+ * shard and index segment, the cache is limited by the memory the cached sets
+ * occupy. All sets of a shard are dropped when the shard is removed.
+ */
+public class ShardFilterCache {
+
+  private final Cache<FilterCacheKey, DocIdSet> _docIdSets;
+  private final AtomicLong _bytes = new AtomicLong();
+
+  public ShardFilterCache(long maxBytes) {
+    _docIdSets = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<FilterCacheKey, DocIdSet>() {
+      @Override
+      public int weigh(FilterCacheKey key, DocIdSet value) {
+        return sizeOf(value);
+      }
+    }).removalListener(new RemovalListener<FilterCacheKey, DocIdSet>() {
+      @Override
+      public void onRemoval(RemovalNotification<FilterCacheKey, DocIdSet> notification) {
+        _bytes.addAndGet(-sizeOf(notification.getValue()));
+      }
+    }).build();
+  }
+
+  /**
+   * @return a filter which takes the document sets of the given filter from
+   *         this cache when searching the given shard
+   */
+  public Filter getFilter(String shardName, Filter filter) {
+    return new CachedFilter(shardName, filter);
+  }
+
+  /**
+   * Removes the cached document sets of the given shard.
+   */
+  public void invalidate(String shardName) {
+    for (FilterCacheKey key : _docIdSets.asMap().keySet()) {
+      if (key._shardName.equals(shardName)) {
+        _docIdSets.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Removes the cached document sets of the given shard which do not belong to
+   * the segments of the given searcher. Keeps the sets a warm-up of a
+   * redeployed shard put into the cache.
+   */
+  public void invalidate(String shardName, IndexSearcher retainedSearcher) {
+    Set<Object> retainedReaderKeys = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    retainedReaderKeys.add(retainedSearcher.getIndexReader().getCoreCacheKey());
+    for (IndexReader reader : retainedSearcher.getSubReaders()) {
+      retainedReaderKeys.add(reader.getCoreCacheKey());
+    }
+    for (FilterCacheKey key : _docIdSets.asMap().keySet()) {
+      if (key._shardName.equals(shardName) && !retainedReaderKeys.contains(key._readerKey)) {
+        _docIdSets.invalidate(key);
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    _docIdSets.invalidateAll();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the cache
+   */
+  public CacheStats getStats() {
+    return _docIdSets.stats();
+  }
+
+  /**
+   * @return the approximate number of bytes the cached document sets occupy
+   */
+  public long getBytes() {
+    return _bytes.get();
+  }
+
+  public long size() {
+    return _docIdSets.size();
+  }
+
+  private DocIdSet getDocIdSet(String shardName, Filter filter, IndexReader reader) throws IOException {
+    FilterCacheKey key = new FilterCacheKey(shardName, reader.getCoreCacheKey(), filter);
+    DocIdSet docIdSet = _docIdSets.getIfPresent(key);
+    if (docIdSet == null) {
+      docIdSet = toCacheableDocIdSet(filter.getDocIdSet(reader), reader);
+      _bytes.addAndGet(sizeOf(docIdSet));
+      _docIdSets.put(key, docIdSet);
+    }
+    return docIdSet;
+  }
+
+  /**
+   * Same as CachingWrapperFilter: document sets which are not cacheable are
+   * copied into a bit set.
+   */
+  private static DocIdSet toCacheableDocIdSet(DocIdSet docIdSet, IndexReader reader) throws IOException {
+    if (docIdSet == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    } else if (docIdSet.isCacheable()) {
+      return docIdSet;
+    }
+    final DocIdSetIterator iterator = docIdSet.iterator();
+    if (iterator == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    return new OpenBitSetDISI(iterator, reader.maxDoc());
+  }
+
+  static int sizeOf(DocIdSet docIdSet) {
+    if (docIdSet instanceof OpenBitSet) {
+      return 32 + ((OpenBitSet) docIdSet).getBits().length * 8;
+    } else if (docIdSet instanceof SortedVIntList) {
+      return 32 + ((SortedVIntList) docIdSet).getByteSize();
+    }
+    return 32;
+  }
+
+  private class CachedFilter extends Filter {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String _shardName;
+    private final Filter _filter;
+
+    public CachedFilter(String shardName, Filter filter) {
+      _shardName = shardName;
+      _filter = filter;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      return ShardFilterCache.this.getDocIdSet(_shardName, _filter, reader);
+    }
+
+    @Override
+    public String toString() {
+      return "ShardFilterCache(" + _shardName + ", " + _filter + ")";
+    }
+  }
+
+  private static class FilterCacheKey {
+
+    private final String _shardName;
+    private final Object _readerKey;
+    private final Filter _filter;
+    private final int _hashCode;
+
+    public FilterCacheKey(String shardName, Object readerKey, Filter filter) {
+      _shardName = shardName;
+      _readerKey = readerKey;
+      _filter = filter;
+      _hashCode = 31 * (31 * _shardName.hashCode() + System.identityHashCode(_readerKey)) + _filter.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      FilterCacheKey other = (FilterCacheKey) obj;
+      return _hashCode == other._hashCode && _readerKey == other._readerKey && _shardName.equals(other._shardName)
+              && _filter.equals(other._filter);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.node;
+
+import java.io.IOException;
+
+import org.apache.hadoop.ipc.RemoteException;
+
+/**
+ * Thrown by a content server which rejects a request because it is already
+ * working at its limit. The node itself is healthy, so clients should retry
+ * the request on another replica instead of treating the node as failed.
+ */
+public class NodeOverloadedException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public NodeOverloadedException(String message) {
+    super(message);
+  }
+
+  /**
+   * @return true if the given exception or one of its causes is a rejection
+   *         of an overloaded node, also if it was transported by RPC
+   */
+  public static boolean isCausedBy(Throwable t) {
+    while (t != null) {
+      if (t instanceof NodeOverloadedException) {
+        return true;
+      }
+      if (t instanceof RemoteException
+              && NodeOverloadedException.class.getName().equals(((RemoteException) t).getClassName())) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+}
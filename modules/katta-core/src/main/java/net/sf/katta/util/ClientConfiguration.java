@@ -32,11 +32,32 @@ package net.sf.katta.util;
 public class ClientConfiguration extends KattaConfiguration {
 
   public final static String CLIENT_NODE_INTERACTION_MAXTRYCOUNT = "client.node.interaction.maxTryCount";
+  /** the maximum number of node calls executed at the same time by a client */
+  public final static String CLIENT_NODE_INTERACTION_MAXTHREADS = "client.node.interaction.maxThreads";
+  /**
+   * the number of node calls waiting for a thread, further calls are rejected
+   * and fail
+   */
+  public final static String CLIENT_NODE_INTERACTION_QUEUESIZE = "client.node.interaction.queueSize";
+  /**
+   * if true, the shards a node did not answer within the hedge percentile of
+   * the latencies of the method are sent to another replica as well
+   */
+  public final static String CLIENT_NODE_INTERACTION_HEDGING = "client.node.interaction.hedging";
+  /** the percentile (0.0 .. 1.0) of the latencies after which a call is hedged */
+  public final static String CLIENT_NODE_INTERACTION_HEDGE_PERCENTILE = "client.node.interaction.hedgePercentile";
+  /** the minimum time in milliseconds before a call is hedged */
+  public final static String CLIENT_NODE_INTERACTION_HEDGE_MINDELAY = "client.node.interaction.hedgeMinDelay";
 
   public ClientConfiguration() {
     super();
     // set default values
     setProperty(CLIENT_NODE_INTERACTION_MAXTRYCOUNT, 3);
+    setProperty(CLIENT_NODE_INTERACTION_MAXTHREADS, 100);
+    setProperty(CLIENT_NODE_INTERACTION_QUEUESIZE, 1000);
+    setProperty(CLIENT_NODE_INTERACTION_HEDGING, "false");
+    setProperty(CLIENT_NODE_INTERACTION_HEDGE_PERCENTILE, "0.95");
+    setProperty(CLIENT_NODE_INTERACTION_HEDGE_MINDELAY, 10);
 
     // default values for underlying hadoop rpc (used for searching on nodes)
     setProperty("ipc.client.connect.max.retries", 2);
@@ -36,6 +36,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.katta.AbstractTest;
+import net.sf.katta.client.ClientResult.IChangedListener;
 import net.sf.katta.client.ClientResult.IClosedListener;
 
 import org.junit.Test;
@@ -362,6 +363,28 @@ public class ClientResultTest extends AbstractTest {
     assertTrue(r.isClosed());
   }
 
+  @Test
+  public void testChangedCallback() {
+    final AtomicInteger count = new AtomicInteger(0);
+    ClientResult<String> r = new ClientResult<String>(null, "a", "b", "c");
+    r.addResult("r1", "a");
+    r.addChangedListener(new IChangedListener<String>() {
+      public void clientResultChanged(ClientResult<String> result) {
+        count.incrementAndGet();
+      }
+    });
+    assertEquals(0, count.get());
+    r.addResult("r2", "b");
+    assertEquals(1, count.get());
+    r.addError(new Exception(), "c");
+    assertEquals(2, count.get());
+    r.close();
+    assertEquals(3, count.get());
+    r.close();
+    r.addResult("r3", "a");
+    assertEquals(3, count.get());
+  }
+
   @Test
   public void testClosed() {
     ClientResult<String> r = new ClientResult<String>(null, "a", "b", "c");
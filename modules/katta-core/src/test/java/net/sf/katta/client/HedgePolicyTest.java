@@ -0,0 +1,58 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+
+import net.sf.katta.AbstractTest;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link HedgePolicy}.
+ */
+public class HedgePolicyTest extends AbstractTest {
+
+  @Test
+  public void testHedgeDelay() throws Exception {
+    Method method = Object.class.getMethod("toString");
+    HedgePolicy policy = new HedgePolicy(0.95, 5, 100);
+    assertEquals(-1, policy.getHedgeDelay(method));
+    for (int i = 1; i <= 9; i++) {
+      policy.recordLatency(method, i);
+    }
+    // not enough latencies known yet
+    assertEquals(-1, policy.getHedgeDelay(method));
+    for (int i = 10; i <= 100; i++) {
+      policy.recordLatency(method, i);
+    }
+    assertEquals(95, policy.getHedgeDelay(method));
+    assertEquals(-1, policy.getHedgeDelay(Object.class.getMethod("hashCode")));
+
+    // only the last latencies are used
+    for (int i = 0; i < 100; i++) {
+      policy.recordLatency(method, 2);
+    }
+    assertEquals(5, policy.getHedgeDelay(method));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIllegalPercentile() {
+    new HedgePolicy(1.5, 0, 100);
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.katta.AbstractTest;
+
+import org.junit.Test;
+
+public class LatencyAwareNodeSelectionPolicyTest extends AbstractTest {
+
+  private static final List<String> SHARDS = Arrays.asList("shardA", "shardB");
+
+  @Test
+  public void testPrefersFastNode() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    call(policy, "node1", 10);
+    call(policy, "node2", 500);
+
+    for (int i = 0; i < 10; i++) {
+      Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(SHARDS);
+      assertEquals(1, nodeShardsMap.size());
+      assertEquals(SHARDS, nodeShardsMap.get("node1"));
+    }
+  }
+
+  @Test
+  public void testPrefersNodeWithLessCallsInFlight() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    call(policy, "node1", 100);
+    call(policy, "node2", 150);
+    policy.nodeCallStarted("node1");
+    policy.nodeCallStarted("node1");
+    assertEquals(2, policy.getCallsInFlight("node1"));
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(SHARDS);
+    assertEquals(SHARDS, nodeShardsMap.get("node2"));
+
+    policy.nodeCallSucceeded("node1", 100);
+    policy.nodeCallSucceeded("node1", 100);
+    assertEquals(0, policy.getCallsInFlight("node1"));
+    nodeShardsMap = policy.createNode2ShardsMap(SHARDS);
+    assertEquals(SHARDS, nodeShardsMap.get("node1"));
+  }
+
+  @Test
+  public void testPrefersUnknownNode() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    call(policy, "node1", 10);
+    assertEquals(-1, policy.getLatency("node2"), 0);
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(SHARDS);
+    assertEquals(SHARDS, nodeShardsMap.get("node2"));
+  }
+
+  @Test
+  public void testFailurePenalty() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    call(policy, "node1", 10);
+    call(policy, "node2", 50);
+    policy.nodeCallStarted("node1");
+    policy.nodeCallFailed("node1");
+    assertTrue(policy.getLatency("node1") > LatencyAwareNodeSelectionPolicy.FAILURE_PENALTY - 10);
+    assertEquals(0, policy.getCallsInFlight("node1"));
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(SHARDS);
+    assertEquals(SHARDS, nodeShardsMap.get("node2"));
+  }
+
+  @Test
+  public void testCancelledCallIsNoFailure() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    call(policy, "node1", 10);
+    call(policy, "node2", 50);
+    policy.nodeCallStarted("node1");
+    policy.nodeCallCancelled("node1");
+    assertEquals(10, policy.getLatency("node1"), 0.1);
+    assertEquals(0, policy.getCallsInFlight("node1"));
+  }
+
+  @Test
+  public void testMovingAverage() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = new LatencyAwareNodeSelectionPolicy(0.5, Long.MAX_VALUE);
+    call(policy, "node1", 100);
+    assertEquals(100, policy.getLatency("node1"), 0.1);
+    call(policy, "node1", 200);
+    assertEquals(150, policy.getLatency("node1"), 0.1);
+  }
+
+  @Test
+  public void testLatencyDecays() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = new LatencyAwareNodeSelectionPolicy(0.5, 100);
+    call(policy, "node1", 1000);
+    Thread.sleep(300);
+    assertTrue(policy.getLatency("node1") < 100);
+  }
+
+  @Test
+  public void testSpreadsOverEqualNodes() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2", "node3");
+    for (int i = 0; i < 100; i++) {
+      for (String node : policy.createNode2ShardsMap(SHARDS).keySet()) {
+        policy.nodeCallStarted(node);
+      }
+    }
+    for (String node : Arrays.asList("node1", "node2", "node3")) {
+      assertTrue(node + " not used", policy.getCallsInFlight(node) > 0);
+    }
+  }
+
+  @Test
+  public void testRemoveNode() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1", "node2");
+    policy.removeNode("node1");
+    assertEquals(Arrays.asList("node2"), policy.getShardNodes("shardA"));
+    assertEquals(SHARDS, policy.createNode2ShardsMap(SHARDS).get("node2"));
+  }
+
+  @Test(expected = ShardAccessException.class)
+  public void testShardWithoutNodes() throws Exception {
+    LatencyAwareNodeSelectionPolicy policy = createPolicy("node1");
+    policy.removeNode("node1");
+    policy.createNode2ShardsMap(SHARDS);
+  }
+
+  @Test(expected = ShardAccessException.class)
+  public void testRemoveNotExistingShard() throws ShardAccessException {
+    new LatencyAwareNodeSelectionPolicy().remove("shardDoesNotExist");
+  }
+
+  private LatencyAwareNodeSelectionPolicy createPolicy(String... nodes) {
+    LatencyAwareNodeSelectionPolicy policy = new LatencyAwareNodeSelectionPolicy(0.5, Long.MAX_VALUE);
+    for (String shard : SHARDS) {
+      policy.update(shard, Arrays.asList(nodes));
+    }
+    return policy;
+  }
+
+  private void call(LatencyAwareNodeSelectionPolicy policy, String node, long time) {
+    policy.nodeCallStarted(node);
+    policy.nodeCallSucceeded(node, time);
+  }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.katta.AbstractTest;
+
+import org.junit.Test;
+
+public class MinimalFanOutNodeSelectionPolicyTest extends AbstractTest {
+
+  @Test
+  public void testCoversShardsWithFewestNodes() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    policy.update("shard1", Arrays.asList("node1", "node2"));
+    policy.update("shard2", Arrays.asList("node2", "node3"));
+    policy.update("shard3", Arrays.asList("node3", "node1"));
+    policy.update("shard4", Arrays.asList("node2", "node4"));
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(Arrays.asList("shard1", "shard2",
+            "shard3", "shard4"));
+    assertEquals(2, nodeShardsMap.size());
+    assertEquals(Arrays.asList("shard1", "shard2", "shard4"), nodeShardsMap.get("node2"));
+    assertEquals(4, extractFoundShards(nodeShardsMap).size());
+  }
+
+  @Test
+  public void testManyShards() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    List<String> nodes = Arrays.asList("node1", "node2", "node3", "node4", "node5", "node6");
+    List<String> shards = new ArrayList<String>();
+    // every shard is replicated on 3 consecutive nodes
+    for (int i = 0; i < 100; i++) {
+      String shard = "shard" + i;
+      shards.add(shard);
+      List<String> shardNodes = new ArrayList<String>();
+      for (int j = 0; j < 3; j++) {
+        shardNodes.add(nodes.get((i + j) % nodes.size()));
+      }
+      policy.update(shard, shardNodes);
+    }
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(shards);
+    assertEquals(2, nodeShardsMap.size());
+    assertEquals(100, extractFoundShards(nodeShardsMap).size());
+  }
+
+  @Test
+  public void testBalancesLoadOverRequests() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    List<String> shards = Arrays.asList("shardA", "shardB");
+    for (String shard : shards) {
+      policy.update(shard, Arrays.asList("node1", "node2", "node3"));
+    }
+
+    Set<String> usedNodes = new HashSet<String>();
+    for (int i = 0; i < 3; i++) {
+      Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(shards);
+      assertEquals(1, nodeShardsMap.size());
+      assertEquals(shards, nodeShardsMap.values().iterator().next());
+      usedNodes.addAll(nodeShardsMap.keySet());
+    }
+    assertEquals(3, usedNodes.size());
+  }
+
+  @Test
+  public void testNewNodeDoesNotTakeAllRequests() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    List<String> shards = Arrays.asList("shardA", "shardB");
+    for (String shard : shards) {
+      policy.update(shard, Arrays.asList("node1", "node2"));
+    }
+    for (int i = 0; i < 1000; i++) {
+      policy.createNode2ShardsMap(shards);
+    }
+
+    // node3 joins, node2 leaves and rejoins
+    for (String shard : shards) {
+      policy.update(shard, Arrays.asList("node1", "node2", "node3"));
+    }
+    policy.removeNode("node2");
+    for (String shard : shards) {
+      policy.update(shard, Arrays.asList("node1", "node2", "node3"));
+    }
+    Map<String, Integer> requestCounts = new HashMap<String, Integer>();
+    for (int i = 0; i < 300; i++) {
+      String node = policy.createNode2ShardsMap(shards).keySet().iterator().next();
+      Integer count = requestCounts.get(node);
+      requestCounts.put(node, count == null ? 1 : count + 1);
+    }
+    for (String node : Arrays.asList("node1", "node2", "node3")) {
+      assertEquals(node, 100, requestCounts.get(node), 1);
+    }
+  }
+
+  @Test
+  public void testDuplicateAndUndeployedShards() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    policy.update("shardA", Arrays.asList("node1"));
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(Arrays.asList("shardA", "shardA",
+            "undeployedShard"));
+    assertEquals(1, nodeShardsMap.size());
+    assertEquals(Arrays.asList("shardA"), nodeShardsMap.get("node1"));
+  }
+
+  @Test
+  public void testRemoveNode() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    policy.update("shardA", Arrays.asList("node1", "node2"));
+    policy.update("shardB", Arrays.asList("node1", "node3"));
+    policy.removeNode("node1");
+
+    Map<String, List<String>> nodeShardsMap = policy.createNode2ShardsMap(Arrays.asList("shardA", "shardB"));
+    assertEquals(2, nodeShardsMap.size());
+    assertFalse(nodeShardsMap.containsKey("node1"));
+    assertTrue(nodeShardsMap.get("node2").contains("shardA"));
+  }
+
+  @Test(expected = ShardAccessException.class)
+  public void testShardWithoutNodes() throws Exception {
+    MinimalFanOutNodeSelectionPolicy policy = new MinimalFanOutNodeSelectionPolicy();
+    policy.update("shardA", Arrays.asList("node1"));
+    policy.removeNode("node1");
+    policy.createNode2ShardsMap(Arrays.asList("shardA"));
+  }
+
+  @Test(expected = ShardAccessException.class)
+  public void testGetNotExistingShardNodes() throws ShardAccessException {
+    new MinimalFanOutNodeSelectionPolicy().getShardNodes("shardDoesNotExist");
+  }
+
+  private Set<String> extractFoundShards(Map<String, List<String>> nodeShardsMap) {
+    Set<String> foundShards = new HashSet<String>();
+    for (List<String> shards : nodeShardsMap.values()) {
+      foundShards.addAll(shards);
+    }
+    return foundShards;
+  }
+
+}
@@ -17,12 +17,14 @@ package net.sf.katta.client;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -279,6 +281,45 @@ public class NodeInteractionTest extends AbstractTest {
     // r.getErrors().toString());
   }
 
+  @Test
+  public void testReceiverErrorIsNoNodeFailure() throws Exception {
+    Method method = ITestServer.class.getMethod("testMethod", String.class, String[].class);
+    Object[] args = new Object[] { "foo", null };
+    ClientResult<String> r = new ClientResult<String>(null, _sm.allShards()) {
+      @Override
+      public void addResult(String result, Collection<String> shards) {
+        throw new IllegalStateException("test exception");
+      }
+    };
+    Runnable ni = new NodeInteraction<String>(method, args, 1, "n1", _map, 1, 3, _sm, _ne, r);
+    try {
+      ni.run();
+      fail("should throw exception");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(Arrays.asList("start:n1", "success:n1"), _sm.getReports());
+    assertEquals("", _ne.toString());
+  }
+
+  @Test
+  public void testInterruptedCall() throws Exception {
+    Method method = ITestServer.class.getMethod("failingMethod", String.class, String[].class);
+    Object[] args = new Object[] { "foo", null };
+    ClientResult<String> r = new ClientResult<String>(null, _sm.allShards());
+    Runnable ni = new NodeInteraction<String>(method, args, 1, "n1", _map, 1, 3, _sm, _ne, r);
+    // the work queue cancelled the call while it was running
+    Thread.currentThread().interrupt();
+    try {
+      ni.run();
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(Arrays.asList("start:n1", "cancelled:n1"), _sm.getReports());
+    assertEquals("ClientResult: 0 results, 0 errors, 0/8 shards", r.toString());
+    assertEquals("", _ne.toString());
+  }
+
   @Test
   public void testDefensiveArgCopy() throws Exception {
     Method method = ITestServer.class.getMethod("testMethod", String.class, String[].class);
@@ -21,8 +21,10 @@ import java.net.ConnectException;
 import net.sf.katta.AbstractTest;
 import net.sf.katta.lib.lucene.ILuceneServer;
 import net.sf.katta.node.IContentServer;
+import net.sf.katta.node.NodeOverloadedException;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.RemoteException;
 import org.junit.Test;
 
 import static org.mockito.Mockito.doReturn;
@@ -64,7 +66,7 @@ public class NodeProxyManagerTest extends AbstractTest {
     assertThat(proxyManagerSpy.getProxy("node2", false)).isNotNull();
 
     // node1 success
-    proxyManagerSpy.reportNodeCommunicationSuccess("node1");
+    proxyManagerSpy.reportNodeCommunicationSuccess("node1", 10);
 
     // node1 failure
     reportNodeFailure(proxyManagerSpy, "node1");
@@ -98,6 +100,25 @@ public class NodeProxyManagerTest extends AbstractTest {
     assertThat(proxyManagerSpy.getProxy("node2", false)).isNotNull();
   }
 
+  @Test
+  public void testProxyFailure_NodeOverloaded() throws Exception {
+    NodeProxyManager proxyManagerSpy = spy(_proxyManager);
+    IContentServer contentServer = mock(IContentServer.class);
+    doReturn(contentServer).when(proxyManagerSpy).createNodeProxy(anyString());
+
+    assertThat(proxyManagerSpy.getProxy("node1", true)).isNotNull();
+    proxyManagerSpy.setSuccessiveProxyFailuresBeforeReestablishing(2);
+
+    // rejections of an overloaded node do not count as failures
+    for (int i = 0; i < 3; i++) {
+      reportNodeFailure(proxyManagerSpy, "node1", new InvocationTargetException(new RemoteException(
+              NodeOverloadedException.class.getName(), "node overloaded")));
+    }
+    reportNodeFailure(proxyManagerSpy, "node1");
+    verifyNoMoreInteractions(_nodeSelectionPolicy);
+    assertThat(proxyManagerSpy.getProxy("node1", false)).isNotNull();
+  }
+
   private void reportNodeFailure(NodeProxyManager proxyManagerSpy, String nodeName) {
     reportNodeFailure(proxyManagerSpy, nodeName, new RuntimeException());
   }
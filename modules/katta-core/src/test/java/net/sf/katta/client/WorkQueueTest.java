@@ -26,14 +26,23 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.katta.AbstractTest;
 import net.sf.katta.client.WorkQueue.INodeInteractionFactory;
+import net.sf.katta.util.KattaException;
 
 import org.apache.hadoop.ipc.VersionedProtocol;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -241,6 +250,206 @@ public class WorkQueueTest extends AbstractTest {
     wq.shutdown();
   }
 
+  @Test
+  public void testSharedExecutor() throws Exception {
+    TestShardManager sm = new TestShardManager();
+    Method method = TestServer.class.getMethod("doSomething", Integer.TYPE);
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      TestNodeInteractionFactory slowFactory = new TestNodeInteractionFactory(10);
+      slowFactory.additionalSleepTime = 500;
+      WorkQueue<Integer> wq = new WorkQueue<Integer>(slowFactory, executor, sm, sm.allShards(), method, -1, 16);
+      Map<String, List<String>> plan = sm.createNode2ShardsMap(sm.allShards());
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      assertFalse(wq.getResults(100).isComplete());
+
+      // the waiting interactions of the first call are cancelled, the executor
+      // is free for the next call after the running one
+      TestNodeInteractionFactory factory = new TestNodeInteractionFactory(10);
+      wq = new WorkQueue<Integer>(factory, executor, sm, sm.allShards(), method, -1, 16);
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      assertTrue(wq.getResults(plan.size() * 250).isComplete());
+      assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRejectedInteractionsFail() throws Exception {
+    TestShardManager sm = new TestShardManager();
+    Method method = TestServer.class.getMethod("doSomething", Integer.TYPE);
+    // one running and one waiting interaction
+    ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1));
+    try {
+      TestNodeInteractionFactory slowFactory = new TestNodeInteractionFactory(10);
+      slowFactory.additionalSleepTime = 500;
+      WorkQueue<Integer> wq = new WorkQueue<Integer>(slowFactory, executor, sm, sm.allShards(), method, -1, 16);
+      Map<String, List<String>> plan = sm.createNode2ShardsMap(sm.allShards());
+      assertTrue(plan.size() > 2);
+      long start = System.currentTimeMillis();
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      // the submitting thread did not call a node itself
+      assertTrue(System.currentTimeMillis() - start < 500);
+
+      ClientResult<Integer> r = wq.getResults(plan.size() * 1000);
+      assertTrue(r.isComplete());
+      assertTrue(r.isError());
+      assertEquals(2, r.getResults().size());
+      assertEquals(plan.size() - 2, r.getErrors().size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testGetResultsAsync() throws Exception {
+    TestShardManager sm = new TestShardManager();
+    Method method = TestServer.class.getMethod("doSomething", Integer.TYPE);
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      TestNodeInteractionFactory factory = new TestNodeInteractionFactory(10);
+      WorkQueue<Integer> wq = new WorkQueue<Integer>(factory, sm, sm.allShards(), method, -1, 16);
+      Map<String, List<String>> plan = sm.createNode2ShardsMap(sm.allShards());
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      ListenableFuture<ClientResult<Integer>> future = wq.getResultsAsync(new ResultCompletePolicy<Integer>(5000),
+              timer);
+      ClientResult<Integer> r = future.get(5000, TimeUnit.MILLISECONDS);
+      assertTrue(r.isComplete());
+      assertTrue(r.isClosed());
+
+      // completed by the timer if the nodes do not answer in time
+      factory = new TestNodeInteractionFactory(10);
+      factory.additionalSleepTime = 60000;
+      wq = new WorkQueue<Integer>(factory, sm, sm.allShards(), method, -1, 16);
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      long start = System.currentTimeMillis();
+      future = wq.getResultsAsync(new ResultCompletePolicy<Integer>(100), timer);
+      assertFalse(future.isDone());
+      r = future.get(5000, TimeUnit.MILLISECONDS);
+      assertTrue(System.currentTimeMillis() - start >= 100);
+      assertFalse(r.isComplete());
+      assertTrue(r.isClosed());
+
+      // cancelling shuts the call down
+      wq = new WorkQueue<Integer>(factory, sm, sm.allShards(), method, -1, 16);
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      future = wq.getResultsAsync(new ResultCompletePolicy<Integer>(60000), timer);
+      r = wq.getResults(0, false);
+      assertTrue(future.cancel(false));
+      assertTrue(r.isClosed());
+    } finally {
+      timer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testHedging() throws Exception {
+    // every node serves all shards, so the slow node can be hedged on one node
+    TestShardManager sm = new TestShardManager(null, 4, 4);
+    Method method = TestServer.class.getMethod("doSomething", Integer.TYPE);
+    HedgePolicy hedgePolicy = new HedgePolicy(0.95, 1, 100);
+    for (int i = 0; i < 100; i++) {
+      hedgePolicy.recordLatency(method, 20);
+    }
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Map<String, List<String>> plan = sm.createNode2ShardsMap(sm.allShards());
+      final String slowNode = plan.keySet().iterator().next();
+      TestNodeInteractionFactory factory = new TestNodeInteractionFactory(10) {
+        @Override
+        public Runnable createInteraction(Method method, Object[] args, int shardArrayParamIndex, String node,
+                Map<String, List<String>> nodeShardMap, int tryCount, int maxTryCount,
+                INodeProxyManager shardManager, INodeExecutor nodeExecutor, IResultReceiver<Integer> results) {
+          additionalSleepTime = node.equals(slowNode) ? 2000 : 0;
+          return super.createInteraction(method, args, shardArrayParamIndex, node, nodeShardMap, tryCount,
+                  maxTryCount, shardManager, nodeExecutor, results);
+        }
+      };
+      WorkQueue<Integer> wq = new WorkQueue<Integer>(factory, sm, sm.allShards(), method, -1, 16);
+      wq.setHedging(hedgePolicy, timer);
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      long start = System.currentTimeMillis();
+      ClientResult<Integer> r = wq.getResults(new ResultCompletePolicy<Integer>(1000, false));
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertTrue(r.isComplete());
+      assertTrue(hedgePolicy.getHedgedCalls() > 0);
+      int answeredShards = 0;
+      for (ClientResult<Integer>.Entry entry : r) {
+        answeredShards += entry.shards.size();
+      }
+      assertEquals(sm.allShards().size(), answeredShards);
+      wq.shutdown();
+    } finally {
+      timer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testNoHedgingWithoutSingleReplica() throws Exception {
+    // n1: s1, s2; n2: s2, s3; n3: s3, s1
+    TestShardManager sm = new TestShardManager(null, 3, 2);
+    Method method = TestServer.class.getMethod("doSomething", Integer.TYPE);
+    HedgePolicy hedgePolicy = new HedgePolicy(0.95, 1, 100);
+    for (int i = 0; i < 100; i++) {
+      hedgePolicy.recordLatency(method, 20);
+    }
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Map<String, List<String>> plan = new HashMap<String, List<String>>();
+      plan.put("n1", Arrays.asList("s1", "s2"));
+      plan.put("n2", Arrays.asList("s3"));
+      // split over two hedges, a hedge for s1 on n3 would answer and a hedge
+      // for s2 on n2 fail, the slow result of n1 then overlaps the answered s1
+      TestNodeInteractionFactory factory = new TestNodeInteractionFactory(10) {
+        @Override
+        public Runnable createInteraction(Method method, Object[] args, int shardArrayParamIndex, String node,
+                Map<String, List<String>> nodeShardMap, int tryCount, int maxTryCount,
+                INodeProxyManager shardManager, INodeExecutor nodeExecutor, final IResultReceiver<Integer> results) {
+          final List<String> shards = nodeShardMap.get(node);
+          if (node.equals("n2") && shards.equals(Arrays.asList("s2"))) {
+            return new Runnable() {
+              public void run() {
+                results.addError(new KattaException("hedge failed"), shards);
+              }
+            };
+          }
+          additionalSleepTime = node.equals("n1") ? 300 : 0;
+          return super.createInteraction(method, args, shardArrayParamIndex, node, nodeShardMap, tryCount,
+                  maxTryCount, shardManager, nodeExecutor, results);
+        }
+      };
+      WorkQueue<Integer> wq = new WorkQueue<Integer>(factory, sm, sm.allShards(), method, -1, 16);
+      wq.setHedging(hedgePolicy, timer);
+      for (String node : plan.keySet()) {
+        wq.execute(node, plan, 1, 3);
+      }
+      ClientResult<Integer> r = wq.getResults(new ResultCompletePolicy<Integer>(2000, false));
+      assertTrue(r.isComplete());
+      assertFalse(r.isError());
+      assertEquals(0, hedgePolicy.getHedgedCalls());
+      assertEquals(new HashSet<String>(Arrays.asList("s1", "s2", "s3")), r.getSeenShards());
+      wq.shutdown();
+    } finally {
+      timer.shutdownNow();
+    }
+  }
+
   @Test
   public void testPolling() throws Exception {
     TestShardManager sm = new TestShardManager(null, 80, 1);
@@ -295,6 +504,7 @@ public class WorkQueueTest extends AbstractTest {
     private INodeSelectionPolicy _selectionPolicy;
     private ProxyProvider proxyProvider;
     private boolean shardMapsFail = false;
+    private List<String> reports = Collections.synchronizedList(new ArrayList<String>());
 
     public TestShardManager() {
       this(null, 8, 3);
@@ -355,14 +565,31 @@ public class WorkQueueTest extends AbstractTest {
       return Collections.unmodifiableMap(_selectionPolicy.createNode2ShardsMap(shards));
     }
 
+    public String selectNodeServingAll(Collection<String> shards, String excludedNode) throws ShardAccessException {
+      for (String node : allNodes) {
+        if (!node.equals(excludedNode) && shardMap.get(node).containsAll(shards)) {
+          return node;
+        }
+      }
+      return null;
+    }
+
     public VersionedProtocol getProxy(String node, boolean establishIfNotExists) {
       return proxyProvider != null ? proxyProvider.getProxy(node) : null;
     }
 
     public void reportNodeCommunicationFailure(String node, Throwable t) {
+      reports.add("failure:" + node);
       _selectionPolicy.removeNode(node);
     }
 
+    /**
+     * @return the reported node calls, like "start:n1", "success:n1"
+     */
+    public List<String> getReports() {
+      return reports;
+    }
+
     public List<String> allNodes() {
       return Collections.unmodifiableList(allNodes);
     }
@@ -380,8 +607,18 @@ public class WorkQueueTest extends AbstractTest {
     }
 
     @Override
-    public void reportNodeCommunicationSuccess(String node) {
+    public void reportNodeCommunicationStart(String node) {
+      reports.add("start:" + node);
+    }
 
+    @Override
+    public void reportNodeCommunicationCancelled(String node) {
+      reports.add("cancelled:" + node);
+    }
+
+    @Override
+    public void reportNodeCommunicationSuccess(String node, long time) {
+      reports.add("success:" + node);
     }
 
   }
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import net.sf.katta.AbstractTest;
+import net.sf.katta.testutil.TestResources;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class DefaultSearcherFactoryTest extends AbstractTest {
+
+  private final File _shardDir = new File(TestResources.INDEX1, "aIndex");
+
+  @Test
+  public void testDefaultDirectory() throws Exception {
+    DefaultSearcherFactory factory = new DefaultSearcherFactory();
+    factory.init(newNodeConfiguration());
+    IndexSearcher searcher = factory.createSearcher("index#aIndex", _shardDir);
+    assertTrue(searcher.getIndexReader().directory() instanceof FSDirectory);
+    assertSearchable(searcher);
+  }
+
+  @Test
+  public void testDirectoryPerIndex() throws Exception {
+    DefaultSearcherFactory factory = new DefaultSearcherFactory();
+    factory.init(newNodeConfiguration(DefaultSearcherFactory.CONF_KEY_DIRECTORY, "nio",
+            DefaultSearcherFactory.CONF_KEY_DIRECTORY + ".hot", "ram", DefaultSearcherFactory.CONF_KEY_DIRECTORY
+                    + ".mapped", "mmap", DefaultSearcherFactory.CONF_KEY_PRELOAD_EXTENSIONS, "tis,tii,frq,prx"));
+
+    IndexSearcher searcher = factory.createSearcher("cold#aIndex", _shardDir);
+    assertTrue(searcher.getIndexReader().directory() instanceof NIOFSDirectory);
+    assertSearchable(searcher);
+
+    searcher = factory.createSearcher("hot#aIndex", _shardDir);
+    assertTrue(searcher.getIndexReader().directory() instanceof RAMDirectory);
+    assertSearchable(searcher);
+
+    searcher = factory.createSearcher("mapped#aIndex", _shardDir);
+    assertTrue(searcher.getIndexReader().directory() instanceof MMapDirectory);
+    assertSearchable(searcher);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIllegalDirectory() throws Exception {
+    DefaultSearcherFactory factory = new DefaultSearcherFactory();
+    factory.init(newNodeConfiguration(DefaultSearcherFactory.CONF_KEY_DIRECTORY, "tape"));
+    factory.createSearcher("index#aIndex", _shardDir);
+  }
+
+  private void assertSearchable(IndexSearcher searcher) throws Exception {
+    assertTrue(searcher.search(new TermQuery(new Term("foo", "bar")), 10).totalHits > 0);
+    searcher.close();
+  }
+}
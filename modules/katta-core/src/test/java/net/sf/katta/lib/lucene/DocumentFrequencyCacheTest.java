@@ -0,0 +1,126 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.katta.AbstractTest;
+
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+
+public class DocumentFrequencyCacheTest extends AbstractTest {
+
+  private final Term _term1 = new Term("field", "a");
+  private final Term _term2 = new Term("field", "b");
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    DocumentFrequencyCache cache = new DocumentFrequencyCache(100, 60);
+    List<String> indices = Arrays.asList("index1", "index2");
+    List<Term> terms = Arrays.asList(_term1, _term2);
+    assertFalse(cache.contains(indices, terms));
+
+    Map<String, List<String>> indexToShards = new HashMap<String, List<String>>();
+    indexToShards.put("index1", Arrays.asList("shard1", "shard2"));
+    indexToShards.put("index2", Arrays.asList("shard3"));
+    Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    shardDocFreqs.put("shard1", newDocFreqs(10, 1, 2));
+    shardDocFreqs.put("shard2", newDocFreqs(20, 3, 4));
+    shardDocFreqs.put("shard3", newDocFreqs(30, 5, 6));
+    cache.put(indexToShards, shardDocFreqs);
+
+    assertTrue(cache.contains(indices, terms));
+    DocumentFrequencyWritable docFreqs = cache.get(indices, terms);
+    assertEquals(60, docFreqs.getNumDocs());
+    assertEquals(9, docFreqs.get("field", "a").intValue());
+    assertEquals(12, docFreqs.get("field", "b").intValue());
+
+    docFreqs = cache.get(Arrays.asList("index1"), terms);
+    assertEquals(30, docFreqs.getNumDocs());
+    assertEquals(4, docFreqs.get("field", "a").intValue());
+  }
+
+  @Test
+  public void testIncompleteIndexIsNotCached() throws Exception {
+    DocumentFrequencyCache cache = new DocumentFrequencyCache(100, 60);
+    Map<String, List<String>> indexToShards = new HashMap<String, List<String>>();
+    indexToShards.put("index1", Arrays.asList("shard1", "shard2"));
+    Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    shardDocFreqs.put("shard1", newDocFreqs(10, 1, 2));
+    cache.put(indexToShards, shardDocFreqs);
+
+    assertFalse(cache.contains(Arrays.asList("index1"), Arrays.asList(_term1)));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testPartialGet() throws Exception {
+    DocumentFrequencyCache cache = new DocumentFrequencyCache(100, 60);
+    Map<String, List<String>> indexToShards = new HashMap<String, List<String>>();
+    indexToShards.put("index1", Arrays.asList("shard1"));
+    Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+    docFreqs.put(_term1.field(), _term1.text(), 3);
+    docFreqs.addNumDocs(10);
+    shardDocFreqs.put("shard1", docFreqs);
+    cache.put(indexToShards, shardDocFreqs);
+
+    List<Term> terms = Arrays.asList(_term1, _term2);
+    assertFalse(cache.contains(Arrays.asList("index1"), terms));
+    DocumentFrequencyWritable cached = cache.get(Arrays.asList("index1"), terms);
+    assertEquals(10, cached.getNumDocs());
+    assertEquals(3, cached.get("field", "a").intValue());
+    assertNull(cached.get("field", "b"));
+
+    // unknown index
+    cached = cache.get(Arrays.asList("index1", "index2"), terms);
+    assertEquals(0, cached.getNumDocs());
+    assertEquals(0, cached.getAll().size());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    DocumentFrequencyCache cache = new DocumentFrequencyCache(100, 60);
+    Map<String, List<String>> indexToShards = new HashMap<String, List<String>>();
+    indexToShards.put("index1", Arrays.asList("shard1"));
+    indexToShards.put("index2", Arrays.asList("shard2"));
+    Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    shardDocFreqs.put("shard1", newDocFreqs(10, 1, 2));
+    shardDocFreqs.put("shard2", newDocFreqs(10, 1, 2));
+    cache.put(indexToShards, shardDocFreqs);
+
+    cache.invalidate("index1");
+    assertFalse(cache.contains(Arrays.asList("index1"), Arrays.asList(_term1)));
+    assertTrue(cache.contains(Arrays.asList("index2"), Arrays.asList(_term1)));
+  }
+
+  private DocumentFrequencyWritable newDocFreqs(int numDocs, int docFreq1, int docFreq2) {
+    DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+    docFreqs.put(_term1.field(), _term1.text(), docFreq1);
+    docFreqs.put(_term2.field(), _term2.text(), docFreq2);
+    docFreqs.addNumDocs(numDocs);
+    return docFreqs;
+  }
+}
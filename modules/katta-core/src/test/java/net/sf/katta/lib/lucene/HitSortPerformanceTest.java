@@ -31,6 +31,7 @@ public class HitSortPerformanceTest {
 
   @Test
   public void testSortSpeed() {
+    sort(setupHits());
     sortCollection(setupHits());
     sortMerge(setupHits());
     // sortOther(setupHits());//start with more memory
@@ -39,12 +40,20 @@ public class HitSortPerformanceTest {
 
   @Test
   public void testSortSpeedWithSortedSublists() {
+    sort(setupHitsWithSortedSubLists());
     sortCollection(setupHitsWithSortedSubLists());
     sortMerge(setupHitsWithSortedSubLists());
     // sortOther(setupHitsWithSortedSubLists());//start with more memory
     sortOtherII(setupHitsWithSortedSubLists());
   }
 
+  public void sort(Hits hits) {
+    final long start = System.currentTimeMillis();
+    hits.sort(_hitCount);
+    final long end = System.currentTimeMillis();
+    System.out.println("sort: " + (end - start) + "ms. for " + _hitCount);
+  }
+
   public void sortCollection(Hits hits) {
     final long start = System.currentTimeMillis();
     hits.sortCollection(_hitCount);
@@ -16,12 +16,24 @@
 package net.sf.katta.lib.lucene;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.katta.AbstractWritableTest;
+import net.sf.katta.util.WritableType;
 
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
 import org.junit.Test;
 
 public class HitsMapWritableTest extends AbstractWritableTest {
@@ -51,5 +63,80 @@ public class HitsMapWritableTest extends AbstractWritableTest {
       assertEquals(hits.get(i), readHits.get(i));
     }
     assertEquals(hitsMapWritable.getNodeName(), readWritable.getNodeName());
+    assertNull(readWritable.getShardDocFreqs());
+  }
+
+  @Test
+  public void testSerializationWithShardDocFreqs() throws Exception {
+    HitsMapWritable hitsMapWritable = new HitsMapWritable("node1");
+    hitsMapWritable.addHit(new Hit("shard1", "node1", 1, 1));
+    Map<String, DocumentFrequencyWritable> shardDocFreqs = new HashMap<String, DocumentFrequencyWritable>();
+    DocumentFrequencyWritable docFreqs = new DocumentFrequencyWritable();
+    docFreqs.put("field", "term", 3);
+    docFreqs.addNumDocs(10);
+    shardDocFreqs.put("shard1", docFreqs);
+    hitsMapWritable.setShardDocFreqs(shardDocFreqs);
+
+    DataOutputBuffer out = writeWritable(hitsMapWritable);
+    HitsMapWritable readWritable = (HitsMapWritable) readWritable(out, new HitsMapWritable());
+    assertEquals(hitsMapWritable.getHitList(), readWritable.getHitList());
+    DocumentFrequencyWritable readDocFreqs = readWritable.getShardDocFreqs().get("shard1");
+    assertEquals(10, readDocFreqs.getNumDocs());
+    assertEquals(3, readDocFreqs.get("field", "term").intValue());
+  }
+
+  @Test
+  public void testSerializationWithMissingShards() throws Exception {
+    HitsMapWritable hitsMapWritable = new HitsMapWritable("node1");
+    DataOutputBuffer out = writeWritable(hitsMapWritable);
+    assertTrue(((HitsMapWritable) readWritable(out, new HitsMapWritable())).getMissingShards().isEmpty());
+
+    hitsMapWritable.setMissingShards(new HashSet<String>(Arrays.asList("shard1", "shard2")));
+    out = writeWritable(hitsMapWritable);
+    HitsMapWritable readWritable = (HitsMapWritable) readWritable(out, new HitsMapWritable());
+    assertEquals(hitsMapWritable.getMissingShards(), readWritable.getMissingShards());
+    assertTrue(readWritable.getHitList().isEmpty());
+  }
+
+  @Test
+  public void testSerializationWithManyShardsAndSortFields() throws Exception {
+    String nodeName = "node1";
+    WritableType[] sortFieldTypes = { WritableType.INT, WritableType.TEXT };
+    HitsMapWritable hitsMapWritable = new HitsMapWritable(nodeName);
+    hitsMapWritable.setSortFieldTypes(sortFieldTypes);
+    for (int i = 0; i < 300; i++) {
+      for (int j = 0; j < 2; j++) {
+        Hit hit = new Hit("shard" + i, nodeName, Float.NaN, i * 1000 + j, sortFieldTypes);
+        hit.setSortFields(new WritableComparable[] { new IntWritable(i - j), new Text("value" + j) });
+        hitsMapWritable.addHit(hit);
+      }
+    }
+    hitsMapWritable.addTotalHits(600);
+
+    DataOutputBuffer out = writeWritable(hitsMapWritable);
+    HitsMapWritable readWritable = (HitsMapWritable) readWritable(out, new HitsMapWritable());
+
+    assertEquals(600, readWritable.getTotalHits());
+    List<Hit> hits = hitsMapWritable.getHitList();
+    List<Hit> readHits = readWritable.getHitList();
+    assertEquals(hits, readHits);
+    for (int i = 0; i < hits.size(); i++) {
+      assertEquals(hits.get(i).getShard(), readHits.get(i).getShard());
+      assertEquals(hits.get(i).getSortFields()[0], readHits.get(i).getSortFields()[0]);
+      assertEquals(hits.get(i).getSortFields()[1], readHits.get(i).getSortFields()[1]);
+    }
+  }
+
+  @Test
+  public void testSerializationWithMissingSortFields() throws Exception {
+    HitsMapWritable hitsMapWritable = new HitsMapWritable("node1");
+    hitsMapWritable.setSortFieldTypes(new WritableType[] { WritableType.INT });
+    hitsMapWritable.addHit(new Hit("shard1", "node1", 1, 1));
+    try {
+      writeWritable(hitsMapWritable);
+      fail("should throw exception");
+    } catch (IOException e) {
+      // expected
+    }
   }
 }
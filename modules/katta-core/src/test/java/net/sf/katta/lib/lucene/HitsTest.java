@@ -0,0 +1,134 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.katta.util.WritableType;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.junit.Test;
+
+public class HitsTest {
+
+  private final Random _random = new Random(4711);
+
+  @Test
+  public void testSort() throws Exception {
+    List<List<Hit>> hitLists = createHitLists(5, 30);
+    List<Hit> allHits = collectAll(hitLists);
+    Collections.sort(allHits);
+    // one list in reverse order, like returned from older nodes
+    Collections.reverse(hitLists.get(2));
+
+    Hits hits = new Hits();
+    for (List<Hit> hitList : hitLists) {
+      hits.addHits(hitList);
+    }
+    hits.sort(20);
+    assertEquals(allHits.subList(0, 20), hits.getHits());
+
+    hits = new Hits();
+    for (List<Hit> hitList : hitLists) {
+      hits.addHits(hitList);
+    }
+    assertEquals(allHits, hits.getHits());
+  }
+
+  @Test
+  public void testSort_Empty() throws Exception {
+    Hits hits = new Hits();
+    hits.addHits(new ArrayList<Hit>());
+    hits.sort(10);
+    assertTrue(hits.getHits().isEmpty());
+  }
+
+  @Test
+  public void testFieldSort() throws Exception {
+    Sort sort = new Sort(new SortField("a", SortField.INT));
+    WritableType[] fieldTypes = { WritableType.INT };
+    FieldSortComparator comparator = new FieldSortComparator(sort.getSort(), fieldTypes);
+    List<List<Hit>> hitLists = createHitLists(4, 25);
+    for (List<Hit> hitList : hitLists) {
+      for (Hit hit : hitList) {
+        hit.setSortFields(new WritableComparable[] { new IntWritable(_random.nextInt(10)) });
+      }
+      Collections.sort(hitList, comparator);
+    }
+    List<Hit> allHits = collectAll(hitLists);
+    Collections.sort(allHits, comparator);
+
+    Hits hits = new Hits();
+    for (List<Hit> hitList : hitLists) {
+      hits.addHits(hitList);
+    }
+    hits.fieldSort(sort, fieldTypes, 30);
+    assertEquals(allHits.subList(0, 30), hits.getHits());
+  }
+
+  @Test
+  public void testMergeHits() throws Exception {
+    List<List<Hit>> hitLists = createHitLists(6, 20);
+    List<Hit> allHits = collectAll(hitLists);
+    Collections.sort(allHits);
+
+    Hits hits = new Hits();
+    for (List<Hit> hitList : hitLists) {
+      hits.mergeHits(hitList, null, 25);
+    }
+    assertEquals(allHits.subList(0, 25), hits.getHits());
+
+    // remaining lists are merged with the already merged hits
+    hits = new Hits();
+    hits.mergeHits(hitLists.get(0), null, 25);
+    for (int i = 1; i < hitLists.size(); i++) {
+      hits.addHits(hitLists.get(i));
+    }
+    hits.sort(25);
+    assertEquals(allHits.subList(0, 25), hits.getHits());
+  }
+
+  private List<List<Hit>> createHitLists(int listCount, int hitsPerList) {
+    List<List<Hit>> hitLists = new ArrayList<List<Hit>>();
+    for (int i = 0; i < listCount; i++) {
+      List<Hit> hitList = new ArrayList<Hit>();
+      for (int j = 0; j < hitsPerList; j++) {
+        hitList.add(new Hit("shard" + i, "node" + i, _random.nextInt(20), _random.nextInt(100)));
+      }
+      Collections.sort(hitList);
+      hitLists.add(hitList);
+    }
+    return hitLists;
+  }
+
+  private List<Hit> collectAll(List<List<Hit>> hitLists) {
+    List<Hit> allHits = new ArrayList<Hit>();
+    for (List<Hit> hitList : hitLists) {
+      allHits.addAll(hitList);
+    }
+    return allHits;
+  }
+
+}
@@ -24,30 +24,55 @@ import static org.mockito.Mockito.*;
 import static org.fest.assertions.Assertions.*;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 import net.sf.katta.AbstractTest;
 import net.sf.katta.lib.lucene.LuceneServer.SearcherHandle;
+import net.sf.katta.node.NodeOverloadedException;
 import net.sf.katta.testutil.TestResources;
+import net.sf.katta.testutil.TestUtil;
 import net.sf.katta.testutil.mockito.ChainedAnswer;
 import net.sf.katta.testutil.mockito.PauseAnswer;
 import net.sf.katta.testutil.mockito.SleepingAnswer;
 
+import org.apache.hadoop.io.MapWritable;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldCache.CacheEntry;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
 import org.junit.Test;
 import org.mockito.internal.stubbing.answers.CallsRealMethods;
 import org.mockito.invocation.InvocationOnMock;
@@ -163,6 +188,547 @@ public class LuceneServerTest extends AbstractTest {
     }
   }
 
+  @Test
+  public void testSearchAndFetchDocFreqs() throws Exception {
+    LuceneServer server = new LuceneServer("ls", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    HitsMapWritable expected = server.search(writable, freqs, shardNames, 10000, 10);
+
+    // no statistics known
+    HitsMapWritable result = server.searchAndFetchDocFreqs(writable, new DocumentFrequencyWritable(), shardNames,
+            10000, 10, null, null);
+    assertEquals(expected.getTotalHits(), result.getTotalHits());
+    assertEquals(expected.getHitList(), result.getHitList());
+    assertThat(result.getShardDocFreqs().keySet()).containsOnly((Object[]) shardNames);
+    DocumentFrequencyWritable fetchedFreqs = new DocumentFrequencyWritable();
+    for (DocumentFrequencyWritable shardFreqs : result.getShardDocFreqs().values()) {
+      fetchedFreqs.putAll(shardFreqs.getAll());
+      fetchedFreqs.addNumDocs(shardFreqs.getNumDocs());
+    }
+    assertEquals(freqs.getNumDocs(), fetchedFreqs.getNumDocs());
+    assertEquals(freqs.getAll(), fetchedFreqs.getAll());
+
+    // all statistics known
+    result = server.searchAndFetchDocFreqs(writable, freqs, shardNames, 10000, 10, null, null);
+    assertEquals(expected.getHitList(), result.getHitList());
+    for (DocumentFrequencyWritable shardFreqs : result.getShardDocFreqs().values()) {
+      assertTrue(shardFreqs.getAll().isEmpty());
+    }
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearch_ResultCache() throws Exception {
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_RESULT_CACHE_ENABLED, "true"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+
+    HitsMapWritable result1 = server.search(writable, freqs, shardNames, 10000, 10);
+    assertEquals(0, server.getResultCacheStats().hitCount());
+    assertEquals(1, server.getResultCacheStats().missCount());
+    HitsMapWritable result2 = server.search(new QueryWritable(parseQuery("foo: bar")), freqs, shardNames, 10000, 10);
+    assertEquals(1, server.getResultCacheStats().hitCount());
+    assertNotSame(result1, result2);
+    assertEquals(result1.getTotalHits(), result2.getTotalHits());
+    assertEquals(result1.getHitList(), result2.getHitList());
+
+    // different count
+    server.search(writable, freqs, shardNames, 10000, 5);
+    assertEquals(2, server.getResultCacheStats().missCount());
+
+    // shard change invalidates
+    server.removeShard(shardNames[0]);
+    server.addShard(shardNames[0], new File(TestResources.INDEX1, shardNames[0]));
+    HitsMapWritable result3 = server.search(writable, freqs, shardNames, 10000, 10);
+    assertEquals(1, server.getResultCacheStats().hitCount());
+    assertEquals(3, server.getResultCacheStats().missCount());
+    assertEquals(result1.getHitList(), result3.getHitList());
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearchAfter() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+
+    HitsMapWritable allResult = server.search(writable, freqs, shardNames, 10000, Integer.MAX_VALUE);
+    List<Hit> allHits = allResult.getHitList();
+    assertTrue(allHits.size() > 3);
+
+    // page through the hits
+    List<Hit> pagedHits = new ArrayList<Hit>();
+    HitsMapWritable page = server.search(writable, freqs, shardNames, 10000, 3);
+    while (!page.getHitList().isEmpty()) {
+      assertEquals(allResult.getTotalHits(), page.getTotalHits());
+      assertTrue(page.getHitList().size() <= 3);
+      pagedHits.addAll(page.getHitList());
+      SearchCursor cursor = new SearchCursor(pagedHits.get(pagedHits.size() - 1));
+      page = server.searchAfter(writable, freqs, shardNames, 10000, 3, cursor, null);
+    }
+    assertEquals(allHits, pagedHits);
+    server.shutdown();
+  }
+
+  @Test
+  public void testGetResultCount() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    int totalHits = server.search(writable, freqs, shardNames, 10000, 1).getTotalHits();
+    assertTrue(totalHits > 0);
+
+    assertEquals(totalHits, server.getResultCount(writable, shardNames, 10000));
+    FilterWritable filter = new FilterWritable(new QueryWrapperFilter(parseQuery("foo: bar")));
+    assertEquals(totalHits, server.getResultCount(writable, filter, shardNames, 10000));
+    filter = new FilterWritable(new QueryWrapperFilter(parseQuery("foo: nothing")));
+    assertEquals(0, server.getResultCount(writable, filter, shardNames, 10000));
+    assertNull(server.getCountCacheStats());
+    server.shutdown();
+  }
+
+  @Test
+  public void testGetResultCount_Cache() throws Exception {
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_COUNT_CACHE_ENABLED, "true"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+
+    int count = server.getResultCount(writable, shardNames, 10000);
+    assertEquals(0, server.getCountCacheStats().hitCount());
+    assertEquals(shardNames.length, server.getCountCacheStats().missCount());
+    assertEquals(count, server.getResultCount(new QueryWritable(parseQuery("foo: bar")), shardNames, 10000));
+    assertEquals(shardNames.length, server.getCountCacheStats().hitCount());
+
+    // shard change invalidates
+    server.removeShard(shardNames[0]);
+    server.addShard(shardNames[0], new File(TestResources.INDEX1, shardNames[0]));
+    assertEquals(count, server.getResultCount(writable, shardNames, 10000));
+    assertEquals(2 * shardNames.length - 1, server.getCountCacheStats().hitCount());
+    assertEquals(shardNames.length + 1, server.getCountCacheStats().missCount());
+    server.shutdown();
+  }
+
+  @Test
+  public void testGetDocFreqs_Cache() throws Exception {
+    LuceneServer uncachedServer = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_DOC_FREQ_CACHE_ENABLED, "true"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    addIndexShards(uncachedServer, TestResources.INDEX1);
+    assertNull(uncachedServer.getDocFreqCacheStats());
+
+    QueryWritable writable = new QueryWritable(parseQuery("foo:bar foo:baz"));
+    DocumentFrequencyWritable expected = uncachedServer.getDocFreqs(writable, shardNames);
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    assertEquals(expected.getAll(), freqs.getAll());
+    assertEquals(expected.getNumDocs(), freqs.getNumDocs());
+    assertEquals(0, server.getDocFreqCacheStats().hitCount());
+    assertEquals(2 * shardNames.length, server.getDocFreqCacheStats().missCount());
+
+    freqs = server.getDocFreqs(new QueryWritable(parseQuery("foo:bar foo:baz")), shardNames);
+    assertEquals(expected.getAll(), freqs.getAll());
+    assertEquals(expected.getNumDocs(), freqs.getNumDocs());
+    assertEquals(2 * shardNames.length, server.getDocFreqCacheStats().hitCount());
+
+    // shard change invalidates
+    server.removeShard(shardNames[0]);
+    server.addShard(shardNames[0], new File(TestResources.INDEX1, shardNames[0]));
+    freqs = server.getDocFreqs(writable, shardNames);
+    assertEquals(expected.getAll(), freqs.getAll());
+    assertEquals(expected.getNumDocs(), freqs.getNumDocs());
+    assertEquals(4 * shardNames.length - 2, server.getDocFreqCacheStats().hitCount());
+    assertEquals(2 * shardNames.length + 2, server.getDocFreqCacheStats().missCount());
+    server.shutdown();
+    uncachedServer.shutdown();
+  }
+
+  @Test
+  public void testSearch_RewriteCache() throws Exception {
+    LuceneServer uncachedServer = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_REWRITE_CACHE_ENABLED, "true"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    addIndexShards(uncachedServer, TestResources.INDEX1);
+    assertNull(uncachedServer.getRewriteCacheStats());
+
+    // the statistics call rewrites, the search takes the cached queries
+    QueryWritable writable = new QueryWritable(parseQuery("foo: b*"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    assertEquals(uncachedServer.getDocFreqs(writable, shardNames).getAll(), freqs.getAll());
+    assertEquals(0, server.getRewriteCacheStats().hitCount());
+    assertEquals(shardNames.length, server.getRewriteCacheStats().missCount());
+    HitsMapWritable result = server.search(writable, freqs, shardNames, 10000, 10);
+    assertEquals(uncachedServer.search(writable, freqs, shardNames, 10000, 10).getHitList(), result.getHitList());
+    assertEquals(shardNames.length, server.getRewriteCacheStats().hitCount());
+
+    // queries which do not change by rewriting are not cached
+    server.getDocFreqs(new QueryWritable(parseQuery("foo: bar")), shardNames);
+    assertEquals(shardNames.length, server._rewriteCache.size());
+
+    // shard change invalidates
+    server.removeShard(shardNames[0]);
+    server.addShard(shardNames[0], new File(TestResources.INDEX1, shardNames[0]));
+    assertEquals(result.getHitList(), server.search(writable, freqs, shardNames, 10000, 10).getHitList());
+    assertEquals(2 * shardNames.length - 1, server.getRewriteCacheStats().hitCount());
+    server.shutdown();
+    uncachedServer.shutdown();
+  }
+
+  @Test
+  public void testGetDetails_MultipleDocuments() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    List<Hit> hits = server.search(writable, freqs, shardNames, 10000, 10).getHitList();
+    assertTrue(hits.size() > 1);
+
+    String[] docShards = new String[hits.size()];
+    int[] docIds = new int[hits.size()];
+    for (int i = 0; i < hits.size(); i++) {
+      docShards[i] = hits.get(i).getShard();
+      docIds[i] = hits.get(i).getDocId();
+    }
+    String[] fields = new String[] { "foo" };
+    MapWritable[] details = server.getDetails(shardNames, docShards, docIds, fields);
+    assertEquals(hits.size(), details.length);
+    for (int i = 0; i < hits.size(); i++) {
+      assertEquals(server.getDetails(new String[] { docShards[i] }, docIds[i], fields).entrySet(), details[i].entrySet());
+    }
+
+    server.shutdown();
+  }
+
+  @Test
+  public void testGetDetails_MultipleDocumentsOfClosedShard() throws Exception {
+    final String[] closedShard = new String[1];
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f) {
+      @Override
+      protected Document doc(String shardName, int docId, String[] fieldNames) throws IOException {
+        return shardName.equals(closedShard[0]) ? null : super.doc(shardName, docId, fieldNames);
+      }
+    };
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    closedShard[0] = shardNames[0];
+    try {
+      server.getDetails(shardNames, new String[] { shardNames[0] }, new int[] { 0 }, null);
+      fail("should throw exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains(shardNames[0]));
+    }
+    server.shutdown();
+  }
+
+  @Test
+  public void testGetDetails_DocumentCache() throws Exception {
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_DOCUMENT_CACHE_ENABLED, "true"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    Hit hit = server.search(writable, freqs, shardNames, 10000, 1).getHitList().get(0);
+    String[] shards = new String[] { hit.getShard() };
+
+    MapWritable details1 = server.getDetails(shards, hit.getDocId(), new String[] { "foo" });
+    assertEquals(0, server.getDocumentCacheStats().hitCount());
+    assertEquals(1, server.getDocumentCacheStats().missCount());
+    MapWritable details2 = server.getDetails(shards, hit.getDocId(), new String[] { "foo" });
+    assertEquals(1, server.getDocumentCacheStats().hitCount());
+    assertNotSame(details1, details2);
+    assertEquals(details1.entrySet(), details2.entrySet());
+
+    // other fields
+    server.getDetails(shards, hit.getDocId());
+    assertEquals(2, server.getDocumentCacheStats().missCount());
+
+    // shard change invalidates
+    server.removeShard(hit.getShard());
+    server.addShard(hit.getShard(), new File(TestResources.INDEX1, hit.getShard()));
+    assertEquals(details1.entrySet(), server.getDetails(shards, hit.getDocId(), new String[] { "foo" }).entrySet());
+    assertEquals(1, server.getDocumentCacheStats().hitCount());
+    assertEquals(3, server.getDocumentCacheStats().missCount());
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearch_FilterCache() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    FilterWritable filter = new FilterWritable(new QueryWrapperFilter(parseQuery("foo: bar")));
+    ShardFilterCache filterCache = server.getFilterCache();
+
+    HitsMapWritable result1 = server.search(writable, freqs, shardNames, 10000, 10, filter);
+    assertEquals(server.search(writable, freqs, shardNames, 10000, 10).getHitList(), result1.getHitList());
+    assertEquals(0, filterCache.getStats().hitCount());
+    long cachedSets = filterCache.size();
+    assertTrue(cachedSets >= shardNames.length);
+    assertTrue(filterCache.getBytes() > 0);
+
+    HitsMapWritable result2 = server.search(writable, freqs, new String[] { shardNames[0] }, 10000, 10, filter);
+    assertTrue(filterCache.getStats().hitCount() > 0);
+    assertEquals(cachedSets, filterCache.size());
+    assertTrue(result2.getTotalHits() <= result1.getTotalHits());
+
+    // removing a shard drops its sets
+    server.removeShard(shardNames[0]);
+    assertTrue(filterCache.size() < cachedSets);
+    server.shutdown();
+    assertEquals(0, filterCache.size());
+    assertEquals(0, filterCache.getBytes());
+  }
+
+  @Test
+  public void testAddShard_WarmUp() throws Exception {
+    File queryFile = _temporaryFolder.newFile("warmup-queries.txt");
+    FileWriter writer = new FileWriter(queryFile);
+    writer.write("# warm-up queries\nfoo:bar\n\nfoo:b*\n");
+    writer.close();
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_WARMUP_QUERY_FILE, queryFile.getAbsolutePath(),
+            LuceneServer.CONF_KEY_WARMUP_RECENT_QUERIES, "10", LuceneServer.CONF_KEY_WARMUP_SORT_FIELDS, "foo"));
+    SearcherWarmer warmer = server.getSearcherWarmer();
+    assertNotNull(warmer);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    assertEquals(0, warmer.getRecentQueryCount());
+
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    FilterWritable filter = new FilterWritable(new QueryWrapperFilter(parseQuery("foo: bar")));
+    HitsMapWritable result = server.search(writable, freqs, shardNames, 10000, 10, filter);
+    assertEquals(1, warmer.getRecentQueryCount());
+
+    // the redeployed shard is warm: its filter set is cached and the field
+    // cache of the sort field is loaded
+    server.removeShard(shardNames[0]);
+    long cachedSets = server.getFilterCache().size();
+    server.addShard(shardNames[0], new File(TestResources.INDEX1, shardNames[0]));
+    assertTrue(server.getFilterCache().size() > cachedSets);
+    boolean fieldCacheLoaded = false;
+    for (CacheEntry entry : FieldCache.DEFAULT.getCacheEntries()) {
+      fieldCacheLoaded |= entry.getFieldName().equals("foo");
+    }
+    assertTrue(fieldCacheLoaded);
+    SearcherHandle handle = server.getSearcherHandleByShard(shardNames[0]);
+    assertEquals(3, warmer.warm(shardNames[0], handle.getSearcher(), null));
+    handle.finishSearcher();
+
+    assertEquals(result.getHitList(), server.search(writable, freqs, shardNames, 10000, 10, filter).getHitList());
+    server.shutdown();
+
+    server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    assertNull(server.getSearcherWarmer());
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearch_ParallelSegments() throws Exception {
+    File shardDir = createMultiSegmentShard("multiSegmentShard");
+    String[] shards = new String[] { "multiSegmentShard" };
+
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    server.addShard(shards[0], shardDir);
+    LuceneServer parallelServer = new LuceneServer();
+    parallelServer.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_ENABLED,
+            "true", LuceneServer.CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_DOCS, "0"));
+    parallelServer.addShard(shards[0], shardDir);
+    SearcherHandle handle = parallelServer.getSearcherHandleByShard(shards[0]);
+    assertEquals(3, handle.getSearcher().getSubReaders().length);
+    handle.finishSearcher();
+
+    QueryWritable writable = new QueryWritable(parseQuery("foo:bar foo:baz^2"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shards);
+    HitsMapWritable expected = server.search(writable, freqs, shards, 10000, 25);
+    HitsMapWritable result = parallelServer.search(writable, freqs, shards, 10000, 25);
+    assertEquals(60, result.getTotalHits());
+    assertEquals(expected.getHitList(), result.getHitList());
+
+    // paging
+    SearchCursor cursor = new SearchCursor(expected.getHitList().get(expected.getHitList().size() - 1));
+    assertEquals(server.searchAfter(writable, freqs, shards, 10000, 25, cursor, null).getHitList(), parallelServer
+            .searchAfter(writable, freqs, shards, 10000, 25, cursor, null).getHitList());
+
+    // sorted
+    SortWritable sort = new SortWritable(new Sort(new SortField("number", SortField.STRING)));
+    expected = server.search(writable, freqs, shards, 10000, 25, sort);
+    result = parallelServer.search(writable, freqs, shards, 10000, 25, sort);
+    assertEquals(expected.getHitList(), result.getHitList());
+    server.shutdown();
+    parallelServer.shutdown();
+  }
+
+  @Test
+  public void testSearch_ParallelSegmentsShardRemovedAfterFailure() throws Exception {
+    File shardDir = createMultiSegmentShard("multiSegmentShard");
+    String[] shards = new String[] { "multiSegmentShard" };
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_ENABLED, "true",
+            LuceneServer.CONF_KEY_SEARCHER_PARALLEL_SEGMENTS_MIN_DOCS, "0"));
+    server.addShard(shards[0], shardDir);
+
+    FirstSegmentFailingFilter filter = new FirstSegmentFailingFilter();
+    QueryWritable writable = new QueryWritable(parseQuery("foo:bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shards);
+    try {
+      server.search(writable, freqs, shards, 10000, 10, new FilterWritable(filter));
+      fail("should throw exception");
+    } catch (IOException e) {
+      // expected
+    }
+    server.removeShard(shards[0]);
+    filter.assertReadersOpen(2);
+    server.shutdown();
+  }
+
+  @Test
+  public void testCount_ShardRemovedAfterFailure() throws Exception {
+    File shardDir = createMultiSegmentShard("multiSegmentShard");
+    String[] shards = new String[] { "multiSegmentShard" };
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration());
+    server.addShard(shards[0], shardDir);
+
+    FirstSegmentFailingFilter filter = new FirstSegmentFailingFilter();
+    try {
+      server.getResultCount(new QueryWritable(parseQuery("foo:bar")), new FilterWritable(filter), shards, 10000);
+      fail("should throw exception");
+    } catch (IOException e) {
+      // expected
+    }
+    server.removeShard(shards[0]);
+    filter.assertReadersOpen(2);
+    server.shutdown();
+  }
+
+  @Test
+  public void testAdmissionControl() throws Exception {
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_ADMISSION_MAX_CONCURRENT_REQUESTS, "1",
+            LuceneServer.CONF_KEY_ADMISSION_MAX_QUEUED_REQUESTS, "1", LuceneServer.CONF_KEY_ADMISSION_QUEUE_TIMEOUT,
+            "100"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable writable = new QueryWritable(parseQuery("foo: bar"));
+    DocumentFrequencyWritable freqs = server.getDocFreqs(writable, shardNames);
+    server.search(writable, freqs, shardNames, 10000, 10);
+    server.searchAndFetchDocFreqs(writable, new DocumentFrequencyWritable(), shardNames, 10000, 10, null, null);
+    AdmissionController admissionController = server.getAdmissionController();
+    assertEquals(3, admissionController.getAdmittedRequests());
+    assertEquals(0, admissionController.getRunningRequests());
+
+    // the only permit is taken, a request waits for the queue timeout
+    admissionController.acquire();
+    try {
+      server.getResultCount(writable, shardNames, 10000);
+      fail("should throw exception");
+    } catch (NodeOverloadedException e) {
+      // expected
+    }
+    assertEquals(1, admissionController.getRejectedRequests());
+    assertEquals(0, admissionController.getQueuedRequests());
+    admissionController.release();
+    server.getResultCount(writable, shardNames, 10000);
+    assertEquals(5, admissionController.getAdmittedRequests());
+    server.shutdown();
+
+    server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    assertNull(server.getAdmissionController());
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearchBatch() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable[] queries = new QueryWritable[] { new QueryWritable(parseQuery("foo: bar")),
+            new QueryWritable(parseQuery("foo: b*")), new QueryWritable(parseQuery("foo: notexisting")) };
+    BooleanQuery combinedQuery = new BooleanQuery();
+    for (QueryWritable query : queries) {
+      combinedQuery.add(query.getQuery(), Occur.SHOULD);
+    }
+    DocumentFrequencyWritable freqs = server.getDocFreqs(new QueryWritable(combinedQuery), shardNames);
+
+    HitsMapWritable[] results = server.searchBatch(queries, freqs, shardNames, 10000, 10);
+    assertEquals(queries.length, results.length);
+    for (int i = 0; i < queries.length; i++) {
+      HitsMapWritable expected = server.search(queries[i], freqs, shardNames, 10000, 10);
+      assertEquals(expected.getTotalHits(), results[i].getTotalHits());
+      assertEquals(expected.getHitList(), results[i].getHitList());
+    }
+    assertEquals(0, results[2].getTotalHits());
+    assertEquals(0, server.searchBatch(new QueryWritable[0], freqs, shardNames, 10000, 10).length);
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearchBatch_Timeout() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable[] queries = new QueryWritable[] { new QueryWritable(parseQuery("foo: bar")),
+            new QueryWritable(parseQuery("foo: b*")) };
+    DocumentFrequencyWritable freqs = server.getDocFreqs(queries[0], shardNames);
+
+    // no query can start in time, the skipped queries are marked
+    HitsMapWritable[] results = server.searchBatch(queries, freqs, shardNames, 0, 10);
+    for (HitsMapWritable result : results) {
+      assertEquals(0, result.getTotalHits());
+      assertEquals(new HashSet<String>(Arrays.asList(shardNames)), result.getMissingShards());
+    }
+    results = server.searchBatch(queries, freqs, shardNames, 10000, 10);
+    for (HitsMapWritable result : results) {
+      assertTrue(result.getMissingShards().isEmpty());
+    }
+    server.shutdown();
+  }
+
+  @Test
+  public void testBatchPriority() throws Exception {
+    LuceneServer server = new LuceneServer();
+    server.init("server", newNodeConfiguration(LuceneServer.CONF_KEY_ADMISSION_MAX_CONCURRENT_REQUESTS, "1",
+            LuceneServer.CONF_KEY_BATCH_ADMISSION_MAX_CONCURRENT_REQUESTS, "1",
+            LuceneServer.CONF_KEY_BATCH_ADMISSION_MAX_QUEUED_REQUESTS, "0", LuceneServer.CONF_KEY_BATCH_THREADPOOL_SIZE,
+            "2"));
+    String[] shardNames = addIndexShards(server, TestResources.INDEX1);
+    QueryWritable interactive = new QueryWritable(parseQuery("foo: bar"));
+    QueryWritable batch = new QueryWritable(parseQuery("foo: bar"), QueryPriority.BATCH);
+    DocumentFrequencyWritable freqs = server.getDocFreqs(interactive, shardNames);
+    assertEquals(server.search(interactive, freqs, shardNames, 10000, 10).getHitList(),
+            server.search(batch, freqs, shardNames, 10000, 10).getHitList());
+    assertEquals(server.getResultCount(interactive, shardNames, 10000),
+            server.getResultCount(batch, shardNames, 10000));
+    AdmissionController batchAdmissionController = server.getBatchAdmissionController();
+    assertEquals(3, server.getAdmissionController().getAdmittedRequests());
+    assertEquals(2, batchAdmissionController.getAdmittedRequests());
+
+    // all batch permits are taken, interactive requests are not affected
+    batchAdmissionController.acquire();
+    try {
+      server.search(batch, freqs, shardNames, 10000, 10);
+      fail("should throw exception");
+    } catch (NodeOverloadedException e) {
+      // expected
+    }
+    assertEquals(4, server.search(interactive, freqs, shardNames, 10000, 10).getTotalHits());
+    batchAdmissionController.release();
+    assertEquals(1, batchAdmissionController.getRejectedRequests());
+    assertEquals(0, server.getAdmissionController().getRejectedRequests());
+    server.shutdown();
+  }
+
+  @Test
+  public void testSearch_ResultCacheDisabled() throws Exception {
+    LuceneServer server = new LuceneServer("server", new DefaultSearcherFactory(), 0.75f);
+    assertNull(server.getResultCacheStats());
+    server.shutdown();
+  }
+
   @Test
   public void testSearchCall_EmptyIndex() throws Exception {
     IndexSearcher searcher = mock(IndexSearcher.class);
@@ -278,6 +844,63 @@ public class LuceneServerTest extends AbstractTest {
     }
   }
 
+  private File createMultiSegmentShard(String name) throws IOException {
+    File shardDir = _temporaryFolder.newFolder(name);
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer());
+    config.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+    IndexWriter writer = new IndexWriter(FSDirectory.open(shardDir), config);
+    for (int i = 0; i < 60; i++) {
+      Document document = new Document();
+      document.add(new Field("foo", i % 3 == 0 ? "bar" : "baz", Field.Store.YES, Field.Index.NOT_ANALYZED));
+      document.add(new Field("number", String.format("%03d", (i * 7) % 60), Field.Store.YES,
+              Field.Index.NOT_ANALYZED));
+      writer.addDocument(document);
+      if (i % 20 == 19) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    return shardDir;
+  }
+
+  /**
+   * Fails on the first segment and records whether the reader of the other
+   * segments is still open after a while, so the shard can be removed in
+   * between.
+   */
+  private static class FirstSegmentFailingFilter extends Filter {
+
+    private final AtomicInteger _segmentCount = new AtomicInteger();
+    private final List<Integer> _readerRefCounts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      if (_segmentCount.getAndIncrement() == 0) {
+        throw new IOException("test exception");
+      }
+      try {
+        Thread.sleep(500);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      _readerRefCounts.add(reader.getRefCount());
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+
+    public void assertReadersOpen(final int segmentCount) throws Exception {
+      TestUtil.waitUntil(false, new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return _readerRefCounts.size() < segmentCount;
+        }
+      }, TimeUnit.SECONDS, 5);
+      assertEquals(segmentCount, _readerRefCounts.size());
+      for (int refCount : _readerRefCounts) {
+        assertTrue(refCount > 0);
+      }
+    }
+  }
+
   private static class QueryClient implements Callable<HitsMapWritable> {
 
     private LuceneServer _server;
@@ -298,4 +921,5 @@ public class LuceneServerTest extends AbstractTest {
     }
 
   }
+
 }
@@ -0,0 +1,56 @@
+package net.sf.katta.lib.lucene;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import net.sf.katta.lib.lucene.LuceneServer.SearcherHandle;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.Test;
+
+public class LuceneServer_SearcherHandleTest {
+
+  @Test
+  public void testCloseUnusedSearcher() throws Exception {
+    IndexSearcher searcher = mock(IndexSearcher.class);
+    SearcherHandle handle = new SearcherHandle(searcher);
+    assertSame(searcher, handle.getSearcher());
+    handle.finishSearcher();
+    verify(searcher, never()).close();
+
+    handle.closeSearcher();
+    verify(searcher, times(1)).close();
+    assertNull(handle.getSearcher());
+  }
+
+  @Test
+  public void testCloseOnLastRelease() throws Exception {
+    IndexSearcher searcher = mock(IndexSearcher.class);
+    SearcherHandle handle = new SearcherHandle(searcher);
+    assertSame(searcher, handle.getSearcher());
+    assertSame(searcher, handle.getSearcher());
+
+    handle.closeSearcher();
+    verify(searcher, never()).close();
+    assertNull(handle.getSearcher());
+
+    handle.finishSearcher();
+    verify(searcher, never()).close();
+    handle.finishSearcher();
+    verify(searcher, times(1)).close();
+  }
+
+  @Test
+  public void testCloseTwice() throws Exception {
+    IndexSearcher searcher = mock(IndexSearcher.class);
+    SearcherHandle handle = new SearcherHandle(searcher);
+    handle.closeSearcher();
+    handle.closeSearcher();
+    verify(searcher, times(1)).close();
+  }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+/**
+ * Compares size and speed of the {@link QueryCodec} encoding with the Java
+ * serialization of queries.
+ */
+public class QueryWritablePerformanceTest {
+
+  private final int _rounds = 5000;
+
+  @Test
+  public void testSerializationSpeed() throws Exception {
+    Query[] queries = { new TermQuery(new Term("title", "katta")), createBooleanQuery(5), createBooleanQuery(50) };
+    for (Query query : queries) {
+      // warm up
+      javaSerialization(query, _rounds / 10, false);
+      codec(query, _rounds / 10, false);
+
+      javaSerialization(query, _rounds, true);
+      codec(query, _rounds, true);
+    }
+  }
+
+  private void javaSerialization(Query query, int rounds, boolean print) throws Exception {
+    final long start = System.currentTimeMillis();
+    int size = 0;
+    for (int i = 0; i < rounds; i++) {
+      ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+      ObjectOutputStream objectStream = new ObjectOutputStream(byteArrayStream);
+      objectStream.writeObject(query);
+      objectStream.close();
+      byte[] bytes = byteArrayStream.toByteArray();
+      size = bytes.length;
+      new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+    final long end = System.currentTimeMillis();
+    if (print) {
+      System.out.println("java serialization: " + (end - start) + "ms. for " + rounds + " x " + size + " bytes");
+    }
+  }
+
+  private void codec(Query query, int rounds, boolean print) throws Exception {
+    final long start = System.currentTimeMillis();
+    int size = 0;
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataInputBuffer in = new DataInputBuffer();
+    for (int i = 0; i < rounds; i++) {
+      out.reset();
+      QueryCodec.write(query, out);
+      size = out.getLength();
+      in.reset(out.getData(), out.getLength());
+      QueryCodec.read(in);
+    }
+    final long end = System.currentTimeMillis();
+    if (print) {
+      System.out.println("query codec: " + (end - start) + "ms. for " + rounds + " x " + size + " bytes");
+    }
+  }
+
+  private Query createBooleanQuery(int clauseCount) {
+    BooleanQuery query = new BooleanQuery();
+    for (int i = 0; i < clauseCount; i++) {
+      switch (i % 4) {
+      case 0:
+        query.add(new TermQuery(new Term("title", "term" + i)), Occur.SHOULD);
+        break;
+      case 1:
+        PhraseQuery phraseQuery = new PhraseQuery();
+        phraseQuery.add(new Term("content", "a" + i));
+        phraseQuery.add(new Term("content", "b" + i));
+        query.add(phraseQuery, Occur.SHOULD);
+        break;
+      case 2:
+        query.add(new PrefixQuery(new Term("content", "pre" + i)), Occur.MUST_NOT);
+        break;
+      default:
+        query.add(NumericRangeQuery.newIntRange("year", i, i + 10, true, true), Occur.SHOULD);
+      }
+    }
+    return query;
+  }
+}
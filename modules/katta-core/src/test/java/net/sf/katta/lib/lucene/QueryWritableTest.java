@@ -15,12 +15,31 @@
  */
 package net.sf.katta.lib.lucene;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+
 import net.sf.katta.AbstractWritableTest;
 
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
 import org.junit.Test;
 
 public class QueryWritableTest extends AbstractWritableTest {
@@ -37,4 +56,85 @@ public class QueryWritableTest extends AbstractWritableTest {
     assertTrue(writable.equals(writable2));
   }
 
+  @Test
+  public void testSerializePriority() throws Exception {
+    TermQuery termQuery = new TermQuery(new Term("katta"));
+    QueryWritable writable = new QueryWritable(termQuery, QueryPriority.BATCH);
+    QueryWritable writable2 = new QueryWritable();
+    readWritable(writeWritable(writable), writable2);
+    assertEquals(termQuery, writable2.getQuery());
+    assertEquals(QueryPriority.BATCH, writable2.getPriority());
+
+    readWritable(writeWritable(new QueryWritable(termQuery)), writable2);
+    assertEquals(QueryPriority.INTERACTIVE, writable2.getPriority());
+  }
+
+  @Test
+  public void testSerializeStandardQueries() throws Exception {
+    TermQuery termQuery = new TermQuery(new Term("field", "text"));
+    termQuery.setBoost(2.5f);
+    assertSerialization(termQuery);
+
+    PhraseQuery phraseQuery = new PhraseQuery();
+    phraseQuery.add(new Term("field", "a"), 0);
+    phraseQuery.add(new Term("field", "b"), 2);
+    phraseQuery.setSlop(3);
+    assertSerialization(phraseQuery);
+
+    PrefixQuery prefixQuery = new PrefixQuery(new Term("field", "pre"));
+    prefixQuery.setRewriteMethod(MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE);
+    assertSerialization(prefixQuery);
+    assertSerialization(new WildcardQuery(new Term("other", "a*b?")));
+    assertSerialization(new TermRangeQuery("field", "a", null, true, false));
+    assertSerialization(NumericRangeQuery.newIntRange("int", 4, 1, 10, true, true));
+    assertSerialization(NumericRangeQuery.newLongRange("long", null, 10L, false, true));
+    assertSerialization(NumericRangeQuery.newFloatRange("float", 1.5f, 10f, true, false));
+    assertSerialization(NumericRangeQuery.newDoubleRange("double", 1.5, null, true, false));
+    assertSerialization(new FilteredQuery(termQuery, new QueryWrapperFilter(prefixQuery)));
+    assertSerialization(new ConstantScoreQuery(prefixQuery));
+    assertSerialization(new ConstantScoreQuery(new QueryWrapperFilter(termQuery)));
+
+    BooleanQuery booleanQuery = new BooleanQuery(true);
+    booleanQuery.add(termQuery, Occur.MUST);
+    booleanQuery.add(phraseQuery, Occur.SHOULD);
+    booleanQuery.add(new TermQuery(new Term("field", "not")), Occur.MUST_NOT);
+    booleanQuery.add(new MatchAllDocsQuery(), Occur.SHOULD);
+    booleanQuery.setMinimumNumberShouldMatch(1);
+    booleanQuery.setBoost(0.5f);
+    assertSerialization(booleanQuery);
+  }
+
+  @Test
+  public void testSerializeCustomQuery() throws Exception {
+    assertSerialization(new FuzzyQuery(new Term("field", "text"), 0.6f));
+    assertSerialization(new MatchAllDocsQuery());
+    // not yet known bounds type
+    assertSerialization(NumericRangeQuery.newIntRange("int", null, null, true, true));
+  }
+
+  @Test
+  public void testReadJavaSerializedQuery() throws Exception {
+    TermQuery termQuery = new TermQuery(new Term("katta"));
+    ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+    ObjectOutputStream objectStream = new ObjectOutputStream(byteArrayStream);
+    objectStream.writeObject(termQuery);
+    objectStream.close();
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    buffer.writeInt(byteArrayStream.size());
+    buffer.write(byteArrayStream.toByteArray());
+
+    QueryWritable writable = new QueryWritable();
+    readWritable(buffer, writable);
+    assertEquals(termQuery, writable.getQuery());
+  }
+
+  private void assertSerialization(Query query) throws Exception {
+    QueryWritable writable = new QueryWritable(query);
+    DataOutputBuffer buffer = writeWritable(writable);
+    QueryWritable writable2 = new QueryWritable();
+    readWritable(buffer, writable2);
+    assertEquals(query, writable2.getQuery());
+    assertEquals(query.toString(), writable2.getQuery().toString());
+  }
+
 }
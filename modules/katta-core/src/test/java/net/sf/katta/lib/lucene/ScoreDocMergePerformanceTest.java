@@ -0,0 +1,277 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.katta.util.WritableType;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.PriorityQueue;
+import org.junit.Test;
+
+/**
+ * Compares the heap merge of shard results with the merge LuceneServer did
+ * before, the position wise walk over all shards into a hit queue for score
+ * sorting and the linear scan over the shard heads for field sorting, for
+ * different numbers of shards and hits.
+ */
+public class ScoreDocMergePerformanceTest {
+
+  private final int[] _shardCounts = { 1, 10, 50, 100 };
+  private final int[] _hitCounts = { 10, 100, 1000, 10000 };
+  private final int _rounds = 10;
+
+  @Test
+  public void testMergeSpeed() {
+    for (int shardCount : _shardCounts) {
+      for (int hitCount : _hitCounts) {
+        String[] shards = createShardNames(shardCount);
+        ScoreDoc[][] shardDocs = setupShardDocs(shardCount, hitCount);
+        mergeByScore(shardDocs, shards, hitCount);
+        mergeByScoreWithHitQueue(shardDocs, shards, hitCount);
+      }
+    }
+  }
+
+  @Test
+  public void testFieldMergeSpeed() {
+    SortField[] sortFields = { new SortField("a", SortField.INT, true) };
+    WritableType[] fieldTypes = { WritableType.INT };
+    FieldSortComparator comparator = new FieldSortComparator(sortFields, fieldTypes);
+    for (int shardCount : _shardCounts) {
+      for (int hitCount : _hitCounts) {
+        String[] shards = createShardNames(shardCount);
+        ScoreDoc[][] shardDocs = setupShardFieldDocs(shardCount, hitCount);
+        mergeByFields(comparator, shardDocs, shards, hitCount);
+        mergeByFieldsWithLinearScan(comparator, shardDocs, shards, hitCount);
+      }
+    }
+  }
+
+  private void mergeByScore(ScoreDoc[][] shardDocs, String[] shards, int hitCount) {
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < _rounds; i++) {
+      ScoreDocMerger.mergeByScore(shardDocs, shards, "node", hitCount);
+    }
+    final long end = System.currentTimeMillis();
+    System.out.println("mergeByScore: " + (end - start) / (double) _rounds + "ms. for " + shards.length
+            + " shards and " + hitCount + " hits");
+  }
+
+  private void mergeByScoreWithHitQueue(ScoreDoc[][] shardDocs, String[] shards, int hitCount) {
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < _rounds; i++) {
+      List<Hit> hits = new ArrayList<Hit>(hitCount);
+      for (Hit hit : walkIntoHitQueue(shardDocs, shards, hitCount)) {
+        hits.add(hit);
+      }
+    }
+    final long end = System.currentTimeMillis();
+    System.out.println("mergeByScoreWithHitQueue: " + (end - start) / (double) _rounds + "ms. for "
+            + shards.length + " shards and " + hitCount + " hits");
+  }
+
+  private void mergeByFields(FieldSortComparator comparator, ScoreDoc[][] shardDocs, String[] shards, int hitCount) {
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < _rounds; i++) {
+      ScoreDocMerger.mergeByFields(comparator, shardDocs, shards, "node", hitCount);
+    }
+    final long end = System.currentTimeMillis();
+    System.out.println("mergeByFields: " + (end - start) / (double) _rounds + "ms. for " + shards.length
+            + " shards and " + hitCount + " hits");
+  }
+
+  private void mergeByFieldsWithLinearScan(FieldSortComparator comparator, ScoreDoc[][] shardDocs,
+          String[] shards, int hitCount) {
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < _rounds; i++) {
+      linearScan(comparator, hitCount, shardDocs, shards, "node");
+    }
+    final long end = System.currentTimeMillis();
+    System.out.println("mergeByFieldsWithLinearScan: " + (end - start) / (double) _rounds + "ms. for "
+            + shards.length + " shards and " + hitCount + " hits");
+  }
+
+  /**
+   * The score merge LuceneServer did before the heap merge.
+   */
+  private static HitQueue walkIntoHitQueue(ScoreDoc[][] scoreDocs, String[] shards, int limit) {
+    final int shardsCount = shards.length;
+    final HitQueue hq = new HitQueue(limit);
+    int pos = 0;
+    BitSet done = new BitSet(shardsCount);
+    while (done.cardinality() != shardsCount) {
+      ScoreDoc scoreDoc = null;
+      for (int i = 0; i < shardsCount; i++) {
+        if (!done.get(i)) {
+          final ScoreDoc[] docs = scoreDocs[i];
+          if (pos < docs.length) {
+            scoreDoc = docs[pos];
+            final Hit hit = new Hit(shards[i], "node", scoreDoc.score, scoreDoc.doc);
+            if (!hq.insert(hit)) {
+              done.set(i, true);
+            }
+          } else {
+            done.set(i, true);
+          }
+        }
+      }
+      pos++;
+      if (scoreDoc == null) {
+        break;
+      }
+    }
+    return hq;
+  }
+
+  /**
+   * The field merge LuceneServer did before the heap merge.
+   */
+  private static List<Hit> linearScan(FieldSortComparator comparator, int count, ScoreDoc[][] sortedFieldDocs,
+          String[] shards, String nodeName) {
+    int[] arrayPositions = new int[sortedFieldDocs.length];
+    final List<Hit> sortedResult = new ArrayList<Hit>(count);
+
+    BitSet listDone = new BitSet(sortedFieldDocs.length);
+    for (int subListIndex = 0; subListIndex < arrayPositions.length; subListIndex++) {
+      if (sortedFieldDocs[subListIndex].length == 0) {
+        listDone.set(subListIndex, true);
+      }
+    }
+    do {
+      int fieldDocArrayWithSmallestFieldDoc = -1;
+      FieldDoc smallestFieldDoc = null;
+      for (int subListIndex = 0; subListIndex < arrayPositions.length; subListIndex++) {
+        if (!listDone.get(subListIndex)) {
+          FieldDoc hit = (FieldDoc) sortedFieldDocs[subListIndex][arrayPositions[subListIndex]];
+          if (smallestFieldDoc == null || comparator.compare(hit.fields, smallestFieldDoc.fields) < 0) {
+            smallestFieldDoc = hit;
+            fieldDocArrayWithSmallestFieldDoc = subListIndex;
+          }
+        }
+      }
+      ScoreDoc[] smallestElementList = sortedFieldDocs[fieldDocArrayWithSmallestFieldDoc];
+      FieldDoc fieldDoc = (FieldDoc) smallestElementList[arrayPositions[fieldDocArrayWithSmallestFieldDoc]];
+      arrayPositions[fieldDocArrayWithSmallestFieldDoc]++;
+      final Hit hit = new Hit(shards[fieldDocArrayWithSmallestFieldDoc], nodeName, fieldDoc.score, fieldDoc.doc);
+      hit.setSortFields(WritableType.convertComparable(comparator.getFieldTypes(), fieldDoc.fields));
+      sortedResult.add(hit);
+      if (arrayPositions[fieldDocArrayWithSmallestFieldDoc] >= smallestElementList.length) {
+        listDone.set(fieldDocArrayWithSmallestFieldDoc, true);
+      }
+    } while (sortedResult.size() < count && listDone.cardinality() < arrayPositions.length);
+    return sortedResult;
+  }
+
+  private String[] createShardNames(int shardCount) {
+    String[] shards = new String[shardCount];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = "shard" + i;
+    }
+    return shards;
+  }
+
+  private ScoreDoc[][] setupShardDocs(int shardCount, int hitCount) {
+    final Random random = new Random();
+    // the same number everytime to get comparable results
+    random.setSeed(64567547657L);
+    ScoreDoc[][] shardDocs = new ScoreDoc[shardCount][];
+    for (int i = 0; i < shardCount; i++) {
+      // every shard delivers its top hitCount docs
+      shardDocs[i] = new ScoreDoc[hitCount];
+      float score = 10;
+      for (int j = 0; j < hitCount; j++) {
+        score -= random.nextFloat() / hitCount;
+        shardDocs[i][j] = new ScoreDoc(random.nextInt(1000000), score);
+      }
+    }
+    return shardDocs;
+  }
+
+  private ScoreDoc[][] setupShardFieldDocs(int shardCount, int hitCount) {
+    final Random random = new Random();
+    // the same number everytime to get comparable results
+    random.setSeed(64567547657L);
+    ScoreDoc[][] shardDocs = new ScoreDoc[shardCount][];
+    for (int i = 0; i < shardCount; i++) {
+      // every shard delivers its top hitCount docs, sorted descending by field
+      shardDocs[i] = new ScoreDoc[hitCount];
+      int value = Integer.MAX_VALUE;
+      for (int j = 0; j < hitCount; j++) {
+        value -= random.nextInt(1000);
+        shardDocs[i][j] = new FieldDoc(random.nextInt(1000000), Float.NaN, new Comparable[] { value });
+      }
+    }
+    return shardDocs;
+  }
+
+  /**
+   * The hit queue LuceneServer used for the score merge before the heap merge.
+   */
+  private static class HitQueue extends PriorityQueue<Hit> implements Iterable<Hit> {
+
+    private final int _maxSize;
+
+    HitQueue(final int maxSize) {
+      _maxSize = maxSize;
+      initialize(maxSize);
+    }
+
+    public boolean insert(Hit hit) {
+      if (size() < _maxSize) {
+        add(hit);
+        return true;
+      }
+      if (lessThan(top(), hit)) {
+        insertWithOverflow(hit);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    protected final boolean lessThan(final Hit hitA, final Hit hitB) {
+      return hitA.compareTo(hitB) > 0;
+    }
+
+    @Override
+    public Iterator<Hit> iterator() {
+      return new Iterator<Hit>() {
+        @Override
+        public boolean hasNext() {
+          return HitQueue.this.size() > 0;
+        }
+
+        @Override
+        public Hit next() {
+          return HitQueue.this.pop();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("Can't remove using this iterator");
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.katta.lib.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.katta.util.WritableType;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SortField;
+import org.junit.Test;
+
+public class ScoreDocMergerTest {
+
+  private final Random _random = new Random(4711);
+
+  @Test
+  public void testMergeByScore() throws Exception {
+    String[] shards = { "shard1", "shard2", "shard3", "shard4" };
+    ScoreDoc[][] shardDocs = new ScoreDoc[shards.length][];
+    List<Hit> allHits = new ArrayList<Hit>();
+    for (int i = 0; i < shards.length; i++) {
+      // few distinct scores to get ties
+      ScoreDoc[] docs = new ScoreDoc[i * 20];
+      for (int j = 0; j < docs.length; j++) {
+        docs[j] = new ScoreDoc(_random.nextInt(50), _random.nextInt(5));
+        allHits.add(new Hit(shards[i], "node", docs[j].score, docs[j].doc));
+      }
+      Arrays.sort(docs, new Comparator<ScoreDoc>() {
+        @Override
+        public int compare(ScoreDoc o1, ScoreDoc o2) {
+          int c = Float.compare(o2.score, o1.score);
+          return c != 0 ? c : o1.doc - o2.doc;
+        }
+      });
+      shardDocs[i] = docs;
+    }
+    Collections.sort(allHits);
+
+    assertEquals(allHits.subList(0, 25), ScoreDocMerger.mergeByScore(shardDocs, shards, "node", 25));
+    assertEquals(allHits, ScoreDocMerger.mergeByScore(shardDocs, shards, "node", Integer.MAX_VALUE));
+    assertTrue(ScoreDocMerger.mergeByScore(shardDocs, shards, "node", 0).isEmpty());
+  }
+
+  @Test
+  public void testMergeByFields() throws Exception {
+    String[] shards = { "shard1", "shard2", "shard3" };
+    SortField[] sortFields = { new SortField("a", SortField.INT, true) };
+    WritableType[] fieldTypes = { WritableType.INT };
+    final FieldSortComparator comparator = new FieldSortComparator(sortFields, fieldTypes);
+    ScoreDoc[][] shardDocs = new ScoreDoc[shards.length][];
+    List<Hit> allHits = new ArrayList<Hit>();
+    for (int i = 0; i < shards.length; i++) {
+      FieldDoc[] docs = new FieldDoc[30];
+      for (int j = 0; j < docs.length; j++) {
+        docs[j] = new FieldDoc(j, Float.NaN, new Comparable[] { _random.nextInt(10) });
+        Hit hit = new Hit(shards[i], "node", docs[j].score, docs[j].doc);
+        hit.setSortFields(WritableType.convertComparable(fieldTypes, docs[j].fields));
+        allHits.add(hit);
+      }
+      Arrays.sort(docs, new Comparator<FieldDoc>() {
+        @Override
+        public int compare(FieldDoc o1, FieldDoc o2) {
+          int c = comparator.compare(o1.fields, o2.fields);
+          return c != 0 ? c : o1.doc - o2.doc;
+        }
+      });
+      shardDocs[i] = docs;
+    }
+    Collections.sort(allHits, comparator);
+
+    List<Hit> hits = ScoreDocMerger.mergeByFields(comparator, shardDocs, shards, "node", 40);
+    assertEquals(allHits.subList(0, 40), hits);
+    for (int i = 0; i < hits.size(); i++) {
+      assertEquals(allHits.get(i).getSortFields()[0], hits.get(i).getSortFields()[0]);
+    }
+  }
+
+}